@@ -0,0 +1,170 @@
+package com.colemancda.cerradura;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing with linear probing over primitive arrays, keyed by MAC addresses
+ * packed into a {@code long} with {@link ScanTable#address(String)}.
+ *
+ * Subclasses keep their values in arrays parallel to the keys, indexed by slot, and move them along
+ * when an entry is shifted back by a removal or the table grows. Not thread safe, subclasses synchronize.
+ */
+abstract class AddressTable {
+
+    /** Marks an occupied slot, since addresses only use the lower 48 bits. */
+    private static final long OCCUPIED = 1L << 63;
+
+    private long[] keys;
+
+    private int count = 0;
+
+    AddressTable(int expectedSize) {
+
+        keys = new long[capacityFor(expectedSize)];
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Moves the values of an entry to an empty slot, shifting it back after a removal. */
+    abstract void move(int from, int to);
+
+    /**
+     * Reallocates the values for the larger capacity.
+     *
+     * @param slots The new slot of each old slot, or -1 for the empty ones.
+     */
+    abstract void rehash(int capacity, int[] slots);
+
+    final int capacity() { return keys.length; }
+
+    /** The number of addresses in the table. */
+    final int count() { return count; }
+
+    /** The slot holding the address, or the empty slot where it would be inserted. */
+    final int slotFor(long address) {
+
+        long key = address | OCCUPIED;
+
+        int mask = keys.length - 1;
+
+        int slot = hash(address) & mask;
+
+        while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    final boolean isOccupied(int slot) { return keys[slot] != 0; }
+
+    final long addressAt(int slot) { return keys[slot] & ~OCCUPIED; }
+
+    /**
+     * Adds an address that is not in the table, growing the table first if needed.
+     *
+     * @return The slot of the address.
+     */
+    final int insert(long address) {
+
+        if ((count + 1) * 4 > keys.length * 3) grow();
+
+        int slot = slotFor(address);
+
+        keys[slot] = address | OCCUPIED;
+
+        count++;
+
+        return slot;
+    }
+
+    /**
+     * Removes the address in the occupied slot.
+     *
+     * @return The slot left empty, whose values may be cleared.
+     */
+    final int removeAt(int slot) {
+
+        count--;
+
+        // shift back the entries that probed past the removed slot, instead of leaving a tombstone
+        int mask = keys.length - 1;
+
+        int hole = slot;
+
+        int next = slot;
+
+        while (true) {
+
+            next = (next + 1) & mask;
+
+            if (keys[next] == 0) break;
+
+            int home = hash(keys[next] & ~OCCUPIED) & mask;
+
+            boolean reachable = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+
+            if (reachable) continue;
+
+            keys[hole] = keys[next];
+
+            move(next, hole);
+
+            hole = next;
+        }
+
+        keys[hole] = 0;
+
+        return hole;
+    }
+
+    /** Removes all addresses, keeping the capacity. */
+    final void removeAll() {
+
+        Arrays.fill(keys, 0);
+
+        count = 0;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private void grow() {
+
+        long[] oldKeys = keys;
+
+        keys = new long[oldKeys.length * 2];
+
+        int[] slots = new int[oldKeys.length];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+
+            if (oldKeys[i] == 0) { slots[i] = -1; continue; }
+
+            int slot = slotFor(oldKeys[i] & ~OCCUPIED);
+
+            keys[slot] = oldKeys[i];
+
+            slots[i] = slot;
+        }
+
+        rehash(keys.length, slots);
+    }
+
+    private static int hash(long address) {
+
+        long h = address * 0x9E3779B97F4A7C15L;
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int capacityFor(int expectedSize) {
+
+        int capacity = 16;
+
+        while (capacity * 3 < Math.max(expectedSize, 1) * 4) capacity <<= 1;
+
+        return capacity;
+    }
+}
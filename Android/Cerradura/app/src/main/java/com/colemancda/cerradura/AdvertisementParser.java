@@ -0,0 +1,163 @@
+package com.colemancda.cerradura;
+
+import java.util.UUID;
+
+/**
+ * Parses the AD structures of a raw LE scan record to decide whether a peripheral could be a lock,
+ * without connecting to it.
+ *
+ * The parser walks the record in place and does not allocate.
+ */
+final class AdvertisementParser {
+
+    private AdvertisementParser() { }
+
+    /**
+     * Classification
+     */
+
+    /** The advertisement does not say whether the peripheral is a lock. */
+    static final int UNKNOWN = 0;
+
+    /** The peripheral advertises a complete list of 128-bit services without the lock service. */
+    static final int NOT_LOCK = 1;
+
+    /** The peripheral advertises the lock service. */
+    static final int LOCK_SERVICE = 2;
+
+    /** The peripheral advertises the lock iBeacon. */
+    static final int LOCK_BEACON = 3;
+
+    /**
+     * Constants
+     */
+
+    /** The iBeacon proximity UUID advertised by every lock. */
+    static final UUID LOCK_BEACON_UUID = UUID.fromString("5109BE6D-3918-43FE-A629-CB2E0707EA5F");
+
+    private static final int TYPE_INCOMPLETE_SERVICE_UUIDS_128 = 0x06;
+
+    private static final int TYPE_COMPLETE_SERVICE_UUIDS_128 = 0x07;
+
+    private static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /** Apple company identifier (little endian) + iBeacon type + iBeacon length. */
+    private static final byte[] IBEACON_PREFIX = { 0x4C, 0x00, 0x02, 0x15 };
+
+    /** 128-bit UUIDs are little endian in AD structures. */
+    private static final byte[] LOCK_SERVICE_UUID_LE = littleEndian(LockService.UUID);
+
+    /** Proximity UUIDs are big endian in the iBeacon payload. */
+    private static final byte[] LOCK_BEACON_UUID_BE = bigEndian(LOCK_BEACON_UUID);
+
+    /**
+     * Methods
+     */
+
+    /**
+     * Whether the peripheral should be probed.
+     *
+     * @param strict If {@code true} only peripherals that positively advertise the lock service or beacon are accepted.
+     *               Otherwise peripherals are only rejected when their advertisement rules them out.
+     */
+    static boolean isLockCandidate(byte[] scanRecord, boolean strict) {
+
+        int classification = classify(scanRecord);
+
+        if (classification == LOCK_SERVICE || classification == LOCK_BEACON) return true;
+
+        return !strict && classification == UNKNOWN;
+    }
+
+    static int classify(byte[] scanRecord) {
+
+        if (scanRecord == null) return UNKNOWN;
+
+        boolean completeServiceList = false;
+
+        int offset = 0;
+
+        while (offset < scanRecord.length) {
+
+            int length = scanRecord[offset] & 0xFF;
+
+            // zero length marks the end of the significant part
+            if (length == 0 || offset + 1 + length > scanRecord.length) break;
+
+            int type = scanRecord[offset + 1] & 0xFF;
+
+            int dataOffset = offset + 2;
+
+            int dataLength = length - 1;
+
+            switch (type) {
+
+                case TYPE_COMPLETE_SERVICE_UUIDS_128:
+                case TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+
+                    if (type == TYPE_COMPLETE_SERVICE_UUIDS_128) completeServiceList = true;
+
+                    for (int uuidOffset = dataOffset; uuidOffset + 16 <= dataOffset + dataLength; uuidOffset += 16) {
+
+                        if (regionMatches(scanRecord, uuidOffset, LOCK_SERVICE_UUID_LE)) return LOCK_SERVICE;
+                    }
+
+                    break;
+
+                case TYPE_MANUFACTURER_DATA:
+
+                    if (dataLength >= IBEACON_PREFIX.length + 16
+                            && regionMatches(scanRecord, dataOffset, IBEACON_PREFIX)
+                            && regionMatches(scanRecord, dataOffset + IBEACON_PREFIX.length, LOCK_BEACON_UUID_BE)) {
+
+                        return LOCK_BEACON;
+                    }
+
+                    break;
+            }
+
+            offset += 1 + length;
+        }
+
+        return completeServiceList ? NOT_LOCK : UNKNOWN;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] expected) {
+
+        if (offset + expected.length > bytes.length) return false;
+
+        for (int i = 0; i < expected.length; i++) {
+
+            if (bytes[offset + i] != expected[i]) return false;
+        }
+
+        return true;
+    }
+
+    private static byte[] bigEndian(UUID uuid) {
+
+        byte[] bytes = new byte[LockIdentifier.LENGTH];
+
+        LockIdentifier.encode(uuid, bytes, 0);
+
+        return bytes;
+    }
+
+    private static byte[] littleEndian(UUID uuid) {
+
+        byte[] bytes = bigEndian(uuid);
+
+        for (int i = 0; i < 8; i++) {
+
+            byte swap = bytes[i];
+            bytes[i] = bytes[15 - i];
+            bytes[15 - i] = swap;
+        }
+
+        return bytes;
+    }
+}
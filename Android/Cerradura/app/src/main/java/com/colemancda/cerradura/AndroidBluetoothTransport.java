@@ -0,0 +1,237 @@
+package com.colemancda.cerradura;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link BluetoothTransport} backed by the Android Bluetooth stack.
+ */
+final class AndroidBluetoothTransport implements BluetoothTransport {
+
+    /** The descriptor that enables notifications of a characteristic. */
+    static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private final Context context;
+
+    private final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+
+    /** The platform callback registered for each scan callback. */
+    private final ConcurrentHashMap<ScanCallback, BluetoothAdapter.LeScanCallback> scanCallbacks = new ConcurrentHashMap<ScanCallback, BluetoothAdapter.LeScanCallback>();
+
+    AndroidBluetoothTransport(Context context) {
+
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * BluetoothTransport
+     */
+
+    public boolean isEnabled() { return adapter != null && adapter.isEnabled(); }
+
+    public boolean startScan(final ScanCallback callback) {
+
+        if (adapter == null) return false;
+
+        BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+            @Override
+            public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+
+                callback.onAdvertisement(device.getAddress(), rssi, scanRecord);
+            }
+        };
+
+        scanCallbacks.put(callback, leScanCallback);
+
+        if (adapter.startLeScan(leScanCallback)) return true;
+
+        scanCallbacks.remove(callback);
+
+        return false;
+    }
+
+    public void stopScan(ScanCallback callback) {
+
+        BluetoothAdapter.LeScanCallback leScanCallback = scanCallbacks.remove(callback);
+
+        if (leScanCallback != null) adapter.stopLeScan(leScanCallback);
+    }
+
+    public Connection connect(String address, ConnectionCallback callback) {
+
+        if (adapter == null) return null;
+
+        AndroidConnection connection = new AndroidConnection(address, callback);
+
+        BluetoothGatt gatt = adapter.getRemoteDevice(address).connectGatt(context, false, connection.gattCallback);
+
+        if (gatt == null) return null;
+
+        connection.gatt = gatt;
+
+        return connection;
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    private static final class AndroidConnection implements Connection {
+
+        private final String address;
+
+        private final ConnectionCallback callback;
+
+        /** Set once {@code connectGatt} returns, or by the first callback if that comes first. */
+        private volatile BluetoothGatt gatt;
+
+        AndroidConnection(String address, ConnectionCallback callback) {
+
+            this.address = address;
+            this.callback = callback;
+        }
+
+        public String getAddress() { return address; }
+
+        public boolean discoverServices() { return gatt.discoverServices(); }
+
+        public boolean hasService(UUID service) { return gatt.getService(service) != null; }
+
+        public boolean hasCharacteristic(UUID service, UUID characteristic) { return characteristic(service, characteristic) != null; }
+
+        public boolean canNotify(UUID service, UUID characteristic) {
+
+            BluetoothGattCharacteristic gattCharacteristic = characteristic(service, characteristic);
+
+            return gattCharacteristic != null && (gattCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0
+                    && gattCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION) != null;
+        }
+
+        public boolean readCharacteristic(UUID service, UUID characteristic) {
+
+            BluetoothGattCharacteristic gattCharacteristic = characteristic(service, characteristic);
+
+            return gattCharacteristic != null && gatt.readCharacteristic(gattCharacteristic);
+        }
+
+        public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) {
+
+            BluetoothGattCharacteristic gattCharacteristic = characteristic(service, characteristic);
+
+            if (gattCharacteristic == null) return false;
+
+            gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+
+            return gattCharacteristic.setValue(value) && gatt.writeCharacteristic(gattCharacteristic);
+        }
+
+        public boolean writeCharacteristicWithoutResponse(UUID service, UUID characteristic, byte[] value) {
+
+            BluetoothGattCharacteristic gattCharacteristic = characteristic(service, characteristic);
+
+            if (gattCharacteristic == null) return false;
+
+            // the stack copies the value, and refuses the write while the previous one is still queued
+            gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+            return gattCharacteristic.setValue(value) && gatt.writeCharacteristic(gattCharacteristic);
+        }
+
+        public boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) {
+
+            BluetoothGattCharacteristic gattCharacteristic = characteristic(service, characteristic);
+
+            if (gattCharacteristic == null) return false;
+
+            BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION);
+
+            // the stack only forwards notifications locally, the lock sends them once the descriptor is written
+            if (descriptor == null || !gatt.setCharacteristicNotification(gattCharacteristic, enable)) return false;
+
+            return descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)
+                    && gatt.writeDescriptor(descriptor);
+        }
+
+        public boolean requestMtu(int mtu) {
+
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mtu);
+        }
+
+        public boolean requestConnectionPriority(int priority) {
+
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestConnectionPriority(priority);
+        }
+
+        public void disconnect() { gatt.disconnect(); }
+
+        public void close() { gatt.close(); }
+
+        private BluetoothGattCharacteristic characteristic(UUID service, UUID characteristic) {
+
+            BluetoothGattService gattService = gatt.getService(service);
+
+            return gattService != null ? gattService.getCharacteristic(characteristic) : null;
+        }
+
+        private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+
+                AndroidConnection.this.gatt = gatt;
+
+                callback.onConnectionStateChange(AndroidConnection.this, status, newState == BluetoothProfile.STATE_CONNECTED);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+
+                callback.onServicesDiscovered(AndroidConnection.this, status);
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt,
+                                             BluetoothGattCharacteristic characteristic,
+                                             int status) {
+
+                callback.onCharacteristicRead(AndroidConnection.this, characteristic.getUuid(), status, characteristic.getValue());
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt,
+                                              BluetoothGattCharacteristic characteristic,
+                                              int status) {
+
+                callback.onCharacteristicWrite(AndroidConnection.this, characteristic.getUuid(), status);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+
+                callback.onMtuChanged(AndroidConnection.this, mtu, status);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+
+                callback.onDescriptorWrite(AndroidConnection.this, descriptor.getCharacteristic().getUuid(), status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+
+                callback.onCharacteristicChanged(AndroidConnection.this, characteristic.getUuid(), characteristic.getValue());
+            }
+        };
+    }
+}
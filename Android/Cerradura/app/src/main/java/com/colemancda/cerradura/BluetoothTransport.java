@@ -0,0 +1,130 @@
+package com.colemancda.cerradura;
+
+import java.util.UUID;
+
+/**
+ * The Bluetooth LE central operations {@link LockManager} needs, independent of the platform stack.
+ *
+ * Requests return immediately and report their result on the {@link ConnectionCallback},
+ * mirroring {@link android.bluetooth.BluetoothGatt}: only one request may be outstanding per connection.
+ */
+interface BluetoothTransport {
+
+    /** Status of a successful GATT operation. */
+    int GATT_SUCCESS = 0;
+
+    /** The ATT MTU every connection starts with. */
+    int DEFAULT_MTU = 23;
+
+    /** The largest ATT MTU that can be requested. */
+    int MAX_MTU = 517;
+
+    /** The longest characteristic value. Values that do not fit the MTU are written by the stack as a long write. */
+    int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /** Connection priorities, as in {@link android.bluetooth.BluetoothGatt}. */
+    int CONNECTION_PRIORITY_BALANCED = 0;
+
+    int CONNECTION_PRIORITY_HIGH = 1;
+
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    /** Whether the Bluetooth radio is powered on. */
+    boolean isEnabled();
+
+    /** Starts an LE scan. Returns false if the scan could not be started. */
+    boolean startScan(ScanCallback callback);
+
+    void stopScan(ScanCallback callback);
+
+    /**
+     * Starts connecting to the peripheral with the specified address.
+     *
+     * @return The connection, or {@code null} if the connection could not be started.
+     */
+    Connection connect(String address, ConnectionCallback callback);
+
+    /**
+     * Supporting Types
+     */
+
+    interface ScanCallback {
+
+        /** Called for every advertisement received while scanning. */
+        void onAdvertisement(String address, int rssi, byte[] scanRecord);
+    }
+
+    interface Connection {
+
+        String getAddress();
+
+        /** Returns false if the request could not be started. */
+        boolean discoverServices();
+
+        /** Whether the service was found by the last service discovery. */
+        boolean hasService(UUID service);
+
+        boolean hasCharacteristic(UUID service, UUID characteristic);
+
+        /** Whether the characteristic supports notifications and has a client characteristic configuration descriptor. */
+        boolean canNotify(UUID service, UUID characteristic);
+
+        /** Returns false if the characteristic does not exist or the request could not be started. */
+        boolean readCharacteristic(UUID service, UUID characteristic);
+
+        /** Writes the value with response. Returns false if the characteristic does not exist or the request could not be started. */
+        boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value);
+
+        /**
+         * Writes the value without response. {@link ConnectionCallback#onCharacteristicWrite} is called once the stack
+         * sent it, which makes room for the next write. Returns false if the characteristic does not exist
+         * or the stack has no room for the write yet. The value may be reused once this returns.
+         */
+        boolean writeCharacteristicWithoutResponse(UUID service, UUID characteristic, byte[] value);
+
+        /**
+         * Enables or disables notifications of the characteristic, and writes its client characteristic configuration
+         * descriptor. The result is reported to {@link ConnectionCallback#onDescriptorWrite}, notifications to
+         * {@link ConnectionCallback#onCharacteristicChanged}. Returns false if the characteristic cannot notify
+         * or the request could not be started.
+         */
+        boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+        /**
+         * Requests a larger ATT MTU, the negotiated MTU is reported to {@link ConnectionCallback#onMtuChanged}.
+         * Returns false if the request could not be started, or is not supported before API 21.
+         */
+        boolean requestMtu(int mtu);
+
+        /**
+         * Requests a shorter or longer connection interval, takes effect without a callback.
+         * Returns false if the request could not be made, or is not supported before API 21.
+         */
+        boolean requestConnectionPriority(int priority);
+
+        void disconnect();
+
+        /** Releases the connection, it cannot be used afterwards. */
+        void close();
+    }
+
+    interface ConnectionCallback {
+
+        void onConnectionStateChange(Connection connection, int status, boolean connected);
+
+        void onServicesDiscovered(Connection connection, int status);
+
+        /** The value is only valid for the duration of the callback. */
+        void onCharacteristicRead(Connection connection, UUID characteristic, int status, byte[] value);
+
+        void onCharacteristicWrite(Connection connection, UUID characteristic, int status);
+
+        void onMtuChanged(Connection connection, int mtu, int status);
+
+        /** The client characteristic configuration of the characteristic was written. */
+        void onDescriptorWrite(Connection connection, UUID characteristic, int status);
+
+        /** A notification. The value is only valid for the duration of the callback. */
+        void onCharacteristicChanged(Connection connection, UUID characteristic, byte[] value);
+    }
+}
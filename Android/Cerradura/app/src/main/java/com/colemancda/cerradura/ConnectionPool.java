@@ -0,0 +1,267 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps warm connections to the most recently used locks.
+ *
+ * A connection is taken out of the pool while in use and put back when done. Idle connections are
+ * evicted in least recently used order when the pool is full, or after the idle timeout,
+ * and are always handed to the {@link Evictor} to be closed.
+ *
+ * Connections to pinned locks, e.g. ones subscribed to notifications, are never evicted
+ * and do not count towards the capacity.
+ */
+final class ConnectionPool<C> {
+
+    interface Evictor<C> {
+
+        /** Disconnects and releases the connection. Called without holding the pool lock. */
+        void evict(C connection);
+    }
+
+    private final int capacity;
+
+    private final long idleTimeout;
+
+    private final Evictor<C> evictor;
+
+    /** Idle connections in least recently used order. */
+    private final LinkedHashMap<UUID, Entry<C>> idle = new LinkedHashMap<UUID, Entry<C>>(16, 0.75f, true);
+
+    private final HashSet<UUID> pinned = new HashSet<UUID>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    ConnectionPool(int capacity, long idleTimeout, Evictor<C> evictor) {
+
+        if (capacity < 0) throw new IllegalArgumentException("Capacity cannot be negative");
+
+        this.capacity = capacity;
+        this.idleTimeout = idleTimeout;
+        this.evictor = evictor;
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Takes the warm connection to the lock out of the pool, or returns {@code null}. */
+    synchronized C checkout(UUID lock) {
+
+        Entry<C> entry = idle.remove(lock);
+
+        if (entry == null) {
+
+            misses++;
+
+            return null;
+        }
+
+        hits++;
+
+        return entry.connection;
+    }
+
+    /** Returns a connection to the pool, evicting the least recently used connections beyond capacity. */
+    void checkin(UUID lock, C connection, long now) {
+
+        ArrayList<C> evicted = new ArrayList<C>();
+
+        synchronized (this) {
+
+            Entry<C> previous = idle.put(lock, new Entry<C>(connection, now));
+
+            if (previous != null && previous.connection != connection) evicted.add(previous.connection);
+
+            Iterator<Map.Entry<UUID, Entry<C>>> iterator = idle.entrySet().iterator();
+
+            int unpinned = idle.size() - pinnedIdle();
+
+            while (unpinned > capacity && iterator.hasNext()) {
+
+                Map.Entry<UUID, Entry<C>> entry = iterator.next();
+
+                if (pinned.contains(entry.getKey())) continue;
+
+                iterator.remove();
+
+                evicted.add(entry.getValue().connection);
+
+                unpinned--;
+            }
+
+            evictions += evicted.size();
+        }
+
+        for (C evictedConnection : evicted) evictor.evict(evictedConnection);
+    }
+
+    /** Evicts connections that have been idle for longer than the idle timeout. */
+    void evictIdle(long now) {
+
+        ArrayList<C> evicted = new ArrayList<C>();
+
+        synchronized (this) {
+
+            Iterator<Map.Entry<UUID, Entry<C>>> iterator = idle.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+
+                Map.Entry<UUID, Entry<C>> entry = iterator.next();
+
+                if (now - entry.getValue().lastUsed < idleTimeout || pinned.contains(entry.getKey())) continue;
+
+                iterator.remove();
+
+                evicted.add(entry.getValue().connection);
+            }
+
+            evictions += evicted.size();
+        }
+
+        for (C connection : evicted) evictor.evict(connection);
+    }
+
+    /**
+     * Evicts the least recently used idle connection that is not pinned, e.g. to make room for a new connection.
+     *
+     * @return {@code false} if there is none.
+     */
+    boolean evictEldest() {
+
+        C evicted = null;
+
+        synchronized (this) {
+
+            Iterator<Map.Entry<UUID, Entry<C>>> iterator = idle.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+
+                Map.Entry<UUID, Entry<C>> entry = iterator.next();
+
+                if (pinned.contains(entry.getKey())) continue;
+
+                iterator.remove();
+
+                evicted = entry.getValue().connection;
+
+                evictions++;
+
+                break;
+            }
+        }
+
+        if (evicted == null) return false;
+
+        evictor.evict(evicted);
+
+        return true;
+    }
+
+    /** Removes a connection that was dropped by the peripheral. Returns false if it was not pooled. */
+    boolean remove(C connection) {
+
+        synchronized (this) {
+
+            Iterator<Entry<C>> iterator = idle.values().iterator();
+
+            boolean found = false;
+
+            while (iterator.hasNext()) {
+
+                if (iterator.next().connection == connection) {
+
+                    iterator.remove();
+
+                    found = true;
+                }
+            }
+
+            if (!found) return false;
+        }
+
+        evictor.evict(connection);
+
+        return true;
+    }
+
+    /** Keeps the connection to the lock in the pool until unpinned, whether idle or not. */
+    synchronized void pin(UUID lock) { pinned.add(lock); }
+
+    synchronized void unpin(UUID lock) { pinned.remove(lock); }
+
+    synchronized boolean isPinned(UUID lock) { return pinned.contains(lock); }
+
+    /** Evicts every idle connection, pinned or not. */
+    void clear() {
+
+        ArrayList<C> evicted = new ArrayList<C>();
+
+        synchronized (this) {
+
+            for (Entry<C> entry : idle.values()) evicted.add(entry.connection);
+
+            idle.clear();
+
+            pinned.clear();
+
+            evictions += evicted.size();
+        }
+
+        for (C connection : evicted) evictor.evict(connection);
+    }
+
+    synchronized int size() { return idle.size(); }
+
+    synchronized long getHits() { return hits; }
+
+    synchronized long getMisses() { return misses; }
+
+    synchronized long getEvictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+
+        return "ConnectionPool(idle: " + idle.size() + "/" + capacity + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ")";
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private int pinnedIdle() {
+
+        int count = 0;
+
+        for (UUID lock : pinned) if (idle.containsKey(lock)) count++;
+
+        return count;
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    private static final class Entry<C> {
+
+        final C connection;
+
+        final long lastUsed;
+
+        Entry(C connection, long lastUsed) {
+
+            this.connection = connection;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.colemancda.cerradura;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single pending GATT request (connect, discover services, read, etc).
+ *
+ * The caller issues the request and blocks in {@link #await(int)} without spinning,
+ * while the {@link android.bluetooth.BluetoothGattCallback} completes it from the Bluetooth thread.
+ */
+final class GATTOperation<T> {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private volatile T value;
+
+    private volatile Exception error;
+
+    /**
+     * Methods
+     */
+
+    /** Completes the operation successfully. Returns false if it already finished. */
+    boolean complete(T value) {
+
+        if (!finished.compareAndSet(false, true)) return false;
+
+        this.value = value;
+
+        latch.countDown();
+
+        return true;
+    }
+
+    /** Completes the operation with an error. Returns false if it already finished. */
+    boolean fail(Exception error) {
+
+        if (!finished.compareAndSet(false, true)) return false;
+
+        this.error = error;
+
+        latch.countDown();
+
+        return true;
+    }
+
+    boolean isDone() { return finished.get(); }
+
+    /**
+     * Blocks until the operation finishes, or throws {@link LockManager.LockManagerTimeoutError}
+     * after the specified amount of seconds. A timeout of 0 waits indefinitely.
+     */
+    T await(int timeout) throws Exception {
+
+        if (timeout > 0) {
+
+            if (!latch.await(timeout, TimeUnit.SECONDS)) {
+
+                fail(new LockManager.LockManagerTimeoutError());
+            }
+
+        } else {
+
+            latch.await();
+        }
+
+        if (error != null) throw error;
+
+        return value;
+    }
+}
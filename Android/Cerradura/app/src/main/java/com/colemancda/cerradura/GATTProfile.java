@@ -1,60 +1,394 @@
 package com.colemancda.cerradura;
 
 import java.util.UUID;
-import java.nio.ByteBuffer;
 
 /**
  * Created by coleman on 6/16/16.
  */
 
-interface GATTProfileService {
-
-    static UUID UUID = null;
-}
-
-interface GATTProfileCharacteristic {
+/**
+ * A service of the lock GATT profile. Implementations declare a {@code static final UUID UUID}.
+ */
+interface GATTProfileService { }
 
-    static UUID UUID = null;
-}
+/**
+ * A characteristic of the lock GATT profile. Implementations declare a {@code static final UUID UUID},
+ * the length of the value, and static codecs for the big endian wire format.
+ *
+ * Decoders read from a caller supplied buffer and offset, encoders write into a caller supplied buffer
+ * and return the number of bytes written, so no objects are created per read or write.
+ */
+interface GATTProfileCharacteristic { }
 
 final class LockService implements GATTProfileService {
 
     static final UUID UUID = java.util.UUID.fromString("D5373D28-044C-11E6-B3C2-09AB70D5A8C7");
 }
 
+/** The UUID lock identifier (16 bytes) (read-only) */
 final class LockIdentifier implements GATTProfileCharacteristic {
 
     static final UUID UUID = java.util.UUID.fromString("EB1BA354-044C-11E6-BDFD-09AB70D5A8C7");
 
-    final UUID value;
+    static final int LENGTH = 16;
+
+    private LockIdentifier() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static long mostSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset); }
 
-    LockIdentifier(byte[] bytes) {
+    static long leastSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset + 8); }
 
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    /** Decodes the identifier, or returns {@code null} if the value is invalid. */
+    static UUID decode(byte[] bytes) {
 
-        long msb = buffer.getLong();
-        long lsb = buffer.getLong();
+        if (!isValid(bytes)) return null;
 
-        this.value = new UUID(msb, lsb);
+        return new UUID(mostSignificantBits(bytes, 0), leastSignificantBits(bytes, 0));
     }
-}
 
-final class LockStatus implements GATTProfileCharacteristic {
+    static int encode(UUID value, byte[] buffer, int offset) {
 
-    static final UUID UUID = java.util.UUID.fromString("F868B290-044C-11E6-BD3B-09AB70D5A8C7");
+        BigEndian.writeLong(value.getMostSignificantBits(), buffer, offset);
+        BigEndian.writeLong(value.getLeastSignificantBits(), buffer, offset + 8);
+
+        return LENGTH;
+    }
 }
 
+/** The lock model. (1 byte) (read-only) */
 final class LockModel implements GATTProfileCharacteristic {
 
     static final UUID UUID = java.util.UUID.fromString("AD96F330-0497-11E6-9EB3-E72D62A5198D");
+
+    static final int LENGTH = 1;
+
+    /** Returned by {@link #decode(byte[], int)} for unknown models. */
+    static final int INVALID = -1;
+
+    static final int ORANGE_PI_ONE = 1;
+
+    private LockModel() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static int decode(byte[] bytes, int offset) {
+
+        int value = bytes[offset] & 0xFF;
+
+        return value == ORANGE_PI_ONE ? value : INVALID;
+    }
+
+    static int encode(int value, byte[] buffer, int offset) {
+
+        buffer[offset] = (byte) value;
+
+        return LENGTH;
+    }
+
+    static String name(int model) {
+
+        switch (model) {
+            case ORANGE_PI_ONE: return "Classic";
+            default: return "Unknown";
+        }
+    }
 }
 
+/** The lock software version. (64 bits / 8 byte) (read-only) */
 final class LockVersion implements GATTProfileCharacteristic {
 
     static final UUID UUID = java.util.UUID.fromString("F28A0E1E-044C-11E6-9032-09AB70D5A8C7");
+
+    static final int LENGTH = 8;
+
+    private LockVersion() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static long decode(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset); }
+
+    static int encode(long value, byte[] buffer, int offset) {
+
+        BigEndian.writeLong(value, buffer, offset);
+
+        return LENGTH;
+    }
+}
+
+/**
+ * The Debian package software version. (3 x 16 bits / 6 bytes) (read-only)
+ *
+ * Decoded into a single {@code long} as {@code major << 32 | minor << 16 | patch}.
+ */
+final class LockPackageVersion implements GATTProfileCharacteristic {
+
+    static final UUID UUID = java.util.UUID.fromString("A834DD35-F7E1-4BE0-B28D-A3BD6F7BE9D0");
+
+    static final int LENGTH = 6;
+
+    private LockPackageVersion() { }
+
+    /** The server pads the value to 8 bytes, only the first 6 are significant. */
+    static boolean isValid(byte[] bytes) { return bytes != null && (bytes.length == LENGTH || bytes.length == 8); }
+
+    static long decode(byte[] bytes, int offset) {
+
+        return ((long) BigEndian.readUnsignedShort(bytes, offset) << 32)
+                | ((long) BigEndian.readUnsignedShort(bytes, offset + 2) << 16)
+                | BigEndian.readUnsignedShort(bytes, offset + 4);
+    }
+
+    static int encode(long value, byte[] buffer, int offset) {
+
+        BigEndian.writeShort(major(value), buffer, offset);
+        BigEndian.writeShort(minor(value), buffer, offset + 2);
+        BigEndian.writeShort(patch(value), buffer, offset + 4);
+
+        return LENGTH;
+    }
+
+    static long value(int major, int minor, int patch) {
+
+        return ((long) (major & 0xFFFF) << 32) | ((long) (minor & 0xFFFF) << 16) | (patch & 0xFFFF);
+    }
+
+    static int major(long value) { return (int) (value >>> 32) & 0xFFFF; }
+
+    static int minor(long value) { return (int) (value >>> 16) & 0xFFFF; }
+
+    static int patch(long value) { return (int) value & 0xFFFF; }
 }
 
+/** The lock's current status (1 byte) (read-only) */
+final class LockStatus implements GATTProfileCharacteristic {
+
+    static final UUID UUID = java.util.UUID.fromString("F868B290-044C-11E6-BD3B-09AB70D5A8C7");
+
+    static final int LENGTH = 1;
+
+    /** Returned by {@link #decode(byte[], int)} for unknown values. */
+    static final int INVALID = -1;
+
+    /** Initial Status */
+    static final int SETUP = 0;
+
+    /** Idle / Unlock Mode */
+    static final int UNLOCK = 1;
+
+    private LockStatus() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static int decode(byte[] bytes, int offset) {
+
+        int value = bytes[offset] & 0xFF;
+
+        return (value == SETUP || value == UNLOCK) ? value : INVALID;
+    }
+
+    static int encode(int value, byte[] buffer, int offset) {
+
+        buffer[offset] = (byte) value;
+
+        return LENGTH;
+    }
+}
+
+/**
+ * Key UUID + nonce + IV + encrypt(salt, iv, newKey) + HMAC(salt, nonce) (write-only)
+ *
+ * The codec only handles the layout, the caller supplies the encrypted key and HMAC.
+ */
 final class LockSetup implements GATTProfileCharacteristic {
 
     static final UUID UUID = java.util.UUID.fromString("129E401C-044D-11E6-8FA9-09AB70D5A8C7");
+
+    static final int NONCE_LENGTH = 16;
+
+    static final int IV_LENGTH = 16;
+
+    static final int ENCRYPTED_KEY_LENGTH = 48;
+
+    static final int HMAC_LENGTH = 64;
+
+    static final int NONCE_OFFSET = 16;
+
+    static final int IV_OFFSET = NONCE_OFFSET + NONCE_LENGTH;
+
+    static final int ENCRYPTED_KEY_OFFSET = IV_OFFSET + IV_LENGTH;
+
+    static final int HMAC_OFFSET = ENCRYPTED_KEY_OFFSET + ENCRYPTED_KEY_LENGTH;
+
+    static final int LENGTH = HMAC_OFFSET + HMAC_LENGTH; // 160
+
+    private LockSetup() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static long identifierMostSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset); }
+
+    static long identifierLeastSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset + 8); }
+
+    static int encode(UUID identifier, byte[] nonce, byte[] iv, byte[] encryptedKey, byte[] hmac, byte[] buffer, int offset) {
+
+        if (nonce.length != NONCE_LENGTH || iv.length != IV_LENGTH
+                || encryptedKey.length != ENCRYPTED_KEY_LENGTH || hmac.length != HMAC_LENGTH) {
+
+            throw new IllegalArgumentException("Invalid setup component length");
+        }
+
+        LockIdentifier.encode(identifier, buffer, offset);
+
+        System.arraycopy(nonce, 0, buffer, offset + NONCE_OFFSET, NONCE_LENGTH);
+        System.arraycopy(iv, 0, buffer, offset + IV_OFFSET, IV_LENGTH);
+        System.arraycopy(encryptedKey, 0, buffer, offset + ENCRYPTED_KEY_OFFSET, ENCRYPTED_KEY_LENGTH);
+        System.arraycopy(hmac, 0, buffer, offset + HMAC_OFFSET, HMAC_LENGTH);
+
+        return LENGTH;
+    }
+}
+
+/**
+ * Used to unlock door.
+ *
+ * Key UUID + nonce + HMAC(key, nonce) (16 + 16 + 64 bytes) (write-only)
+ *
+ * The codec only handles the layout, see {@link LockAuthenticator} for the nonce and HMAC.
+ */
+final class LockUnlock implements GATTProfileCharacteristic {
+
+    static final UUID UUID = java.util.UUID.fromString("265B3EC0-044D-11E6-90F2-09AB70D5A8C7");
+
+    static final int NONCE_LENGTH = 16;
+
+    static final int HMAC_LENGTH = 64;
+
+    static final int NONCE_OFFSET = 16;
+
+    static final int HMAC_OFFSET = NONCE_OFFSET + NONCE_LENGTH;
+
+    static final int LENGTH = HMAC_OFFSET + HMAC_LENGTH; // 96
+
+    private LockUnlock() { }
+
+    static boolean isValid(byte[] bytes) { return bytes != null && bytes.length == LENGTH; }
+
+    static long keyMostSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset); }
+
+    static long keyLeastSignificantBits(byte[] bytes, int offset) { return BigEndian.readLong(bytes, offset + 8); }
+}
+
+/**
+ * Framing of values longer than one write, see {@link LongWrite}.
+ *
+ * Chunks are written without response as offset (2) + data, and may arrive more than once.
+ * The transfer ends with a write with response of the commit marker (2) + value length (2) + CRC-32 of the value (4),
+ * which the lock acknowledges once the reassembled value matches.
+ *
+ * lockd does not reassemble transfers yet, so this is only used with {@link LockManager#setChunkedWrites(boolean)}.
+ */
+final class LockTransfer {
+
+    static final int OFFSET_LENGTH = 2;
+
+    static final int COMMIT_MARKER = 0xFFFF;
+
+    static final int COMMIT_LENGTH = 8;
+
+    /** The longest value that can be transferred, offsets must stay below the commit marker. */
+    static final int MAX_LENGTH = COMMIT_MARKER;
+
+    private LockTransfer() { }
+
+    static boolean isCommit(byte[] bytes) {
+
+        return bytes != null && bytes.length == COMMIT_LENGTH && BigEndian.readUnsignedShort(bytes, 0) == COMMIT_MARKER;
+    }
+
+    static int chunkOffset(byte[] bytes) { return BigEndian.readUnsignedShort(bytes, 0); }
+
+    static int commitLength(byte[] bytes) { return BigEndian.readUnsignedShort(bytes, 2); }
+
+    static int commitChecksum(byte[] bytes) { return BigEndian.readInt(bytes, 4); }
+
+    /** Writes the chunk of the value starting at the offset, the buffer must be {@code OFFSET_LENGTH + length} long. */
+    static int encodeChunk(byte[] value, int offset, int length, byte[] buffer) {
+
+        BigEndian.writeShort(offset, buffer, 0);
+
+        System.arraycopy(value, offset, buffer, OFFSET_LENGTH, length);
+
+        return OFFSET_LENGTH + length;
+    }
+
+    static int encodeCommit(int length, int checksum, byte[] buffer) {
+
+        BigEndian.writeShort(COMMIT_MARKER, buffer, 0);
+        BigEndian.writeShort(length, buffer, 2);
+        BigEndian.writeInt(checksum, buffer, 4);
+
+        return COMMIT_LENGTH;
+    }
+
+    static int checksum(byte[] value, int offset, int length) {
+
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+        crc.update(value, offset, length);
+
+        return (int) crc.getValue();
+    }
+}
+
+/**
+ * Big endian reads and writes on byte arrays, without wrapping them in a {@link java.nio.ByteBuffer}.
+ */
+final class BigEndian {
+
+    private BigEndian() { }
+
+    static long readLong(byte[] bytes, int offset) {
+
+        long value = 0;
+
+        for (int i = 0; i < 8; i++) value = (value << 8) | (bytes[offset + i] & 0xFF);
+
+        return value;
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    static int readUnsignedShort(byte[] bytes, int offset) {
+
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    static void writeLong(long value, byte[] buffer, int offset) {
+
+        for (int i = 7; i >= 0; i--) {
+
+            buffer[offset + i] = (byte) value;
+
+            value >>>= 8;
+        }
+    }
+
+    static void writeInt(int value, byte[] buffer, int offset) {
+
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static void writeShort(int value, byte[] buffer, int offset) {
+
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
 }
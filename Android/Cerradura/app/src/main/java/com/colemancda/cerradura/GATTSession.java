@@ -0,0 +1,45 @@
+package com.colemancda.cerradura;
+
+/**
+ * The parameters negotiated on one connection to a lock, so transfers can size their writes to them.
+ *
+ * Every connection starts out with the default MTU and balanced priority, which is also
+ * what remains before API 21, where neither can be changed.
+ */
+final class GATTSession {
+
+    /** The ATT header of a write request: opcode and attribute handle. */
+    static final int WRITE_HEADER_LENGTH = 3;
+
+    final String address;
+
+    private volatile int mtu = BluetoothTransport.DEFAULT_MTU;
+
+    private volatile int connectionPriority = BluetoothTransport.CONNECTION_PRIORITY_BALANCED;
+
+    /** Whether an MTU request is waiting for its response, as opposed to an exchange started by the lock. */
+    volatile boolean negotiatingMtu = false;
+
+    /** Whether the MTU was negotiated, or at least tried, e.g. not for connections made to probe a peripheral. */
+    volatile boolean mtuNegotiated = false;
+
+    GATTSession(String address) {
+
+        this.address = address;
+    }
+
+    /**
+     * Methods
+     */
+
+    int getMtu() { return mtu; }
+
+    void setMtu(int mtu) { this.mtu = Math.max(BluetoothTransport.DEFAULT_MTU, Math.min(mtu, BluetoothTransport.MAX_MTU)); }
+
+    int getConnectionPriority() { return connectionPriority; }
+
+    void setConnectionPriority(int connectionPriority) { this.connectionPriority = connectionPriority; }
+
+    /** The longest value that fits in a single write request. */
+    int maxWriteLength() { return mtu - WRITE_HEADER_LENGTH; }
+}
@@ -0,0 +1,470 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous discovery of nearby locks.
+ *
+ * While running the radio keeps scanning. New lock candidates are identified from the identity cache,
+ * or probed in the background, and published as they appear. Locks that stop advertising for longer
+ * than the expiry are removed. Listeners receive the current locks when added, followed by
+ * incremental changes, so a screen can show live state without starting a scan.
+ *
+ * Some stacks only report the first advertisement of each peripheral per scan. Until a repeated
+ * advertisement shows the stack reports every one, the scan is restarted every {@link #SCAN_RESTART_INTERVAL}
+ * and a peripheral is only removed once it missed a whole scan, so removals can take up to two intervals.
+ */
+public final class LockDiscovery implements BluetoothTransport.ScanCallback {
+
+    /**
+     * Constants
+     */
+
+    /** How long a lock can go without advertising before it is removed, in milliseconds. */
+    public static final long EXPIRY = 10 * 1000;
+
+    /** How long before a peripheral that could not be identified as a lock is probed again, in milliseconds. */
+    public static final long REJECTION_INTERVAL = 60 * 1000;
+
+    private static final long EXPIRY_CHECK_INTERVAL = 1000;
+
+    /**
+     * The shortest time between restarts of the scan on stacks that filter duplicate advertisements, in milliseconds.
+     * Android 7 and later silently throttle apps that start more than 5 scans in 30 seconds.
+     */
+    public static final long SCAN_RESTART_INTERVAL = 30 * 1000;
+
+    /**
+     * Properties
+     */
+
+    private final LockManager manager;
+
+    private final BluetoothTransport transport;
+
+    private final long expiry;
+
+    private final long restartInterval;
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /** The lock candidates currently advertising. */
+    private final ScanTable<String> seen = new ScanTable<String>(64);
+
+    /** The nearby locks by packed address, in the order they were found. */
+    private final LinkedHashMap<Long, LockManager.Lock> locks = new LinkedHashMap<Long, LockManager.Lock>();
+
+    private final Set<Long> probing = new HashSet<Long>();
+
+    /** When each peripheral was last found not to be a lock. */
+    private final Map<Long, Long> rejected = new HashMap<Long, Long>();
+
+    private boolean running = false;
+
+    private ExecutorService probes;
+
+    private ScheduledExecutorService maintenance;
+
+    private ScheduledFuture<?> expiryCheck;
+
+    private volatile long scanStarted;
+
+    /** When the scan before the current one started. */
+    private long previousScanStarted;
+
+    /** Whether the stack reported a peripheral twice within one scan, so the scan never needs to be restarted. */
+    private volatile boolean reportsDuplicates;
+
+    /** Receives the advertisements of the running scan, instead of starting a scan of its own. */
+    private volatile BluetoothTransport.ScanCallback observer;
+
+    LockDiscovery(LockManager manager, BluetoothTransport transport, long expiry) {
+
+        this(manager, transport, expiry, SCAN_RESTART_INTERVAL);
+    }
+
+    LockDiscovery(LockManager manager, BluetoothTransport transport, long expiry, long restartInterval) {
+
+        this.manager = manager;
+        this.transport = transport;
+        this.expiry = expiry;
+        this.restartInterval = restartInterval;
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Adds the listener and reports the current locks to it as added. */
+    public void addListener(Listener listener) {
+
+        synchronized (this) {
+
+            if (!listeners.addIfAbsent(listener)) return;
+
+            for (LockManager.Lock lock : locks.values()) listener.onLockAdded(lock);
+        }
+    }
+
+    public void removeListener(Listener listener) { listeners.remove(listener); }
+
+    /** Starts scanning continuously. Does nothing if already running. */
+    public synchronized void start() throws LockManager.LockManagerError {
+
+        if (running) return;
+
+        // drop advertisements recorded after the last stop
+        seen.clear();
+
+        // before starting, advertisements may be reported right away
+        scanStarted = LockManager.now();
+
+        previousScanStarted = scanStarted;
+
+        reportsDuplicates = false;
+
+        if (!transport.startScan(this)) throw new LockManager.LockManagerError("Could not start scan");
+
+        running = true;
+
+        probes = Executors.newFixedThreadPool(manager.getProbeParallelism(), threadFactory("LockDiscovery probe"));
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(threadFactory("LockDiscovery"));
+
+        expiryCheck = maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                expire(LockManager.now());
+            }
+        }, EXPIRY_CHECK_INTERVAL, EXPIRY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+        manager.log("Started lock discovery");
+    }
+
+    /** Stops scanning and removes all locks. */
+    public synchronized void stop() {
+
+        if (!running) return;
+
+        running = false;
+
+        transport.stopScan(this);
+
+        expiryCheck.cancel(false);
+        maintenance.shutdown();
+        probes.shutdownNow();
+
+        seen.clear();
+        probing.clear();
+        rejected.clear();
+
+        List<LockManager.Lock> removed = new ArrayList<LockManager.Lock>(locks.values());
+
+        locks.clear();
+
+        for (LockManager.Lock lock : removed) didRemove(lock);
+
+        manager.log("Stopped lock discovery");
+    }
+
+    public synchronized boolean isRunning() { return running; }
+
+    /** The nearby locks, in the order they were found. */
+    public synchronized List<LockManager.Lock> getLocks() { return new ArrayList<LockManager.Lock>(locks.values()); }
+
+    /** The nearby locks, nearest first by filtered RSSI. */
+    public synchronized List<LockManager.Lock> getNearestLocks() {
+
+        int count = locks.size();
+
+        final long[] addresses = new long[count];
+
+        final float[] rssi = new float[count];
+
+        Integer[] ranking = new Integer[count];
+
+        int i = 0;
+
+        for (long address : locks.keySet()) {
+
+            addresses[i] = address;
+            rssi[i] = seen.filteredRssi(address);
+            ranking[i] = i;
+            i++;
+        }
+
+        Arrays.sort(ranking, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+
+                return Float.compare(rssi[second], rssi[first]);
+            }
+        });
+
+        List<LockManager.Lock> nearest = new ArrayList<LockManager.Lock>(count);
+
+        for (Integer index : ranking) nearest.add(locks.get(addresses[index]));
+
+        return nearest;
+    }
+
+    /** The filtered RSSI of the nearby lock in dBm, or 0 if it is not nearby. */
+    public float getRssi(LockManager.Lock lock) { return seen.filteredRssi(ScanTable.address(lock.address)); }
+
+    /**
+     * Reports every advertisement seen to the observer too, so the radio does not run a second scan.
+     * The observer stops receiving advertisements if discovery stops.
+     *
+     * @return {@code false} if not running.
+     */
+    synchronized boolean observe(BluetoothTransport.ScanCallback observer) {
+
+        if (!running) return false;
+
+        this.observer = observer;
+
+        return true;
+    }
+
+    synchronized void unobserve(BluetoothTransport.ScanCallback observer) {
+
+        if (this.observer == observer) this.observer = null;
+    }
+
+    /**
+     * Keeps discovery from probing the peripheral while a scan sharing the radio probes it, until released.
+     *
+     * @return {@code false} if discovery is probing it already, see {@link #awaitProbe(long, long)}.
+     */
+    synchronized boolean claimProbe(long address) { return probing.add(address); }
+
+    synchronized void releaseProbe(long address) {
+
+        probing.remove(address);
+
+        notifyAll();
+    }
+
+    /**
+     * Waits until the probe of the peripheral finished, for at most the timeout in milliseconds.
+     * A lock it found is in the identity cache.
+     *
+     * @return {@code false} if still probing.
+     */
+    synchronized boolean awaitProbe(long address, long timeout) throws InterruptedException {
+
+        long deadline = LockManager.now() + timeout;
+
+        for (long remaining = timeout; probing.contains(address) && remaining > 0; remaining = deadline - LockManager.now()) wait(remaining);
+
+        return !probing.contains(address);
+    }
+
+    /** Removes the peripherals that have not advertised within the expiry, and forgets old rejections. */
+    synchronized void expire(long now) {
+
+        if (!running) return;
+
+        // a present peripheral is reported at least once per scan, even by stacks that filter duplicates
+        long seenBefore = reportsDuplicates ? now - expiry : Math.min(now - expiry, previousScanStarted);
+
+        for (String device : seen.expire(seenBefore)) {
+
+            LockManager.Lock lock = locks.remove(ScanTable.address(device));
+
+            if (lock != null) didRemove(lock);
+        }
+
+        Iterator<Long> rejectedAt = rejected.values().iterator();
+
+        while (rejectedAt.hasNext()) {
+
+            if (now - rejectedAt.next() >= REJECTION_INTERVAL) rejectedAt.remove();
+        }
+
+        manager.getPeripheralHealth().prune(now);
+
+        // make sure stacks that filter duplicate advertisements report every peripheral again
+        if (!reportsDuplicates && now - scanStarted >= restartInterval) {
+
+            transport.stopScan(this);
+
+            previousScanStarted = scanStarted;
+
+            // advertisements of the stopped scan recorded meanwhile are not duplicates of the new one
+            scanStarted = LockManager.now();
+
+            if (!transport.startScan(this)) manager.log("Could not restart discovery scan");
+        }
+    }
+
+    /**
+     * BluetoothTransport.ScanCallback
+     */
+
+    public void onAdvertisement(String device, int rssi, byte[] scanRecord) {
+
+        BluetoothTransport.ScanCallback observer = this.observer;
+
+        if (observer != null) observer.onAdvertisement(device, rssi, scanRecord);
+
+        if (!AdvertisementParser.isLockCandidate(scanRecord, manager.getStrictAdvertisementFilter())) return;
+
+        long address = ScanTable.address(device);
+
+        long now = LockManager.now();
+
+        // a second advertisement within the scan, the stack does not filter duplicates
+        if (!reportsDuplicates && seen.contains(address) && seen.lastSeen(address) >= scanStarted) {
+
+            reportsDuplicates = true;
+
+            manager.log("Scan reports duplicate advertisements, discovery scan is not restarted");
+        }
+
+        if (seen.record(address, device, rssi, now)) manager.didAdvertise(address, device, scanRecord);
+
+        // every advertisement may probe, so a peripheral that failed or was rejected is probed again once allowed
+        synchronized (this) {
+
+            if (!running || locks.containsKey(address) || probing.contains(address)) return;
+
+            Long rejectedAt = rejected.get(address);
+
+            if (rejectedAt != null && now - rejectedAt < REJECTION_INTERVAL) return;
+
+            // peripherals that keep failing are left alone for longer, without counting each advertisement as skipped
+            if (manager.getPeripheralHealth().isBackingOff(address, now)) return;
+
+            LockIdentityCache.Entry cached = manager.cachedIdentity(address);
+
+            if (cached == null && manager.isKnownNonLock(address)) return;
+
+            if (cached != null) {
+
+                didIdentify(address, new LockManager.Lock(cached.identifier, device, LockStatus.INVALID, cached.model, cached.version));
+
+                if (System.currentTimeMillis() - cached.verified < LockManager.IDENTITY_REVALIDATION_INTERVAL) return;
+            }
+
+            probing.add(address);
+
+            probes.execute(probe(address, device));
+        }
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private Runnable probe(final long address, final String device) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+
+                LockManager.Lock lock = manager.identify(device);
+
+                // persist what the probe learned, scans are not the only ones adding to the caches
+                manager.saveCaches();
+
+                synchronized (LockDiscovery.this) {
+
+                    probing.remove(address);
+
+                    LockDiscovery.this.notifyAll();
+
+                    // stopped or expired while probing
+                    if (!running || !seen.contains(address)) return;
+
+                    if (lock != null) { didIdentify(address, lock); return; }
+
+                    // a failed probe is retried once the peripheral health allows it, a non-lock after the rejection interval
+                    if (manager.getPeripheralHealth().get(device) == null) rejected.put(address, LockManager.now());
+
+                    // the cached identity was dropped because the peripheral is no longer a lock
+                    if (manager.cachedIdentity(address) == null) {
+
+                        LockManager.Lock removed = locks.remove(address);
+
+                        if (removed != null) didRemove(removed);
+                    }
+                }
+            }
+        };
+    }
+
+    /** Must be called while synchronized. */
+    private void didIdentify(long address, LockManager.Lock lock) {
+
+        LockManager.Lock previous = locks.put(address, lock);
+
+        if (previous == null) {
+
+            for (Listener listener : listeners) listener.onLockAdded(lock);
+
+            return;
+        }
+
+        if (previous.UUID.equals(lock.UUID) && previous.status == lock.status
+                && previous.model == lock.model && previous.version == lock.version) return;
+
+        for (Listener listener : listeners) listener.onLockUpdated(previous, lock);
+    }
+
+    /** Must be called while synchronized. */
+    private void didRemove(LockManager.Lock lock) {
+
+        for (Listener listener : listeners) listener.onLockRemoved(lock);
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /**
+     * Receives changes to the nearby locks.
+     *
+     * Callbacks are made on background threads, one at a time and in order.
+     */
+    public interface Listener {
+
+        void onLockAdded(LockManager.Lock lock);
+
+        /** The lock information changed, e.g. the status was read after the lock was reported from the identity cache. */
+        void onLockUpdated(LockManager.Lock previous, LockManager.Lock lock);
+
+        /** The lock stopped advertising, is no longer a lock, or discovery stopped. */
+        void onLockRemoved(LockManager.Lock lock);
+    }
+}
@@ -0,0 +1,195 @@
+package com.colemancda.cerradura;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Persistent cache of the lock identity behind each peripheral address,
+ * so known locks can be reported from their advertisement without connecting.
+ *
+ * File format (big endian): magic, format version, entry count, then fixed size entries of
+ * address (8), identifier (16), model (1), version (8), verification time (8).
+ */
+final class LockIdentityCache {
+
+    private static final int MAGIC = 0x4C4B4943; // "LKIC"
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** Model value of an entry whose model has not been read. */
+    static final int UNKNOWN_MODEL = -1;
+
+    private final File file;
+
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    private boolean loaded = false;
+
+    private boolean dirty = false;
+
+    LockIdentityCache(File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Methods
+     */
+
+    /** The cached identity for the peripheral, or {@code null}. Loads the cache file on first access. */
+    synchronized Entry get(long address) {
+
+        load();
+
+        return entries.get(address);
+    }
+
+    /**
+     * Stores the identity read from the peripheral, replacing any cached value.
+     *
+     * @return The previous entry if it disagreed with the new identifier, otherwise {@code null}.
+     */
+    synchronized Entry put(long address, UUID identifier, int model, long version, long now) {
+
+        load();
+
+        Entry entry = new Entry(address, identifier, model, version, now);
+
+        Entry previous = entries.put(address, entry);
+
+        dirty = true;
+
+        return (previous != null && !previous.identifier.equals(identifier)) ? previous : null;
+    }
+
+    synchronized void remove(long address) {
+
+        load();
+
+        if (entries.remove(address) != null) dirty = true;
+    }
+
+    synchronized int size() {
+
+        load();
+
+        return entries.size();
+    }
+
+    /** Writes the cache to disk if it changed. */
+    synchronized void save() throws IOException {
+
+        if (!dirty || file == null) return;
+
+        File temporary = new File(file.getPath() + ".tmp");
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+
+        try {
+
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(entries.size());
+
+            for (Entry entry : entries.values()) {
+
+                output.writeLong(entry.address);
+                output.writeLong(entry.identifier.getMostSignificantBits());
+                output.writeLong(entry.identifier.getLeastSignificantBits());
+                output.writeByte(entry.model);
+                output.writeLong(entry.version);
+                output.writeLong(entry.verified);
+            }
+        }
+
+        finally { output.close(); }
+
+        if (!temporary.renameTo(file)) throw new IOException("Could not replace " + file);
+
+        dirty = false;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private void load() {
+
+        if (loaded) return;
+
+        loaded = true;
+
+        if (file == null) return;
+
+        DataInputStream input;
+
+        try { input = new DataInputStream(new BufferedInputStream(new FileInputStream(file))); }
+
+        catch (FileNotFoundException e) { return; }
+
+        try {
+
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return;
+
+            int count = input.readInt();
+
+            for (int i = 0; i < count; i++) {
+
+                long address = input.readLong();
+                UUID identifier = new UUID(input.readLong(), input.readLong());
+                int model = input.readByte();
+                long version = input.readLong();
+                long verified = input.readLong();
+
+                entries.put(address, new Entry(address, identifier, model, version, verified));
+            }
+        }
+
+        // a truncated or corrupt cache is simply rebuilt
+        catch (IOException e) { entries.clear(); }
+
+        finally {
+
+            try { input.close(); }
+
+            catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    static final class Entry {
+
+        final long address;
+
+        final UUID identifier;
+
+        /** The lock model, or {@link #UNKNOWN_MODEL}. */
+        final int model;
+
+        final long version;
+
+        /** When the identity was last read from the peripheral. */
+        final long verified;
+
+        Entry(long address, UUID identifier, int model, long version, long verified) {
+
+            this.address = address;
+            this.identifier = identifier;
+            this.model = model;
+            this.version = version;
+            this.verified = verified;
+        }
+    }
+}
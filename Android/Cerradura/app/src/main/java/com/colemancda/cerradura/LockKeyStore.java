@@ -0,0 +1,599 @@
+package com.colemancda.cerradura;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Persistent store of the keys this device holds, indexed by lock.
+ *
+ * The file is memory mapped and made of fixed size records, so adding a key appends one record,
+ * revoking a key flips one byte in place, and opening the store only reads the lock identifier and flags
+ * of each record to build the index. Records of replaced and revoked keys stay in the file until
+ * the store would grow, at which point it is compacted instead if they take up half of it.
+ *
+ * File format (big endian): magic, format version, record count, reserved, then records of
+ * lock (16), key (16), secret (32), creation date (8), flags (1), name length (1), permission (20),
+ * reserved (2), name (64). The file is preallocated past the last record, the record count is written
+ * after the record, so an interrupted append is ignored.
+ */
+public final class LockKeyStore {
+
+    /**
+     * Constants
+     */
+
+    private static final int MAGIC = 0x4C4B4B53; // "LKKS"
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_LENGTH = 16;
+
+    private static final int COUNT_OFFSET = 8;
+
+    /** The maximum length of a key name in UTF-8, as on the lock. */
+    public static final int NAME_MAX_LENGTH = 64;
+
+    /** The length of an encoded permission, as on the lock. */
+    public static final int PERMISSION_LENGTH = 20;
+
+    static final int RECORD_LENGTH = 160;
+
+    private static final int LOCK_OFFSET = 0;
+
+    private static final int KEY_OFFSET = 16;
+
+    private static final int SECRET_OFFSET = 32;
+
+    private static final int DATE_OFFSET = 64;
+
+    private static final int FLAGS_OFFSET = 72;
+
+    private static final int NAME_LENGTH_OFFSET = 73;
+
+    private static final int PERMISSION_OFFSET = 74;
+
+    private static final int NAME_OFFSET = 96;
+
+    private static final byte FLAG_REVOKED = 0x01;
+
+    /** The number of records the file is first sized for. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int EMPTY_SLOT = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Properties
+     */
+
+    /** The store file, or {@code null} to only keep keys in memory. */
+    private final File file;
+
+    private RandomAccessFile randomAccessFile;
+
+    private ByteBuffer records;
+
+    private int count = 0;
+
+    private int capacity = 0;
+
+    /** The number of records that hold the current, unrevoked key of their lock. */
+    private int live = 0;
+
+    /** Open addressing table of lock identifier to the index of its latest record. */
+    private long[] slotMostSignificantBits = new long[0];
+
+    private long[] slotLeastSignificantBits = new long[0];
+
+    private int[] slotRecords = new int[0];
+
+    /** The number of used slots. */
+    private int locks = 0;
+
+    private boolean opened = false;
+
+    public LockKeyStore(File file) {
+
+        this.file = file;
+    }
+
+    /**
+     * Methods
+     */
+
+    /** The store file, or {@code null} if keys are only kept in memory. */
+    public File getFile() { return file; }
+
+    /**
+     * Maps the store file and indexes it. Every other method opens the store on first use,
+     * call this from a background thread early so the first unlock does not.
+     */
+    public synchronized void open() throws IOException {
+
+        if (opened) return;
+
+        if (file == null) {
+
+            map(INITIAL_CAPACITY);
+
+            opened = true;
+
+            return;
+        }
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+
+            if (randomAccessFile.length() < HEADER_LENGTH) {
+
+                map(INITIAL_CAPACITY);
+
+                records.putInt(0, MAGIC);
+                records.putInt(4, FORMAT_VERSION);
+            }
+
+            else {
+
+                map((int) ((randomAccessFile.length() - HEADER_LENGTH) / RECORD_LENGTH));
+
+                if (records.getInt(0) != MAGIC || records.getInt(4) != FORMAT_VERSION) throw new IOException("Invalid key store " + file);
+            }
+
+            count = Math.min(Math.max(records.getInt(COUNT_OFFSET), 0), capacity);
+
+            index();
+        }
+
+        catch (IOException e) {
+
+            close();
+
+            throw e;
+        }
+
+        opened = true;
+    }
+
+    /** Releases the store file. The store opens again on next use, a store without a file starts out empty. */
+    public synchronized void close() {
+
+        if (randomAccessFile != null) {
+
+            try { randomAccessFile.close(); }
+
+            catch (IOException ignored) { }
+        }
+
+        randomAccessFile = null;
+        records = null;
+        count = capacity = live = locks = 0;
+        slotMostSignificantBits = slotLeastSignificantBits = new long[0];
+        slotRecords = new int[0];
+        opened = false;
+    }
+
+    /** The current key for the lock, or {@code null} if there is none or it was revoked. */
+    public synchronized Key get(UUID lock) throws IOException {
+
+        open();
+
+        int record = record(lock);
+
+        if (record == EMPTY_SLOT || isRevoked(record)) return null;
+
+        return read(record);
+    }
+
+    /** Whether there is a current key for the lock, without reading it. */
+    public synchronized boolean contains(UUID lock) throws IOException {
+
+        open();
+
+        int record = record(lock);
+
+        return record != EMPTY_SLOT && !isRevoked(record);
+    }
+
+    /** Stores the key, replacing the key for the same lock. */
+    public synchronized void put(Key key) throws IOException {
+
+        open();
+
+        if (count == capacity) {
+
+            // compacting keeps the file from growing with replaced and revoked keys
+            if (count - live >= capacity / 2) compact();
+
+            else map(capacity * 2);
+        }
+
+        int record = count;
+
+        int offset = offset(record);
+
+        putUUID(offset + LOCK_OFFSET, key.lock);
+        putUUID(offset + KEY_OFFSET, key.identifier);
+
+        records.position(offset + SECRET_OFFSET);
+        records.put(key.secret);
+        records.position(0);
+
+        records.putLong(offset + DATE_OFFSET, key.created);
+        records.put(offset + FLAGS_OFFSET, (byte) 0);
+
+        byte[] name = key.name.getBytes(UTF8);
+
+        records.put(offset + NAME_LENGTH_OFFSET, (byte) name.length);
+
+        records.position(offset + PERMISSION_OFFSET);
+        records.put(key.permission);
+        records.position(offset + NAME_OFFSET);
+        records.put(name);
+        records.put(new byte[NAME_MAX_LENGTH - name.length]);
+        records.position(0);
+
+        // the record only counts once it is complete
+        force();
+
+        count++;
+
+        records.putInt(COUNT_OFFSET, count);
+
+        force();
+
+        int previous = index(key.lock, record);
+
+        if (previous == EMPTY_SLOT || isRevoked(previous)) live++;
+    }
+
+    /**
+     * Revokes the current key for the lock.
+     *
+     * @return {@code false} if there was no key to revoke.
+     */
+    public synchronized boolean revoke(UUID lock) throws IOException {
+
+        open();
+
+        int record = record(lock);
+
+        if (record == EMPTY_SLOT || isRevoked(record)) return false;
+
+        int offset = offset(record) + FLAGS_OFFSET;
+
+        records.put(offset, (byte) (records.get(offset) | FLAG_REVOKED));
+
+        force();
+
+        live--;
+
+        return true;
+    }
+
+    /** The number of current keys. */
+    public synchronized int size() throws IOException {
+
+        open();
+
+        return live;
+    }
+
+    /** The current keys, in the order they were stored. */
+    public synchronized List<Key> keys() throws IOException {
+
+        open();
+
+        ArrayList<Key> keys = new ArrayList<Key>(live);
+
+        for (int record = 0; record < count; record++) {
+
+            if (!isRevoked(record) && record(lock(record)) == record) keys.add(read(record));
+        }
+
+        return keys;
+    }
+
+    /** Rewrites the store with only the current keys. */
+    public synchronized void compact() throws IOException {
+
+        open();
+
+        int newCapacity = INITIAL_CAPACITY;
+
+        while (newCapacity < live * 2) newCapacity *= 2;
+
+        ByteBuffer compacted = ByteBuffer.allocate(HEADER_LENGTH + newCapacity * RECORD_LENGTH);
+
+        compacted.putInt(0, MAGIC);
+        compacted.putInt(4, FORMAT_VERSION);
+
+        int newCount = 0;
+
+        for (int record = 0; record < count; record++) {
+
+            if (isRevoked(record) || record(lock(record)) != record) continue;
+
+            ByteBuffer source = records.duplicate();
+
+            source.limit(offset(record) + RECORD_LENGTH);
+            source.position(offset(record));
+
+            compacted.position(HEADER_LENGTH + newCount * RECORD_LENGTH);
+            compacted.put(source);
+
+            newCount++;
+        }
+
+        compacted.putInt(COUNT_OFFSET, newCount);
+
+        compacted.position(0);
+
+        if (file == null) { records = compacted; }
+
+        else {
+
+            File temporary = new File(file.getPath() + ".tmp");
+
+            RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+
+            try {
+
+                output.setLength(compacted.capacity());
+
+                output.getChannel().write(compacted, 0);
+
+                output.getChannel().force(true);
+            }
+
+            finally { output.close(); }
+
+            randomAccessFile.close();
+
+            if (!temporary.renameTo(file)) throw new IOException("Could not replace " + file);
+
+            randomAccessFile = new RandomAccessFile(file, "rw");
+
+            capacity = 0;
+        }
+
+        count = newCount;
+
+        map(newCapacity);
+
+        index();
+    }
+
+    /**
+     * Private Methods
+     */
+
+    /** Resizes the store for the specified number of records. */
+    private void map(int newCapacity) throws IOException {
+
+        int length = HEADER_LENGTH + newCapacity * RECORD_LENGTH;
+
+        if (file == null) {
+
+            ByteBuffer resized = ByteBuffer.allocate(length);
+
+            if (records != null) resized.put(records.array(), 0, Math.min(records.capacity(), length));
+
+            resized.position(0);
+
+            records = resized;
+        }
+
+        else {
+
+            if (randomAccessFile.length() < length) randomAccessFile.setLength(length);
+
+            records = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+
+        capacity = newCapacity;
+    }
+
+    private void force() {
+
+        if (records instanceof MappedByteBuffer) ((MappedByteBuffer) records).force();
+    }
+
+    /** Rebuilds the index by reading the lock and flags of every record, later records replace earlier ones. */
+    private void index() {
+
+        int slots = 16;
+
+        while (slots < count * 2) slots *= 2;
+
+        slotMostSignificantBits = new long[slots];
+        slotLeastSignificantBits = new long[slots];
+        slotRecords = new int[slots];
+
+        Arrays.fill(slotRecords, EMPTY_SLOT);
+
+        locks = 0;
+        live = 0;
+
+        for (int record = 0; record < count; record++) index(lock(record), record);
+
+        for (int slot = 0; slot < slots; slot++) {
+
+            if (slotRecords[slot] != EMPTY_SLOT && !isRevoked(slotRecords[slot])) live++;
+        }
+    }
+
+    /**
+     * Points the lock at the record.
+     *
+     * @return The record the lock pointed at before, or {@link #EMPTY_SLOT}.
+     */
+    private int index(UUID lock, int record) {
+
+        if ((locks + 1) * 2 > slotRecords.length) resizeIndex();
+
+        int slot = slot(lock.getMostSignificantBits(), lock.getLeastSignificantBits());
+
+        int previous = slotRecords[slot];
+
+        if (previous == EMPTY_SLOT) {
+
+            slotMostSignificantBits[slot] = lock.getMostSignificantBits();
+            slotLeastSignificantBits[slot] = lock.getLeastSignificantBits();
+
+            locks++;
+        }
+
+        slotRecords[slot] = record;
+
+        return previous;
+    }
+
+    private void resizeIndex() {
+
+        long[] mostSignificantBits = slotMostSignificantBits;
+        long[] leastSignificantBits = slotLeastSignificantBits;
+        int[] records = slotRecords;
+
+        int slots = Math.max(16, records.length * 2);
+
+        slotMostSignificantBits = new long[slots];
+        slotLeastSignificantBits = new long[slots];
+        slotRecords = new int[slots];
+
+        Arrays.fill(slotRecords, EMPTY_SLOT);
+
+        for (int i = 0; i < records.length; i++) {
+
+            if (records[i] == EMPTY_SLOT) continue;
+
+            int slot = slot(mostSignificantBits[i], leastSignificantBits[i]);
+
+            slotMostSignificantBits[slot] = mostSignificantBits[i];
+            slotLeastSignificantBits[slot] = leastSignificantBits[i];
+            slotRecords[slot] = records[i];
+        }
+    }
+
+    /** The slot of the lock, or the empty slot where it belongs. */
+    private int slot(long mostSignificantBits, long leastSignificantBits) {
+
+        long hash = (mostSignificantBits ^ leastSignificantBits) * 0x9E3779B97F4A7C15L;
+
+        int mask = slotRecords.length - 1;
+
+        int slot = (int) (hash >>> 32) & mask;
+
+        while (slotRecords[slot] != EMPTY_SLOT
+                && (slotMostSignificantBits[slot] != mostSignificantBits || slotLeastSignificantBits[slot] != leastSignificantBits)) {
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /** The latest record of the lock, or {@link #EMPTY_SLOT}. */
+    private int record(UUID lock) {
+
+        if (slotRecords.length == 0) return EMPTY_SLOT;
+
+        return slotRecords[slot(lock.getMostSignificantBits(), lock.getLeastSignificantBits())];
+    }
+
+    private static int offset(int record) { return HEADER_LENGTH + record * RECORD_LENGTH; }
+
+    private boolean isRevoked(int record) { return (records.get(offset(record) + FLAGS_OFFSET) & FLAG_REVOKED) != 0; }
+
+    private UUID lock(int record) { return getUUID(offset(record) + LOCK_OFFSET); }
+
+    private Key read(int record) {
+
+        int offset = offset(record);
+
+        byte[] secret = new byte[LockAuthenticator.KEY_LENGTH];
+        byte[] permission = new byte[PERMISSION_LENGTH];
+        byte[] name = new byte[records.get(offset + NAME_LENGTH_OFFSET) & 0xFF];
+
+        records.position(offset + SECRET_OFFSET);
+        records.get(secret);
+        records.position(offset + PERMISSION_OFFSET);
+        records.get(permission);
+        records.position(offset + NAME_OFFSET);
+        records.get(name);
+        records.position(0);
+
+        return new Key(getUUID(offset + LOCK_OFFSET), getUUID(offset + KEY_OFFSET), secret, permission,
+                new String(name, UTF8), records.getLong(offset + DATE_OFFSET));
+    }
+
+    private UUID getUUID(int offset) { return new UUID(records.getLong(offset), records.getLong(offset + 8)); }
+
+    private void putUUID(int offset, UUID value) {
+
+        records.putLong(offset, value.getMostSignificantBits());
+        records.putLong(offset + 8, value.getLeastSignificantBits());
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /** A key to a lock, as created by the lock. */
+    public static final class Key {
+
+        /** The permission types, the first byte of the permission. */
+        public static final int PERMISSION_OWNER = 0;
+
+        public static final int PERMISSION_ADMIN = 1;
+
+        public static final int PERMISSION_ANYTIME = 2;
+
+        public static final int PERMISSION_SCHEDULED = 3;
+
+        /** The lock the key opens. */
+        public final UUID lock;
+
+        /** The key identifier. */
+        public final UUID identifier;
+
+        /** The 32 byte key secret. */
+        public final byte[] secret;
+
+        /** The permission encoded as on the lock: type, expiry, schedule. */
+        public final byte[] permission;
+
+        public final String name;
+
+        /** When the key was created, in milliseconds since 1970. */
+        public final long created;
+
+        public Key(UUID lock, UUID identifier, byte[] secret, byte[] permission, String name, long created) {
+
+            if (secret.length != LockAuthenticator.KEY_LENGTH) throw new IllegalArgumentException("Invalid key length " + secret.length);
+
+            if (permission.length != PERMISSION_LENGTH) throw new IllegalArgumentException("Invalid permission length " + permission.length);
+
+            if (name.getBytes(UTF8).length > NAME_MAX_LENGTH) throw new IllegalArgumentException("Key name is longer than " + NAME_MAX_LENGTH + " bytes");
+
+            this.lock = lock;
+            this.identifier = identifier;
+            this.secret = secret;
+            this.permission = permission;
+            this.name = name;
+            this.created = created;
+        }
+
+        public int getPermissionType() { return permission[0]; }
+    }
+}
@@ -0,0 +1,216 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The smallest set of item changes that turns one list of nearby locks into another, keyed by lock UUID,
+ * so a list view animates the few rows that changed instead of rebinding all of them.
+ *
+ * Removals are reported first, then moves and insertions, then changes at their final positions, which is
+ * the order a RecyclerView adapter expects them in. Only the locks outside the longest run that kept its
+ * order are moved, so one lock passing another moves a single row. A change of only the RSSI or the status
+ * is reported with a payload, so the row updates its text without being bound again.
+ */
+final class LockListDiff {
+
+    /**
+     * Constants
+     */
+
+    /** Payload flags of {@link Updates#changed(int, int)}. */
+    static final int RSSI_CHANGED = 1;
+
+    static final int STATUS_CHANGED = 1 << 1;
+
+    /** The lock itself changed, e.g. its version, so the row is bound again. */
+    static final int FULL_CHANGE = 0;
+
+    private LockListDiff() { }
+
+    /**
+     * Methods
+     */
+
+    /** Reports the changes from the old rows to the new rows, in the order they must be applied. */
+    static void dispatch(List<Row> oldRows, List<Row> newRows, Updates updates) {
+
+        HashMap<UUID, Integer> newPositions = new HashMap<UUID, Integer>(newRows.size() * 2);
+
+        for (int i = 0; i < newRows.size(); i++) newPositions.put(newRows.get(i).lock.UUID, i);
+
+        for (int i = oldRows.size() - 1; i >= 0; i--) {
+
+            if (newPositions.containsKey(oldRows.get(i).lock.UUID)) continue;
+
+            updates.removed(i);
+        }
+
+        // the rows still present in their old order, and their new positions
+        ArrayList<UUID> current = new ArrayList<UUID>(oldRows.size());
+
+        int[] kept = new int[oldRows.size()];
+
+        int keptCount = 0;
+
+        HashMap<UUID, Row> oldByKey = new HashMap<UUID, Row>(oldRows.size() * 2);
+
+        for (Row row : oldRows) {
+
+            Integer position = newPositions.get(row.lock.UUID);
+
+            if (position == null) continue;
+
+            oldByKey.put(row.lock.UUID, row);
+
+            current.add(row.lock.UUID);
+
+            kept[keptCount++] = position;
+        }
+
+        boolean[] stable = new boolean[newRows.size()];
+
+        for (int position : longestIncreasingRun(kept, keptCount)) stable[position] = true;
+
+        // from the end, so the row after the one being placed is always in its final place
+        for (int i = newRows.size() - 1; i >= 0; i--) {
+
+            UUID key = newRows.get(i).lock.UUID;
+
+            if (stable[i]) continue;
+
+            int anchor = i + 1 < newRows.size() ? current.indexOf(newRows.get(i + 1).lock.UUID) : current.size();
+
+            if (!oldByKey.containsKey(key)) {
+
+                current.add(anchor, key);
+
+                updates.inserted(anchor);
+
+                continue;
+            }
+
+            int from = current.indexOf(key);
+
+            int to = from < anchor ? anchor - 1 : anchor;
+
+            // already right before the row after it
+            if (from == to) continue;
+
+            current.add(to, current.remove(from));
+
+            updates.moved(from, to);
+        }
+
+        for (int i = 0; i < newRows.size(); i++) {
+
+            Row row = newRows.get(i);
+
+            Row old = oldByKey.get(row.lock.UUID);
+
+            if (old == null) continue;
+
+            int change = change(old, row);
+
+            if (change != -1) updates.changed(i, change);
+        }
+    }
+
+    /**
+     * The payload of the change from the old row to the new row,
+     * {@link #FULL_CHANGE} to bind it again, or -1 if it did not change.
+     */
+    static int change(Row old, Row row) {
+
+        LockManager.Lock previous = old.lock, lock = row.lock;
+
+        if (!previous.address.equals(lock.address) || previous.model != lock.model || previous.version != lock.version) return FULL_CHANGE;
+
+        int change = 0;
+
+        if (old.rssi != row.rssi) change |= RSSI_CHANGED;
+
+        if (old.status != row.status) change |= STATUS_CHANGED;
+
+        return change != 0 ? change : -1;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    /** The values of the longest increasing subsequence of the first count values. */
+    private static int[] longestIncreasingRun(int[] values, int count) {
+
+        // tails[k] is the index of the smallest last value of an increasing run of length k + 1
+        int[] tails = new int[count];
+
+        int[] previous = new int[count];
+
+        int length = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            int low = 0, high = length;
+
+            while (low < high) {
+
+                int middle = (low + high) >>> 1;
+
+                if (values[tails[middle]] < values[i]) low = middle + 1;
+
+                else high = middle;
+            }
+
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+
+            tails[low] = i;
+
+            if (low == length) length++;
+        }
+
+        int[] run = new int[length];
+
+        for (int i = length - 1, index = length > 0 ? tails[length - 1] : -1; i >= 0; i--, index = previous[index]) run[i] = values[index];
+
+        return run;
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /** A lock as shown in the list. */
+    static final class Row {
+
+        final LockManager.Lock lock;
+
+        /** The filtered RSSI, rounded to a whole dBm so noise below that does not update the row. */
+        final int rssi;
+
+        /** The latest status, which notifications may have changed since the lock was discovered. */
+        final int status;
+
+        Row(LockManager.Lock lock, int rssi, int status) {
+
+            this.lock = lock;
+            this.rssi = rssi;
+            this.status = status;
+        }
+    }
+
+    /** Receives the changes, e.g. a RecyclerView adapter forwarding them to its notify methods. */
+    interface Updates {
+
+        void inserted(int position);
+
+        void removed(int position);
+
+        void moved(int from, int to);
+
+        /** @param payload The {@link #RSSI_CHANGED} and {@link #STATUS_CHANGED} flags, or {@link #FULL_CHANGE}. */
+        void changed(int position, int payload);
+    }
+}
@@ -1,356 +1,1948 @@
 package com.colemancda.cerradura;
 
-import android.app.Service;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.content.Context;
-import android.content.Intent;
-import android.os.Binder;
-import android.os.IBinder;
-import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by coleman on 6/15/16.
+ *
+ * Scans for and identifies locks. Platform independent, the Bluetooth stack is provided by a {@link BluetoothTransport}.
  */
-public final class LockManager extends Service implements BluetoothAdapter.LeScanCallback {
+public final class LockManager implements BluetoothTransport.ScanCallback {
 
     /**
      * Singleton
      */
-    private static LockManager shared = new LockManager();
+    private static LockManager shared;
 
-    private LockManager() {
+    /** Creates the shared instance with the specified transport. Does nothing if already initialized. */
+    static synchronized void initialize(BluetoothTransport transport) {
 
-        Log.v(TAG, "Initialized LockManager");
+        if (shared == null) shared = new LockManager(transport);
     }
 
-    public static LockManager shared() {
+    public static synchronized LockManager shared() {
 
-        assert shared.adapter != null;
+        if (shared == null) throw new IllegalStateException("LockManager has not been initialized");
 
         return shared;
     }
 
+    LockManager(BluetoothTransport transport) {
+
+        this.transport = transport;
+
+        this.discovery = new LockDiscovery(this, transport, LockDiscovery.EXPIRY);
+
+        // seeding the random generator can take a while, dont do it on the first unlock
+        maintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                authenticator.refill();
+            }
+        });
+
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                connectionPool.evictIdle(now());
+            }
+        }, CONNECTION_IDLE_TIMEOUT / 2, CONNECTION_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Properties
+     */
+
+    private final BluetoothTransport transport;
+
+    private volatile Logger logger;
+
+    public void setLogger(Logger logger) { this.logger = logger; }
+
+    /** The locks found by the current or last scan, updated as each lock is identified. */
+    public final List<Lock> foundLocks = new CopyOnWriteArrayList<Lock>();
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /** Guards starting and ending scans, so the radio only runs one at a time. */
+    private final Object scanState = new Object();
+
+    /** The scan in progress, joined by the scans requested meanwhile. */
+    private volatile ScanFlight flight;
+
+    public final Boolean getIsScanning() { return flight != null;  }
+
+    /** The addresses of the peripherals seen by the current scan. */
+    private final ScanTable<String> scanResults = new ScanTable<String>(64);
+
+    private volatile ScanSummary lastScan;
+
+    /** What the last completed scan saw, or {@code null} before the first scan. */
+    ScanSummary getLastScan() { return lastScan; }
+
+    private final ScanScheduler scanScheduler = new ScanScheduler(this);
+
+    private final LockDiscovery discovery;
+
+    /** Keeps a live view of the nearby locks while running. */
+    public final LockDiscovery getDiscovery() { return discovery; }
+
+    /** Schedules duty-cycled scans adapted to how often the surroundings change. */
+    public final ScanScheduler getScanScheduler() { return scanScheduler; }
+
+    /** A filtered RSSI typical of a phone held within about a metre of a lock, in dBm. */
+    public final static float NEAR_RSSI = -60;
+
+    /** Advertisements needed before the filtered RSSI of a peripheral is trusted for proximity. */
+    final static int PROXIMITY_SAMPLES = 2;
+
+    /**
+     * Most Android controllers cannot hold more than 7 simultaneous LE connections.
+     * Every connection opened here takes one of this many permits until closed, whether it probes, is pooled or subscribed.
+     */
+    public final static int MAX_CONCURRENT_CONNECTIONS = 7;
+
+    private final Semaphore connectionPermits = new Semaphore(MAX_CONCURRENT_CONNECTIONS);
+
+    /** The connections holding a permit. */
+    private final Set<BluetoothTransport.Connection> permittedConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<BluetoothTransport.Connection, Boolean>());
+
+    private volatile int probeParallelism = 4;
+
+    /** The number of peripherals probed at the same time after a scan window. */
+    public final int getProbeParallelism() { return probeParallelism; }
+
+    public final void setProbeParallelism(int probeParallelism) {
+
+        if (probeParallelism < 1) throw new IllegalArgumentException("Probe parallelism must be at least 1");
+
+        this.probeParallelism = Math.min(probeParallelism, MAX_CONCURRENT_CONNECTIONS);
+    }
+
+    private volatile boolean strictAdvertisementFilter = false;
+
+    /**
+     * Whether only peripherals that advertise the lock service or lock beacon are probed.
+     * Otherwise peripherals are probed unless their advertisement rules them out.
+     */
+    public final boolean getStrictAdvertisementFilter() { return strictAdvertisementFilter; }
+
+    public final void setStrictAdvertisementFilter(boolean strict) { strictAdvertisementFilter = strict; }
+
+    private volatile boolean chunkedWrites = false;
+
+    /**
+     * Whether values longer than one write are sent as pipelined {@link LockTransfer} chunks.
+     * This needs a lock daemon that reassembles the chunks, so it is off by default and such values
+     * are written with response, which the stack sends as a long write.
+     */
+    public final boolean getChunkedWrites() { return chunkedWrites; }
+
+    public final void setChunkedWrites(boolean chunked) { chunkedWrites = chunked; }
+
+    /** How long a cached lock identity is trusted before the peripheral is probed again. */
+    public final static long IDENTITY_REVALIDATION_INTERVAL = 7 * 24 * 60 * 60 * 1000L;
+
+    private volatile LockIdentityCache identityCache = new LockIdentityCache(null);
+
+    private volatile NonLockCache nonLockCache = new NonLockCache(null);
+
+    private File cacheDirectory;
+
+    private static final String IDENTITY_CACHE_FILE = "LockIdentities.cache";
+
+    private static final String NON_LOCK_CACHE_FILE = "NonLocks.cache";
+
+    /**
+     * Sets the directory where discovered lock identities, and the peripherals known not to be locks,
+     * are persisted between launches. Until set, they are only cached in memory.
+     * Setting the directory already in use keeps the loaded caches, replaced caches are saved in the background.
+     */
+    public void setCacheDirectory(File directory) {
+
+        final LockIdentityCache previousIdentities;
+
+        final NonLockCache previousNonLocks;
+
+        synchronized (this) {
+
+            if (directory.equals(cacheDirectory)) return;
+
+            cacheDirectory = directory;
+
+            previousIdentities = identityCache;
+            previousNonLocks = nonLockCache;
+
+            identityCache = new LockIdentityCache(new File(directory, IDENTITY_CACHE_FILE));
+            nonLockCache = new NonLockCache(new File(directory, NON_LOCK_CACHE_FILE));
+        }
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                saveCaches(previousIdentities, previousNonLocks, System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Forgets the cached identities and non-locks, in memory and on disk, and the probe failures,
+     * so the next scan probes every peripheral again, e.g. between benchmark invocations.
+     */
+    void clearCaches() {
+
+        synchronized (this) {
+
+            File identities = cacheDirectory != null ? new File(cacheDirectory, IDENTITY_CACHE_FILE) : null;
+            File nonLocks = cacheDirectory != null ? new File(cacheDirectory, NON_LOCK_CACHE_FILE) : null;
+
+            if (identities != null) { identities.delete(); nonLocks.delete(); }
+
+            identityCache = new LockIdentityCache(identities);
+            nonLockCache = new NonLockCache(nonLocks);
+        }
+
+        peripheralHealth.reset();
+    }
+
+    /** Writes the caches to disk if they changed, e.g. after discovery probed a peripheral outside a scan. */
+    void saveCaches() { saveCaches(identityCache, nonLockCache, System.currentTimeMillis()); }
+
+    private void saveCaches(LockIdentityCache identityCache, NonLockCache nonLockCache, long now) {
+
+        try { identityCache.save(); }
+
+        catch (IOException e) { log("Could not save lock identity cache: " + e); }
+
+        try { nonLockCache.save(now); }
+
+        catch (IOException e) { log("Could not save non-lock cache: " + e); }
+    }
+
+    /** The number of times connecting is tried within one probe when it fails with a GATT error, e.g. the common 133. */
+    public final static int PROBE_ATTEMPTS = 2;
+
+    private final PeripheralHealth peripheralHealth = new PeripheralHealth();
+
+    /** The peripherals that failed to be probed, which scans skip until they back off or cool down. */
+    public final PeripheralHealth getPeripheralHealth() { return peripheralHealth; }
+
+    /** The cached identity of the peripheral, or {@code null}. */
+    LockIdentityCache.Entry cachedIdentity(long address) { return identityCache.get(address); }
+
+    /** Whether the peripheral was recently found not to expose the lock service. */
+    boolean isKnownNonLock(long address) { return nonLockCache.contains(address, System.currentTimeMillis()); }
+
+    /** Forgets a cached non-lock that now advertises the lock service, e.g. after a firmware update, so it is probed again. */
+    void didAdvertise(long address, String device, byte[] scanRecord) {
+
+        if (AdvertisementParser.isLockCandidate(scanRecord, true) && nonLockCache.remove(address)) log("Peripheral " + device + " now advertises the lock service");
+    }
+
+    private volatile LockKeyStore keyStore = new LockKeyStore(null);
+
+    /** The keys {@link #unlock(Lock)} looks up. Until set, keys are only kept in memory. */
+    public final LockKeyStore getKeyStore() { return keyStore; }
+
+    /**
+     * Sets the keys {@link #unlock(Lock)} looks up, opens the store in the background and closes the replaced one.
+     * A store of the file already in use is ignored, so an activity setting it on every creation maps it once.
+     */
+    public void setKeyStore(final LockKeyStore keyStore) {
+
+        final LockKeyStore previous;
+
+        synchronized (this) {
+
+            previous = this.keyStore;
+
+            if (previous == keyStore || (keyStore.getFile() != null && keyStore.getFile().equals(previous.getFile()))) return;
+
+            this.keyStore = keyStore;
+        }
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                previous.close();
+
+                try { keyStore.open(); }
+
+                catch (IOException e) { log("Could not open key store: " + e); }
+            }
+        });
+    }
+
+    /** The number of idle connections kept to recently used locks. */
+    public final static int CONNECTION_POOL_CAPACITY = 3;
+
+    /** How long an unused lock connection is kept open, in milliseconds. */
+    public final static long CONNECTION_IDLE_TIMEOUT = 30 * 1000;
+
+    /** The ATT MTU requested on new lock connections, the lock may settle for less. */
+    public final static int PREFERRED_MTU = BluetoothTransport.MAX_MTU;
+
+    private final ConnectionPool<BluetoothTransport.Connection> connectionPool = new ConnectionPool<BluetoothTransport.Connection>(CONNECTION_POOL_CAPACITY, CONNECTION_IDLE_TIMEOUT, new ConnectionPool.Evictor<BluetoothTransport.Connection>() {
+        @Override
+        public void evict(BluetoothTransport.Connection connection) {
+
+            close(connection);
+        }
+    });
+
+    /** Number of lock connections that were reused from the pool. */
+    public final long getConnectionPoolHits() { return connectionPool.getHits(); }
+
+    /** Number of lock connections that had to be established. */
+    public final long getConnectionPoolMisses() { return connectionPool.getMisses(); }
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "LockManager maintenance");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Runs the scans started with {@link #startScan(long, long, TimeUnit, Executor, LockScan.Callback)}. */
+    private final ExecutorService scans = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "LockManager scan");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Runs the commands sent with a callback, one at a time. */
+    private final ExecutorService commands = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, "LockManager command");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final LockAuthenticator authenticator = new LockAuthenticator(new SecureRandom());
+
+    private final LockMetrics metrics = new LockMetrics();
+
+    /** Latency histograms and outcome counters for each phase of scanning and probing. */
+    public final LockMetrics getMetrics() { return metrics; }
+
+    /**
+     * The pending GATT operation of each connection, one at a time per connection. Keyed by connection, not address,
+     * so the callbacks of one connection never finish the operation of another connection to the same peripheral.
+     */
+    private final ConcurrentHashMap<BluetoothTransport.Connection, GATTOperation<?>> operations = new ConcurrentHashMap<BluetoothTransport.Connection, GATTOperation<?>>();
+
+    /** Held while a connection is created and its operation registered, so its first callback finds the operation. */
+    private final Object connecting = new Object();
+
+    /** The connections closed here, whose late callbacks must not finish the operations of newer connections. */
+    private final Set<BluetoothTransport.Connection> closedConnections =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<BluetoothTransport.Connection, Boolean>()));
+
+    /** The characteristic reads in progress on each connection. */
+    private final ConcurrentHashMap<BluetoothTransport.Connection, ReadPlan> readPlans = new ConcurrentHashMap<BluetoothTransport.Connection, ReadPlan>();
+
+    /** The long writes in progress on each connection. */
+    private final ConcurrentHashMap<BluetoothTransport.Connection, LongWrite> longWrites = new ConcurrentHashMap<BluetoothTransport.Connection, LongWrite>();
+
+    /** How many times a long write resumes after a GATT error before giving up. */
+    final static int LONG_WRITE_RESUMES = 3;
+
+    /** The negotiated parameters of each open connection. */
+    private final ConcurrentHashMap<BluetoothTransport.Connection, GATTSession> sessions = new ConcurrentHashMap<BluetoothTransport.Connection, GATTSession>();
+
+    /** How often status notifications are delivered to listeners, about once per display frame, in milliseconds. */
+    public final static long STATUS_UPDATE_INTERVAL = 16;
+
+    /** The lock subscribed to status notifications for each peripheral address. Their connections are pinned in the pool. */
+    private final ConcurrentHashMap<String, UUID> subscriptions = new ConcurrentHashMap<String, UUID>();
+
+    /** The latest status change of each lock that listeners have not been told about yet. */
+    private final ConcurrentHashMap<UUID, Lock> statusChanges = new ConcurrentHashMap<UUID, Lock>();
+
+    private final AtomicBoolean statusUpdateScheduled = new AtomicBoolean(false);
+
+    /**
+     * How often the status of a subscribed lock is read when its Status characteristic cannot notify,
+     * as with lockd, which only serves it for reading, in milliseconds.
+     */
+    public final static long STATUS_POLL_INTERVAL = 1000;
+
+    /** The status polling of each subscribed lock that cannot notify. */
+    private final ConcurrentHashMap<UUID, ScheduledFuture<?>> statusPolls = new ConcurrentHashMap<UUID, ScheduledFuture<?>>();
+
+    /**
+     * Methods
+     */
+
+    public void addListener(Listener listener) { listeners.addIfAbsent(listener); }
+
+    public void removeListener(Listener listener) { listeners.remove(listener); }
+
+    /** Whether the Bluetooth radio is powered on. */
+    public boolean isEnabled() { return transport.isEnabled(); }
+
+    /** Closes all pooled lock connections, ending all status subscriptions. */
+    public void closeConnections() {
+
+        subscriptions.clear();
+
+        for (ScheduledFuture<?> poll : statusPolls.values()) poll.cancel(false);
+
+        statusPolls.clear();
+
+        connectionPool.clear();
+    }
+
+    /** Scans for the specified amount of seconds and identifies the locks found. */
+    public void scan(int duration) throws Exception {
+
+        scan(duration, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Scans for the specified window and identifies the locks found, blocking the calling thread until done.
+     * Joins the scan in progress instead, if any.
+     */
+    public void scan(long duration, TimeUnit unit) throws Exception {
+
+        LockScan scan = new LockScan(LockScan.NO_DEADLINE, null, null);
+
+        ScanFlight flight = join(scan, unit.toMillis(duration));
+
+        if (flight != null) run(flight);
+
+        scan.await();
+    }
+
+    /**
+     * Scans in the background and identifies the locks found, without blocking the calling thread.
+     * Joins the scan in progress instead, if any, sharing its window and result.
+     *
+     * @param window How long the radio scans before the peripherals seen are probed.
+     * @param deadline The overall time limit, including probing, or {@link LockScan#NO_DEADLINE}.
+     * @param executor Where the callbacks are delivered, e.g. the main thread.
+     * @return A handle to follow or cancel the scan.
+     */
+    public LockScan startScan(long window, long deadline, TimeUnit unit, Executor executor, LockScan.Callback callback) {
+
+        return start(new LockScan(unit.toMillis(deadline), executor, callback), unit.toMillis(window));
+    }
+
+    /**
+     * Fast path for walking up to a lock. Scans until a lock known from the identity cache is heard with a
+     * filtered RSSI of at least the threshold, and reports it right away without connecting to it.
+     * Joins the scan in progress instead, if any, and then gives up when it ends.
+     *
+     * @param threshold The filtered RSSI in dBm, e.g. {@link #NEAR_RSSI}.
+     * @param timeout How long to look for the lock.
+     * @return A handle whose result is the nearest lock, or empty if none came near in time.
+     */
+    public LockScan findNearestLock(float threshold, long timeout, TimeUnit unit, Executor executor, LockScan.Callback callback) {
+
+        return start(new LockScan(unit.toMillis(timeout), threshold, executor, callback), unit.toMillis(timeout));
+    }
+
+    private LockScan start(LockScan scan, long window) {
+
+        final ScanFlight flight = join(scan, window);
+
+        if (flight != null) scans.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                LockManager.this.run(flight);
+            }
+        });
+
+        return scan;
+    }
+
+    /**
+     * Creates the HMAC context for the key ahead of time, e.g. when its lock comes near,
+     * so the first {@link #unlock(Lock, UUID, byte[])} with it does not pay for it.
+     */
+    public void prepareKey(UUID key, byte[] secret) throws GeneralSecurityException { authenticator.prepare(key, secret); }
+
+    /**
+     * Unlocks the lock with the key, blocking the calling thread until the lock acknowledged the command.
+     * Reuses a warm connection to the lock if there is one, so the unlock is a single write round trip.
+     *
+     * @param key The key identifier.
+     * @param secret The 32 byte key secret.
+     */
+    public void unlock(Lock lock, UUID key, byte[] secret) throws Exception {
+
+        command(lock, LockUnlock.UUID, key, secret);
+    }
+
+    /**
+     * Unlocks the lock with its key from the key store, blocking the calling thread until the lock acknowledged the command.
+     *
+     * @throws LockManagerError If there is no key for the lock.
+     */
+    public void unlock(Lock lock) throws Exception {
+
+        LockKeyStore.Key key = keyStore.get(lock.UUID);
+
+        if (key == null) throw new LockManagerError("No key for lock " + lock.UUID);
+
+        command(lock, LockUnlock.UUID, key.identifier, key.secret);
+    }
+
+    /**
+     * Unlocks the lock with the key in the background, and reports the result on the executor.
+     *
+     * @see #unlock(Lock, UUID, byte[])
+     */
+    public void unlock(final Lock lock, final UUID key, final byte[] secret, final Executor executor, final CommandCallback callback) {
+
+        commands.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                Exception error = null;
+
+                try { command(lock, LockUnlock.UUID, key, secret); }
+
+                catch (Exception e) { error = e; }
+
+                final Exception result = error;
+
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        if (result == null) callback.onCommandCompleted(lock);
+
+                        else callback.onCommandFailed(lock, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Subscribes to status notifications of the lock, blocking the calling thread until the lock accepted.
+     * The connection to the lock stays open until unsubscribed, or the lock disconnects.
+     * Status changes are delivered to {@link Listener#onLockStatusChanged(Lock)}, without reading the status.
+     * A lock whose Status characteristic cannot notify is read every {@link #STATUS_POLL_INTERVAL} instead.
+     */
+    public void subscribe(final Lock lock) throws Exception {
+
+        if (isSubscribed(lock)) return;
+
+        BluetoothTransport.Connection peripheral = connection(lock);
+
+        boolean notifies;
+
+        try {
+
+            if (!peripheral.hasCharacteristic(LockService.UUID, LockStatus.UUID)) throw new LockManagerMissingCharacteristicError(LockStatus.UUID);
+
+            notifies = peripheral.canNotify(LockService.UUID, LockStatus.UUID);
+
+            if (notifies) setNotification(peripheral, LockStatus.UUID, true);
+        }
+
+        catch (Exception e) { close(peripheral); throw e; }
+
+        subscriptions.put(lock.address, lock.UUID);
+
+        connectionPool.pin(lock.UUID);
+
+        release(lock, peripheral);
+
+        if (notifies) return;
+
+        log("Status of " + lock.UUID + " cannot notify, polling it");
+
+        final Runnable poll = pollStatus(lock);
+
+        statusPolls.put(lock.UUID, maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                // reads may block, keep them off the maintenance thread
+                commands.execute(poll);
+            }
+        }, STATUS_POLL_INTERVAL, STATUS_POLL_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    /** Stops status notifications of the lock, its connection is then closed like any idle connection. */
+    public void unsubscribe(Lock lock) throws Exception {
+
+        if (!subscriptions.remove(lock.address, lock.UUID)) return;
+
+        connectionPool.unpin(lock.UUID);
+
+        ScheduledFuture<?> poll = statusPolls.remove(lock.UUID);
+
+        // polled, the lock has no notifications to disable
+        if (poll != null) { poll.cancel(false); return; }
+
+        BluetoothTransport.Connection peripheral = connectionPool.checkout(lock.UUID);
+
+        // the lock dropped the connection, or a command is using it and notifications are ignored from now on
+        if (peripheral == null) return;
+
+        try { setNotification(peripheral, LockStatus.UUID, false); }
+
+        catch (Exception e) { close(peripheral); throw e; }
+
+        release(lock, peripheral);
+    }
+
+    public boolean isSubscribed(Lock lock) { return lock.UUID.equals(subscriptions.get(lock.address)); }
+
+    /**
+     * Adds the scan to the scan in progress, or starts a new one.
+     *
+     * @return The new scan the caller must run, or {@code null} if joined.
+     */
+    private ScanFlight join(LockScan scan, long window) {
+
+        synchronized (scanState) {
+
+            if (flight != null && flight.join(scan)) { log("Joined scan in progress"); return null; }
+
+            ScanFlight flight = new ScanFlight(window, foundLocks);
+
+            flight.join(scan);
+
+            this.flight = flight;
+
+            return flight;
+        }
+    }
+
+    /** Runs the scan on the calling thread, and completes or fails it. */
+    private void run(ScanFlight flight) {
+
+        // cancelled or expired while waiting for an earlier scan
+        if (!flight.isWanted()) { end(flight); flight.complete(Collections.<Lock>emptyList()); return; }
+
+        List<Lock> result;
+
+        try { result = scan(flight); }
+
+        catch (Exception e) {
+
+            log("Scan failed: " + e);
+
+            end(flight);
+
+            flight.fail(e);
+
+            return;
+        }
+
+        for (Listener listener : listeners) listener.onScanCompleted(result);
+
+        flight.complete(result);
+    }
+
+    /** Ends the scan, later requests start a new one. */
+    private void end(ScanFlight flight) {
+
+        synchronized (scanState) {
+
+            flight.close();
+
+            if (this.flight == flight) this.flight = null;
+        }
+    }
+
+    private List<Lock> scan(ScanFlight flight) throws Exception {
+
+        log("Scanning");
+
+        // reset variables
+        scanResults.clear();
+        this.foundLocks.clear();
+
+        // load the cache before the scan callbacks need it
+        final LockIdentityCache identityCache = this.identityCache;
+        identityCache.size();
+
+        final NonLockCache nonLockCache = this.nonLockCache;
+        nonLockCache.size();
+
+        long started = System.nanoTime();
+
+        long windowStarted = now();
+
+        // share the radio with a running discovery instead of starting a second scan
+        boolean shared = discovery.observe(this);
+
+        if (!shared && !transport.startScan(this)) { metrics.failure(LockMetrics.SCAN); throw new LockManagerError("Could not start scan"); }
+
+        try {
+
+            try { flight.awaitWindow(); }
+
+            finally {
+
+                if (shared) discovery.unobserve(this);
+
+                else transport.stopScan(this);
+            }
+
+            metrics.success(LockMetrics.SCAN, System.nanoTime() - started);
+
+            long window = now() - windowStarted;
+
+            log("Finished scanning");
+
+            // connect to peripherals and detect if lock, unless recently identified
+
+            List<String> devices = new ArrayList<String>();
+
+            List<String> seen = scanResults.devices();
+
+            long[] peripherals = new long[seen.size()];
+
+            long lastDiscovery = windowStarted;
+
+            long now = System.currentTimeMillis();
+
+            long clock = now();
+
+            int failing = 0;
+
+            int nonLocks = 0;
+
+            List<String> probedByDiscovery = new ArrayList<String>();
+
+            for (int i = 0; i < peripherals.length; i++) {
+
+                String device = seen.get(i);
+
+                peripherals[i] = ScanTable.address(device);
+
+                lastDiscovery = Math.max(lastDiscovery, scanResults.firstSeen(peripherals[i]));
+
+                LockIdentityCache.Entry cached = identityCache.get(peripherals[i]);
+
+                if (cached == null || now - cached.verified >= IDENTITY_REVALIDATION_INTERVAL) {
+
+                    // recently found not to be a lock
+                    if (cached == null && nonLockCache.contains(peripherals[i], now)) { nonLocks++; continue; }
+
+                    // dont spend another connection timeout on a peripheral that keeps failing
+                    if (!peripheralHealth.shouldProbe(peripherals[i], clock)) { failing++; continue; }
+
+                    // a discovery sharing the radio may be probing it already, its result is awaited instead of connecting twice
+                    if (shared && !discovery.claimProbe(peripherals[i])) probedByDiscovery.add(device);
+
+                    else devices.add(device);
+
+                    continue;
+                }
+
+                // identified meanwhile, e.g. by a discovery sharing the radio
+                didFindLock(new Lock(cached.identifier, device, LockStatus.INVALID, cached.model, cached.version));
+            }
+
+            if (nonLocks > 0) log("Skipped " + nonLocks + " peripherals known not to be locks");
+
+            if (failing > 0) log("Skipped " + failing + " failing peripherals, " + peripheralHealth);
+
+            try { if (!devices.isEmpty() && flight.isWanted()) probe(devices, flight); }
+
+            finally { if (shared) for (String device : devices) discovery.releaseProbe(ScanTable.address(device)); }
+
+            for (String device : probedByDiscovery) {
+
+                long address = ScanTable.address(device);
+
+                while (flight.isWanted()) { if (discovery.awaitProbe(address, flight.pollInterval())) break; }
+
+                LockIdentityCache.Entry cached = identityCache.get(address);
+
+                if (cached != null) didFindLock(new Lock(cached.identifier, device, LockStatus.INVALID, cached.model, cached.version));
+            }
+
+            log("Found " + foundLocks.size() + " locks, probed " + flight.getProbed() + " of " + scanResults.size() + " peripherals");
+
+            saveCaches(identityCache, nonLockCache, now);
+
+            List<Lock> result = Collections.unmodifiableList(new ArrayList<Lock>(foundLocks));
+
+            lastScan = new ScanSummary(window, peripherals, lastDiscovery - windowStarted, result);
+
+            return result;
+        }
+
+        finally { end(flight); }
+    }
+
+    /** Probes the peripherals in parallel, until all are probed or the scan stops. */
+    private void probe(List<String> devices, ScanFlight flight) throws InterruptedException {
+
+        ExecutorService probeExecutor = Executors.newFixedThreadPool(Math.min(probeParallelism, devices.size()));
+
+        CompletionService<Lock> probes = new ExecutorCompletionService<Lock>(probeExecutor);
+
+        flight.willProbe(devices.size());
+
+        try {
+
+            for (final String device : devices) {
+
+                probes.submit(new Callable<Lock>() {
+                    @Override
+                    public Lock call() throws Exception {
+
+                        Lock lock = identify(device);
+
+                        if (lock != null) didFindLock(lock);
+
+                        return lock;
+                    }
+                });
+            }
+
+            // wait for all probes, locks are published as they are identified
+            int remaining = devices.size();
+
+            while (remaining > 0 && flight.isWanted()) {
+
+                if (probes.poll(flight.pollInterval(), TimeUnit.MILLISECONDS) == null) continue;
+
+                remaining--;
+
+                flight.didProbe();
+            }
+        }
+
+        // interrupts the probes still running, their connections are closed
+        finally { probeExecutor.shutdownNow(); }
+    }
+
+    /**
+     * Connects to the peripheral and reads the lock information if it exposes the lock service.
+     * Updates the identity cache, but does not publish the lock.
+     *
+     * @return The lock, or {@code null} if the peripheral is not a lock or could not be probed.
+     */
+    Lock identify(String address) {
+
+        long started = System.nanoTime();
+
+        BluetoothTransport.Connection peripheral = null;
+
+        for (int attempt = 1; peripheral == null; attempt++) {
+
+            try { peripheral = connect(address, 3); }
+
+            catch (Exception e) {
+
+                log("Cound not connect to " + address + ": " + e.toString());
+
+                // a GATT error fails fast and often goes away, a timeout already took long enough
+                if (e instanceof LockManagerGATTError && attempt < PROBE_ATTEMPTS && !Thread.currentThread().isInterrupted()) continue;
+
+                didFailProbe(address, e);
+
+                return null;
+            }
+        }
+
+        Lock lock = null;
+
+        try {
+
+            // discover services, detect lock
+            try { discoverServices(peripheral); }
+
+            catch (Exception e) { didFailProbe(address, e); return null; }
+
+            if (!peripheral.hasService(LockService.UUID)) {
+
+                metrics.success(LockMetrics.PROBE, System.nanoTime() - started);
+
+                peripheralHealth.didSucceed(ScanTable.address(address));
+
+                nonLockCache.put(ScanTable.address(address), System.currentTimeMillis());
+
+                // no longer a lock
+                if (identityCache.get(ScanTable.address(address)) != null) {
+
+                    identityCache.remove(ScanTable.address(address));
+
+                    didLoseLock(address);
+                }
+
+                return null;
+            }
+
+            // try to extract lock info from Lock
+            try {
+
+                lock = foundLock(peripheral);
+
+                LockIdentityCache.Entry invalidated = identityCache.put(ScanTable.address(lock.address), lock.UUID,
+                        lock.model, lock.version, System.currentTimeMillis());
+
+                if (invalidated != null) log("Cached identity " + invalidated.identifier + " for " + lock.address + " is outdated");
+
+                nonLockCache.remove(ScanTable.address(lock.address));
+
+                metrics.success(LockMetrics.PROBE, System.nanoTime() - started);
+
+                peripheralHealth.didSucceed(ScanTable.address(address));
+
+                return lock;
+            }
+
+            catch (Exception e) {
+                log("Error discovering lock " + address + ": " + e.toString());
+                didFailProbe(address, e);
+                return null;
+            }
+        }
+
+        // keep lock connections warm for follow-up operations
+        finally {
+
+            if (lock != null) connectionPool.checkin(lock.UUID, peripheral, now());
+
+            else close(peripheral);
+        }
+    }
+
+    private void didFailProbe(String address, Exception error) {
+
+        metrics.failure(LockMetrics.PROBE);
+
+        // the scan ended, the peripheral did nothing wrong
+        if (error instanceof InterruptedException) return;
+
+        int status = error instanceof LockManagerGATTError ? ((LockManagerGATTError) error).status : PeripheralHealth.UNKNOWN_STATUS;
+
+        peripheralHealth.didFail(ScanTable.address(address), address, status, now());
+    }
+
+    /**
+     * Returns a connected peripheral with discovered services for the lock, reusing a pooled connection if possible.
+     * Hand it back with {@link #release(Lock, BluetoothTransport.Connection)} when done.
+     */
+    BluetoothTransport.Connection connection(Lock lock) throws Exception {
+
+        BluetoothTransport.Connection peripheral = connectionPool.checkout(lock.UUID);
+
+        if (peripheral != null) return peripheral;
+
+        return newConnection(lock);
+    }
+
+    /**
+     * Connects to the lock, discovers its services and negotiates a larger MTU, without looking in the pool.
+     * Setting up runs at high connection priority, the idle connection is then returned to balanced.
+     */
+    private BluetoothTransport.Connection newConnection(Lock lock) throws Exception {
+
+        BluetoothTransport.Connection peripheral = connect(lock.address, 3);
+
+        try {
+
+            requestConnectionPriority(peripheral, BluetoothTransport.CONNECTION_PRIORITY_HIGH);
+
+            discoverServices(peripheral);
+
+            negotiateMtu(peripheral);
+
+            requestConnectionPriority(peripheral, BluetoothTransport.CONNECTION_PRIORITY_BALANCED);
+        }
+
+        catch (Exception e) { close(peripheral); throw e; }
+
+        return peripheral;
+    }
+
+    /** The parameters negotiated on the connection. */
+    GATTSession session(BluetoothTransport.Connection peripheral) {
+
+        GATTSession session = sessions.get(peripheral);
+
+        if (session != null) return session;
+
+        session = new GATTSession(peripheral.getAddress());
+
+        GATTSession previous = sessions.putIfAbsent(peripheral, session);
+
+        return previous != null ? previous : session;
+    }
+
+    /**
+     * Requests the connection priority, e.g. high for the duration of a bulk transfer.
+     * Keeps the current priority if the platform does not support it.
+     */
+    void requestConnectionPriority(BluetoothTransport.Connection peripheral, int priority) {
+
+        GATTSession session = session(peripheral);
+
+        if (session.getConnectionPriority() == priority) return;
+
+        if (peripheral.requestConnectionPriority(priority)) session.setConnectionPriority(priority);
+    }
+
+    /** Returns a connection obtained from {@link #connection(Lock)} to the pool. */
+    void release(Lock lock, BluetoothTransport.Connection peripheral) {
+
+        connectionPool.checkin(lock.UUID, peripheral, now());
+    }
+
+    private void close(BluetoothTransport.Connection peripheral) {
+
+        long started = System.nanoTime();
+
+        sessions.remove(peripheral);
+
+        closedConnections.add(peripheral);
+
+        peripheral.disconnect();
+        peripheral.close();
+
+        if (permittedConnections.remove(peripheral)) connectionPermits.release();
+
+        metrics.success(LockMetrics.DISCONNECT, System.nanoTime() - started);
+    }
+
+    private synchronized void didFindLock(Lock lock) {
+
+        for (Lock foundLock : foundLocks) {
+
+            if (!foundLock.address.equals(lock.address)) continue;
+
+            // already published, e.g. from the identity cache
+            if (foundLock.UUID.equals(lock.UUID)) {
+
+                // keep the most complete information
+                if (lock.status != LockStatus.INVALID) foundLocks.set(foundLocks.indexOf(foundLock), lock);
+
+                return;
+            }
+
+            foundLocks.remove(foundLock);
+        }
+
+        foundLocks.add(lock);
+
+        for (Listener listener : listeners) listener.onLockFound(lock);
+
+        ScanFlight flight = this.flight;
+
+        if (flight != null) flight.didFind(lock);
+    }
+
+    private synchronized void didLoseLock(String address) {
+
+        for (Lock foundLock : foundLocks) {
+
+            if (foundLock.address.equals(address)) foundLocks.remove(foundLock);
+        }
+    }
+
+    private BluetoothTransport.Connection connect(String address, int timeout) throws Exception {
+
+        GATTOperation<Void> operation = new GATTOperation<Void>();
+
+        long started = System.nanoTime();
+
+        acquireConnectionPermit(timeout);
+
+        BluetoothTransport.Connection connection;
+
+        synchronized (connecting) {
+
+            try { connection = transport.connect(address, connectionCallback); }
+
+            catch (RuntimeException e) { connectionPermits.release(); metrics.failure(LockMetrics.CONNECT); throw e; }
+
+            if (connection != null) { permittedConnections.add(connection); operations.put(connection, operation); }
+        }
+
+        if (connection == null) {
+
+            connectionPermits.release();
+
+            metrics.failure(LockMetrics.CONNECT);
+
+            throw new LockManagerError("Could not connect to " + address);
+        }
+
+        try {
+
+            operation.await(timeout);
+
+            metrics.success(LockMetrics.CONNECT, System.nanoTime() - started);
+        }
+
+        catch (Exception e) {
+
+            didFail(LockMetrics.CONNECT, e);
+
+            // dont leak the GATT client if the connection never completed
+            close(connection);
+
+            throw e;
+        }
+
+        finally { endOperation(connection, operation); }
+
+        return connection;
+    }
+
+    private void setNotification(BluetoothTransport.Connection peripheral, UUID characteristic, boolean enable) throws Exception {
+
+        GATTOperation<Void> operation = beginOperation(peripheral);
+
+        long started = System.nanoTime();
+
+        try {
+
+            if (!peripheral.setCharacteristicNotification(LockService.UUID, characteristic, enable))
+            { throw new LockManagerMissingCharacteristicError(characteristic); }
+
+            operation.await(5);
+
+            metrics.success(LockMetrics.WRITE, System.nanoTime() - started);
+        }
+
+        catch (Exception e) { didFail(LockMetrics.WRITE, e); throw e; }
+
+        finally { endOperation(peripheral, operation); }
+    }
+
+    /** Reads the status of a subscribed lock that cannot notify, and records it if it changed. */
+    private Runnable pollStatus(final Lock lock) {
+
+        return new Runnable() {
+
+            private int status = lock.status;
+
+            @Override
+            public void run() {
+
+                if (!isSubscribed(lock)) {
+
+                    ScheduledFuture<?> poll = statusPolls.remove(lock.UUID);
+
+                    if (poll != null) poll.cancel(false);
+
+                    return;
+                }
+
+                BluetoothTransport.Connection peripheral = connectionPool.checkout(lock.UUID);
+
+                // a command is using the connection, read again next time
+                if (peripheral == null) return;
+
+                byte[] value;
+
+                try { value = readCharacteristics(peripheral, new UUID[] { LockStatus.UUID }, 5)[0]; }
+
+                catch (Exception e) {
+
+                    close(peripheral);
+
+                    if (subscriptions.remove(lock.address, lock.UUID)) { connectionPool.unpin(lock.UUID); log("Lost status polling of " + lock.UUID + ": " + e); }
+
+                    return;
+                }
+
+                release(lock, peripheral);
+
+                int status = LockStatus.isValid(value) ? LockStatus.decode(value, 0) : LockStatus.INVALID;
+
+                if (status == LockStatus.INVALID || status == this.status) return;
+
+                this.status = status;
+
+                didChangeStatus(lock.UUID, lock.address, status);
+            }
+        };
+    }
+
+    /** Records the status of a subscribed lock, and schedules telling the listeners unless already scheduled. */
+    private void didChangeStatus(UUID identifier, String address, int status) {
+
+        Lock lock = null;
+
+        synchronized (this) {
+
+            for (Lock foundLock : foundLocks) {
+
+                if (!foundLock.address.equals(address) || !foundLock.UUID.equals(identifier)) continue;
+
+                lock = new Lock(identifier, address, status, foundLock.model, foundLock.version);
+
+                foundLocks.set(foundLocks.indexOf(foundLock), lock);
+
+                break;
+            }
+        }
+
+        if (lock == null) lock = new Lock(identifier, address, status, LockIdentityCache.UNKNOWN_MODEL, 0);
+
+        // a burst of notifications only reaches the listeners once per interval, with the latest status
+        statusChanges.put(identifier, lock);
+
+        if (statusUpdateScheduled.compareAndSet(false, true)) maintenance.schedule(statusUpdate, STATUS_UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable statusUpdate = new Runnable() {
+        @Override
+        public void run() {
+
+            // changes from here on schedule the next update
+            statusUpdateScheduled.set(false);
+
+            for (UUID identifier : statusChanges.keySet()) {
+
+                Lock lock = statusChanges.remove(identifier);
+
+                if (lock != null) for (Listener listener : listeners) listener.onLockStatusChanged(lock);
+            }
+        }
+    };
+
+    /** Negotiates the MTU of the session. The session keeps the default MTU if the lock or the platform does not support it. */
+    private void negotiateMtu(BluetoothTransport.Connection peripheral) throws InterruptedException {
+
+        GATTSession session = session(peripheral);
+
+        GATTOperation<Integer> operation = beginOperation(peripheral);
+
+        long started = System.nanoTime();
+
+        try {
+
+            session.negotiatingMtu = true;
+
+            // not supported before API 21
+            if (!peripheral.requestMtu(PREFERRED_MTU)) return;
+
+            session.setMtu(operation.await(2));
+
+            metrics.success(LockMetrics.MTU, System.nanoTime() - started);
+
+            log("Negotiated MTU " + session.getMtu() + " with " + peripheral.getAddress());
+        }
+
+        catch (InterruptedException e) { throw e; }
+
+        catch (Exception e) { didFail(LockMetrics.MTU, e); log("Could not negotiate MTU with " + peripheral.getAddress() + ": " + e); }
+
+        finally {
+
+            session.negotiatingMtu = false;
+            session.mtuNegotiated = true;
+
+            endOperation(peripheral, operation);
+        }
+    }
+
+    private void discoverServices(BluetoothTransport.Connection peripheral) throws Exception {
+
+        GATTOperation<Void> operation = beginOperation(peripheral);
+
+        long started = System.nanoTime();
+
+        try {
+
+            if (!peripheral.discoverServices()) throw new LockManagerError("Could not start service discovery");
+
+            operation.await(5);
+
+            metrics.success(LockMetrics.DISCOVER_SERVICES, System.nanoTime() - started);
+        }
+
+        catch (Exception e) { didFail(LockMetrics.DISCOVER_SERVICES, e); throw e; }
+
+        finally { endOperation(peripheral, operation); }
+    }
+
     /**
-     * Properties
+     * Reads the characteristics of the lock service back to back on one connection.
+     * Each read is issued from the callback of the previous one, so there is no thread hand-off between reads.
+     *
+     * @return The value of each characteristic, in order.
      */
+    private byte[][] readCharacteristics(BluetoothTransport.Connection peripheral, UUID[] characteristics, int timeout) throws Exception {
+
+        GATTOperation<byte[][]> operation = beginOperation(peripheral);
+
+        ReadPlan plan = new ReadPlan(characteristics);
+
+        readPlans.put(peripheral, plan);
+
+        try {
+
+            plan.started = System.nanoTime();
+
+            if (!peripheral.readCharacteristic(LockService.UUID, characteristics[0]))
+            { throw new LockManagerMissingCharacteristicError(characteristics[0]); }
+
+            return operation.await(timeout);
+        }
+
+        catch (Exception e) { didFail(LockMetrics.READ, e); throw e; }
+
+        finally {
+
+            readPlans.remove(peripheral, plan);
+
+            endOperation(peripheral, operation);
+        }
+    }
 
-    private final static String TAG = "LockManager";
+    private Lock foundLock(BluetoothTransport.Connection peripheral) throws Exception {
 
-    public final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        log("Found lock peripheral " + peripheral.getAddress());
 
-    public final ArrayList<Lock> foundLocks = new ArrayList<Lock>();
+        // read identifier, status, model and version in one pass
 
-    private Boolean isScanning = false;
+        UUID[] characteristics = { LockIdentifier.UUID, LockStatus.UUID, LockModel.UUID, LockVersion.UUID };
 
-    public final Boolean getIsScanning() { return isScanning;  }
+        for (UUID characteristic : characteristics) {
 
-    private final ArrayList<BluetoothDevice> scanResults = new ArrayList();
+            if (!peripheral.hasCharacteristic(LockService.UUID, characteristic))
+            { throw new LockManagerMissingCharacteristicError(characteristic); }
+        }
+
+        byte[][] values = readCharacteristics(peripheral, characteristics, 5);
+
+        UUID identifier = LockIdentifier.decode(values[0]);
+
+        if (identifier == null) throw new LockManagerInvalidCharacteristicValueError(LockIdentifier.UUID);
+
+        int status = LockStatus.isValid(values[1]) ? LockStatus.decode(values[1], 0) : LockStatus.INVALID;
+
+        if (status == LockStatus.INVALID) throw new LockManagerInvalidCharacteristicValueError(LockStatus.UUID);
+
+        int model = LockModel.isValid(values[2]) ? LockModel.decode(values[2], 0) : LockModel.INVALID;
+
+        if (model == LockModel.INVALID) throw new LockManagerInvalidCharacteristicValueError(LockModel.UUID);
+
+        if (!LockVersion.isValid(values[3])) throw new LockManagerInvalidCharacteristicValueError(LockVersion.UUID);
+
+        long version = LockVersion.decode(values[3], 0);
+
+        return new Lock(identifier, peripheral.getAddress(), status, model, version);
+    }
+
+    /** Writes an authenticated command for the key to the characteristic of the lock service. */
+    private void command(Lock lock, UUID characteristic, UUID key, byte[] secret) throws Exception {
+
+        long started = System.nanoTime();
+
+        byte[] value = new byte[LockUnlock.LENGTH];
+
+        BluetoothTransport.Connection peripheral = connectionPool.checkout(lock.UUID);
+
+        boolean warm = peripheral != null;
+
+        try {
+
+            if (!warm) peripheral = newConnection(lock);
+
+            // connections kept from probing may not have negotiated yet
+            else if (value.length > session(peripheral).maxWriteLength() && !session(peripheral).mtuNegotiated) negotiateMtu(peripheral);
+
+            try { authenticatedWrite(peripheral, characteristic, key, secret, value); }
+
+            catch (Exception e) {
+
+                close(peripheral);
+
+                peripheral = null;
+
+                if (!warm || e instanceof GeneralSecurityException) throw e;
+
+                // the pooled connection may have gone stale, try once more on a new one with a new nonce
+                log("Retrying command on a new connection to " + lock.address + ": " + e);
+
+                peripheral = newConnection(lock);
+
+                try { authenticatedWrite(peripheral, characteristic, key, secret, value); }
+
+                catch (Exception retryError) { close(peripheral); peripheral = null; throw retryError; }
+            }
+
+            metrics.success(LockMetrics.COMMAND, System.nanoTime() - started);
+        }
 
-    private boolean runningAsyncOperation = true;
+        catch (Exception e) { didFail(LockMetrics.COMMAND, e); throw e; }
 
-    private Exception asyncError;
+        // keep the connection warm for the next command
+        finally { if (peripheral != null) release(lock, peripheral); }
+    }
 
     /**
-     * Methods
+     * Writes a value to the characteristic of the lock, e.g. a provisioning or key sharing payload.
+     * Values that fit the negotiated MTU take a single write. Longer values up to
+     * {@link BluetoothTransport#MAX_ATTRIBUTE_LENGTH} are written with response as a long write by the stack,
+     * or sent as a {@link LongWrite} if {@link #getChunkedWrites() chunked writes} are enabled.
      */
+    void write(Lock lock, UUID characteristic, byte[] value) throws Exception {
 
-    public void scan(int duration) throws Exception {
+        boolean chunked = chunkedWrites;
 
-        Log.v(TAG, "Scanning");
+        if (!chunked && value.length > BluetoothTransport.MAX_ATTRIBUTE_LENGTH) throw new IllegalArgumentException("Value is longer than " + BluetoothTransport.MAX_ATTRIBUTE_LENGTH + " bytes");
 
-        // reset variables
-        scanResults.clear();
+        BluetoothTransport.Connection peripheral = connection(lock);
 
-        if (!adapter.startLeScan(this)) throw new LockManagerError("Could not start scan");
+        try {
 
-        isScanning = true;
+            if (!peripheral.hasCharacteristic(LockService.UUID, characteristic)) throw new LockManagerMissingCharacteristicError(characteristic);
 
-        synchronized (this) {
+            GATTSession session = session(peripheral);
 
-            wait(duration * 1000);
-        }
+            // connections kept from probing did not negotiate yet
+            if (value.length > session.maxWriteLength() && !session.mtuNegotiated) negotiateMtu(peripheral);
 
-        adapter.stopLeScan(this);
+            if (value.length <= session.maxWriteLength() || !chunked) writeCharacteristic(peripheral, characteristic, value, 5);
 
-        Log.v(TAG, "Finished scanning");
+            else longWrite(peripheral, characteristic, value);
+        }
 
-        // connect to peripherals and detect if lock
+        catch (Exception e) { close(peripheral); peripheral = null; throw e; }
 
-        ArrayList<Lock> foundLocks = new ArrayList<Lock>();
+        finally { if (peripheral != null) release(lock, peripheral); }
+    }
 
-        for (BluetoothDevice device : scanResults) {
+    /** Sends the value in chunks at high connection priority, resuming after GATT errors. */
+    private void longWrite(BluetoothTransport.Connection peripheral, UUID characteristic, byte[] value) throws Exception {
 
-            BluetoothGatt peripheral;
+        String address = peripheral.getAddress();
 
-            try { peripheral = connect(device, 3); }
+        LongWrite transfer = new LongWrite(characteristic, value, session(peripheral).maxWriteLength());
 
-            catch (Exception e) { Log.v(TAG, "Cound not connect to " + device.getAddress().toString() + ": " + e.toString()); continue; }
+        long started = System.nanoTime();
 
-            assert peripheral != null;
+        requestConnectionPriority(peripheral, BluetoothTransport.CONNECTION_PRIORITY_HIGH);
 
-            // discover services, detect lock
-            try { discoverServices(peripheral); }
+        try {
 
-            catch (Exception e) { peripheral.disconnect(); continue; }
+            while (true) {
 
-            BluetoothGattService service = peripheral.getService(LockService.UUID);
+                GATTOperation<Void> operation = beginOperation(peripheral);
 
-            if (service != null) {
+                longWrites.put(peripheral, transfer);
 
-                // try to extract lock info from Lock
                 try {
 
-                    LockManager.Lock lock = foundLock(peripheral, service);
+                    if (!transfer.send(peripheral)) throw new LockManagerError("Could not write to " + characteristic);
+
+                    operation.await(5 + transfer.getChunks() / 10);
 
-                    foundLocks.add(lock);
+                    break;
                 }
 
-                catch (Exception e) {
-                    Log.v(TAG, "Error discovering lock " + device.getAddress().toString() + ": " + e.toString());
-                    peripheral.disconnect();
-                    continue;
+                catch (LockManagerGATTError e) {
+
+                    if (transfer.getResumes() == LONG_WRITE_RESUMES) throw e;
+
+                    log("Resuming long write to " + address + " at " + transfer.getAcknowledged() + ": " + e);
+
+                    transfer.resume();
+                }
+
+                finally {
+
+                    longWrites.remove(peripheral, transfer);
+
+                    endOperation(peripheral, operation);
                 }
             }
 
-            // disconnect
-            peripheral.disconnect();
+            metrics.success(LockMetrics.TRANSFER, System.nanoTime() - started);
         }
 
-        isScanning = false;
+        catch (Exception e) { didFail(LockMetrics.TRANSFER, e); throw e; }
+
+        finally { requestConnectionPriority(peripheral, BluetoothTransport.CONNECTION_PRIORITY_BALANCED); }
     }
 
-    private BluetoothGatt connect(BluetoothDevice peripheral, int timeout) throws Exception {
+    private void authenticatedWrite(BluetoothTransport.Connection peripheral, UUID characteristic, UUID key, byte[] secret, byte[] value) throws Exception {
 
-        BluetoothGatt bluetoothGatt = peripheral.connectGatt(this, false, gattCallback);
+        if (!peripheral.hasCharacteristic(LockService.UUID, characteristic)) throw new LockManagerMissingCharacteristicError(characteristic);
 
-        waitForOperation(timeout);
+        authenticator.authenticate(key, secret, value, 0);
 
-        return bluetoothGatt;
+        writeCharacteristic(peripheral, characteristic, value, 5);
     }
 
-    private void discoverServices(BluetoothGatt peripheral) throws Exception {
-
-        peripheral.discoverServices();
+    private void writeCharacteristic(BluetoothTransport.Connection peripheral, UUID characteristic, byte[] value, int timeout) throws Exception {
 
-        waitForOperation(5);
-    }
+        GATTOperation<Void> operation = beginOperation(peripheral);
 
-    /*
-    private void discoverCharacteristics(BluetoothGattService serviceUUID, BluetoothGatt peripheral) throws Exception {
+        long started = System.nanoTime();
 
-        peripheral.
-    }*/
+        try {
 
-    private LockManager.Lock foundLock(BluetoothGatt peripheral, BluetoothGattService lockService) throws Exception {
+            if (!peripheral.writeCharacteristic(LockService.UUID, characteristic, value))
+            { throw new LockManagerMissingCharacteristicError(characteristic); }
 
-        Log.v(TAG, "Found lock peripheral " + peripheral.getDevice().getAddress().toString());
+            operation.await(timeout);
 
-        // get lock identifier
+            metrics.success(LockMetrics.WRITE, System.nanoTime() - started);
+        }
 
-        BluetoothGattCharacteristic identifierCharacteristic = lockService.getCharacteristic(LockIdentifier.UUID);
+        catch (Exception e) { didFail(LockMetrics.WRITE, e); throw e; }
 
-        if (identifierCharacteristic == null || !peripheral.readCharacteristic(identifierCharacteristic))
-        { throw new LockManagerMissingCharacteristicError(LockIdentifier.UUID); }
+        finally { endOperation(peripheral, operation); }
+    }
 
-        byte[] identifierValue = identifierCharacteristic.getValue();
+    /**
+     * Waits for one of the {@link #MAX_CONCURRENT_CONNECTIONS} permits, for at most the timeout in seconds.
+     * If none is free the least recently used idle connection is closed, a new connection is needed more.
+     */
+    private void acquireConnectionPermit(int timeout) throws Exception {
 
-        LockIdentifier lockIdentifier = new LockIdentifier(identifierValue);
+        if (connectionPermits.tryAcquire()) return;
 
+        connectionPool.evictEldest();
 
-        /*
-        // get lock status
+        if (!connectionPermits.tryAcquire(timeout, TimeUnit.SECONDS)) { metrics.timeout(LockMetrics.CONNECT); throw new LockManagerTimeoutError(); }
+    }
 
-        BluetoothGattCharacteristic statusCharacteristic = lockService.getCharacteristic(LockStatus.UUID);
+    /** Connections are checked out to one caller at a time, so a second pending operation is a bug. */
+    private <T> GATTOperation<T> beginOperation(BluetoothTransport.Connection connection) {
 
-        if (statusCharacteristic == null || !peripheral.readCharacteristic(statusCharacteristic))
-            { throw new LockManagerMissingCharacteristicError(LockStatus.UUID); }
+        GATTOperation<T> operation = new GATTOperation<T>();
 
-        byte[] statusValue = statusCharacteristic.getValue();
-        */
+        if (operations.putIfAbsent(connection, operation) != null) throw new IllegalStateException("An operation is already pending on " + connection.getAddress());
 
-        return new Lock(lockIdentifier.value);
+        return operation;
     }
 
-    private void waitForOperation(int timeout) throws Exception {
+    private void endOperation(BluetoothTransport.Connection connection, GATTOperation<?> operation) {
+
+        operations.remove(connection, operation);
+    }
 
-        //assert (!runningAsyncOperation);
+    @SuppressWarnings("unchecked")
+    private <T> void completeOperation(BluetoothTransport.Connection connection, T value) {
 
-        runningAsyncOperation = true;
+        GATTOperation<T> operation = (GATTOperation<T>) operation(connection);
 
-        long waitTime = System.currentTimeMillis();
+        if (operation != null) operation.complete(value);
+    }
 
-        long timeoutMiliseconds = timeout * 1000;
+    private void failOperation(BluetoothTransport.Connection connection, Exception error) {
 
-        while (runningAsyncOperation) {
+        GATTOperation<?> operation = operation(connection);
 
-            long now = System.currentTimeMillis();
+        if (operation != null) operation.fail(error);
+    }
 
-            if (timeout > 0) {
+    private GATTOperation<?> operation(BluetoothTransport.Connection connection) {
 
-                if (now - waitTime >= timeoutMiliseconds) {
+        GATTOperation<?> operation = operations.get(connection);
 
-                    break;
-                }
-            }
-        }
+        if (operation != null) return operation;
 
-        Exception error = asyncError;
+        // the first callback of a new connection may come before connect() registered its operation
+        synchronized (connecting) { return operations.get(connection); }
+    }
 
-        asyncError = null;
+    private void didFail(int phase, Exception error) {
 
-        if (error != null) {
+        if (error instanceof LockManagerTimeoutError) metrics.timeout(phase);
 
-            throw error;
-        }
+        else metrics.failure(phase);
     }
 
-    private void stopWaiting(Exception error) {
+    void log(String message) {
+
+        Logger logger = this.logger;
 
-        asyncError = error;
-        runningAsyncOperation = false;
+        if (logger != null) logger.log(message);
     }
 
+    /** Monotonic clock in milliseconds. */
+    static long now() { return System.nanoTime() / 1000000; }
+
     /**
      * Callbacks
      */
-    public void onLeScan (BluetoothDevice device,
-                   int rssi,
-                   byte[] scanRecord) {
+    public void onAdvertisement(String device,
+                                int rssi,
+                                byte[] scanRecord) {
+
+        // dont connect to peripherals that cannot be locks
+        if (!AdvertisementParser.isLockCandidate(scanRecord, strictAdvertisementFilter)) return;
+
+        long address = ScanTable.address(device);
+
+        ScanFlight flight = this.flight;
+
+        if (scanResults.record(address, device, rssi, now())) {
+
+            if (logger != null) log("Discovered peripheral " + device);
 
-        if (!scanResults.contains(device)) {
+            if (flight != null) flight.didSee();
 
-            Log.v(TAG, "Discovered peripheral " + device.getAddress().toString());
+            didAdvertise(address, device, scanRecord);
 
-            scanResults.add(device);
+            // known locks are reported straight from their advertisement
+            LockIdentityCache.Entry cached = identityCache.get(address);
+
+            if (cached != null) didFindLock(new Lock(cached.identifier, device, LockStatus.INVALID, cached.model, cached.version));
+        }
+
+        // walk up and open, known locks do not need to be probed
+        if (flight != null && flight.isSeekingProximity() && scanResults.advertisementCount(address) >= PROXIMITY_SAMPLES) {
+
+            LockIdentityCache.Entry cached = identityCache.get(address);
+
+            if (cached != null) flight.didHear(new Lock(cached.identifier, device, LockStatus.INVALID, cached.model, cached.version), scanResults.filteredRssi(address));
         }
     }
 
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
-    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+    private final BluetoothTransport.ConnectionCallback connectionCallback = new BluetoothTransport.ConnectionCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(BluetoothTransport.Connection connection, int status, boolean connected) {
 
-            if (status != BluetoothGatt.GATT_SUCCESS) {
+            metrics.status(status);
 
-                if (runningAsyncOperation) {
+            if (status != BluetoothTransport.GATT_SUCCESS) {
 
-                    stopWaiting(new LockManagerGATTError(status));
-                }
+                failOperation(connection, new LockManagerGATTError(status));
 
-                Log.w(TAG, "Error connecting to " + gatt.getDevice().getAddress().toString());
+                log("Error connecting to " + connection.getAddress());
 
                 return;
             }
 
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (connected) {
+
+                log("Connected to " + connection.getAddress());
+
+                completeOperation(connection, null);
+
+            } else {
+
+                log("Disconnected from " + connection.getAddress());
+
+                // closed here, the state of a newer connection to the peripheral is not affected
+                if (closedConnections.contains(connection)) return;
+
+                // the lock dropped a pooled connection
+                connectionPool.remove(connection);
+
+                UUID subscribed = subscriptions.remove(connection.getAddress());
+
+                if (subscribed != null) { connectionPool.unpin(subscribed); log("Lost status notifications of " + subscribed); }
+
+                // any request still waiting on this peripheral will never get a response
+                failOperation(connection, new LockManagerError("Disconnected from " + connection.getAddress()));
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothTransport.Connection connection, int status) {
+
+            metrics.status(status);
+
+            if (status == BluetoothTransport.GATT_SUCCESS) {
 
-                Log.v(TAG, "Connected to " + gatt.getDevice().getAddress().toString());
+                log("Discovered services for " + connection.getAddress());
 
-                stopWaiting(null);
+                completeOperation(connection, null);
+
+            } else {
 
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                log("Could not discover services for " + connection.getAddress());
 
-                Log.v(TAG, "Disconnected from " + gatt.getDevice().getAddress().toString());
+                failOperation(connection, new LockManagerGATTError(status));
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onCharacteristicRead(BluetoothTransport.Connection connection,
+                                         UUID characteristic,
+                                         int status,
+                                         byte[] value) {
+
+            metrics.status(status);
+
+            if (status == BluetoothTransport.GATT_SUCCESS) {
+
+                log("Read characteristic " + characteristic);
+
+                // copy the value, the characteristic is reused by the next read
+                value = value != null ? value.clone() : new byte[0];
+
+                ReadPlan plan = readPlans.get(connection);
+
+                if (plan == null) return;
+
+                long now = System.nanoTime();
+
+                metrics.success(LockMetrics.READ, now - plan.started);
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+                plan.started = now;
 
-                Log.v(TAG, "Discovered " + gatt.getServices().size() + " services for " + gatt.getDevice().getAddress().toString());
+                UUID next = plan.didRead(value);
 
-                stopWaiting(null);
+                if (next == null) { completeOperation(connection, plan.values); return; }
+
+                // issue the next read right away
+                if (!connection.readCharacteristic(LockService.UUID, next)) failOperation(connection, new LockManagerMissingCharacteristicError(next));
 
             } else {
 
-                Log.w(TAG, "Could not discover services for " + gatt.getDevice().getAddress().toString());
+                log("Could not read characteristic " + characteristic);
 
-                stopWaiting(new LockManagerGATTError(status));
+                failOperation(connection, new LockManagerGATTError(status));
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
+        public void onCharacteristicWrite(BluetoothTransport.Connection connection,
+                                          UUID characteristic,
+                                          int status) {
+
+            metrics.status(status);
+
+            LongWrite transfer = longWrites.get(connection);
+
+            if (transfer != null && transfer.characteristic.equals(characteristic)) {
+
+                // the next chunks are sent from here
+                int result = transfer.didWrite(connection, status);
+
+                if (result == LongWrite.COMPLETED) completeOperation(connection, null);
+
+                else if (result == LongWrite.FAILED) {
+
+                    int error = transfer.getError();
 
+                    failOperation(connection, error == LongWrite.NOT_ACCEPTED ? new LockManagerError("Could not write to " + characteristic) : new LockManagerGATTError(error));
+                }
+
+                return;
+            }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (status == BluetoothTransport.GATT_SUCCESS) {
 
-                Log.v(TAG, "Read characteristic" + characteristic.getUuid().toString());
+                log("Wrote characteristic " + characteristic);
 
-                stopWaiting(null);
+                completeOperation(connection, null);
 
             } else {
 
-                Log.w(TAG, "Could not read characteristic" + characteristic.getUuid().toString());
+                log("Could not write characteristic " + characteristic);
 
-                stopWaiting(new LockManagerGATTError(status));
+                failOperation(connection, new LockManagerGATTError(status));
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
+        public void onDescriptorWrite(BluetoothTransport.Connection connection, UUID characteristic, int status) {
+
+            metrics.status(status);
+
+            if (status == BluetoothTransport.GATT_SUCCESS) completeOperation(connection, null);
+
+            else failOperation(connection, new LockManagerGATTError(status));
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothTransport.Connection connection, UUID characteristic, byte[] value) {
+
+            UUID subscribed = subscriptions.get(connection.getAddress());
+
+            if (subscribed == null || !characteristic.equals(LockStatus.UUID) || !LockStatus.isValid(value)) return;
+
+            // decoded straight from the notification, no read needed
+            int status = LockStatus.decode(value, 0);
+
+            if (status != LockStatus.INVALID) didChangeStatus(subscribed, connection.getAddress(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothTransport.Connection connection, int mtu, int status) {
+
+            metrics.status(status);
+
+            GATTSession session = sessions.get(connection);
+
+            if (session == null) return;
 
-            /*
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            */
+            // the lock may also start the exchange, keep the session up to date either way
+            if (status == BluetoothTransport.GATT_SUCCESS) session.setMtu(mtu);
+
+            // a late response must not complete the next operation
+            if (!session.negotiatingMtu) return;
+
+            if (status == BluetoothTransport.GATT_SUCCESS) completeOperation(connection, mtu);
+
+            else failOperation(connection, new LockManagerGATTError(status));
         }
     };
 
-    public class LocalBinder extends Binder {
-        LockManager shared() {
-            return LockManager.this;
+    /**
+     * Supporting Types.
+     */
+
+    /** Characteristics to read back to back, see {@link #readCharacteristics}. */
+    private static final class ReadPlan {
+
+        final UUID[] characteristics;
+
+        final byte[][] values;
+
+        private int index = 0;
+
+        /** When the current read was issued, in nanoseconds. */
+        volatile long started;
+
+        ReadPlan(UUID[] characteristics) {
+
+            this.characteristics = characteristics;
+            this.values = new byte[characteristics.length][];
         }
-    }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+        /** Stores the value of the current read and returns the next characteristic to read, or {@code null} when done. */
+        UUID didRead(byte[] value) {
+
+            values[index++] = value;
+
+            return index < characteristics.length ? characteristics[index] : null;
+        }
     }
 
-    @Override
-    public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        //close();
-        return super.onUnbind(intent);
+    /** What a scan window saw. Times are in milliseconds. */
+    static final class ScanSummary {
+
+        /** How long the radio was scanning. */
+        final long window;
+
+        /** The packed addresses of the peripherals that passed the advertisement filter. */
+        final long[] peripherals;
+
+        /** When the last new peripheral was discovered, relative to the start of the window. */
+        final long lastDiscovery;
+
+        final List<Lock> locks;
+
+        ScanSummary(long window, long[] peripherals, long lastDiscovery, List<Lock> locks) {
+
+            this.window = window;
+            this.peripherals = peripherals;
+            this.lastDiscovery = lastDiscovery;
+            this.locks = locks;
+        }
     }
 
-    private final IBinder mBinder = new LocalBinder();
+    /** Receives the log messages of the lock manager. */
+    public interface Logger {
+
+        void log(String message);
+    }
 
     /**
-     * Supporting Types.
+     * Receives scan results as they are available.
+     *
+     * Callbacks are made on background threads, never the main thread.
      */
+    public interface Listener {
+
+        /** A lock was identified. Called once per lock per scan, as soon as it has been probed. */
+        void onLockFound(Lock lock);
 
-    public final class Lock {
+        /** The scan and all probes finished. */
+        void onScanCompleted(List<Lock> locks);
+
+        /**
+         * A subscribed lock notified a new status, see {@link LockManager#subscribe(Lock)}.
+         * Changes are coalesced, each lock is reported at most once per {@link LockManager#STATUS_UPDATE_INTERVAL} with its latest status.
+         * Called on a background thread.
+         */
+        void onLockStatusChanged(Lock lock);
+    }
+
+    /** Receives the result of a lock command, on the executor the command was sent with. */
+    public interface CommandCallback {
+
+        void onCommandCompleted(Lock lock);
+
+        void onCommandFailed(Lock lock, Exception error);
+    }
+
+    public static final class Lock {
 
         public final UUID UUID;
 
-        Lock(UUID UUID) {
+        /** The address of the lock's peripheral. */
+        public final String address;
+
+        /** The lock status, or {@link LockStatus#INVALID} if the lock was reported from the identity cache. */
+        public final int status;
+
+        /** The lock model, or {@link LockIdentityCache#UNKNOWN_MODEL} if not known. */
+        public final int model;
+
+        public final long version;
+
+        Lock(UUID UUID, String address, int status, int model, long version) {
 
             this.UUID = UUID;
+            this.address = address;
+            this.status = status;
+            this.model = model;
+            this.version = version;
         }
     }
 
-    public final class LockManagerError extends Exception {
+    public static final class LockManagerError extends Exception {
 
-        private LockManagerError(String text) {
+        LockManagerError(String text) {
 
             this.text = text;
         }
@@ -363,33 +1955,39 @@ public final class LockManager extends Service implements BluetoothAdapter.LeSca
         }
     }
 
-    public final class LockManagerTimeoutError extends Exception {
+    public static final class LockManagerTimeoutError extends Exception {
+
+        LockManagerTimeoutError() { }
+    }
+
+    public static final class LockManagerMissingCharacteristicError extends Exception  {
 
-        private LockManagerTimeoutError() { }
+        public final UUID UUID;
+
+        LockManagerMissingCharacteristicError(UUID uuid) {
+
+            this.UUID = uuid;
+        }
     }
 
-    public final class LockManagerMissingCharacteristicError extends Exception  {
+    public static final class LockManagerInvalidCharacteristicValueError extends Exception  {
 
         public final UUID UUID;
 
-        private LockManagerMissingCharacteristicError(UUID uuid) {
+        LockManagerInvalidCharacteristicValueError(UUID uuid) {
 
             this.UUID = uuid;
         }
     }
 
-    public final class LockManagerGATTError extends  Exception {
+    public static final class LockManagerGATTError extends  Exception {
 
         public final int status;
 
-        private LockManagerGATTError(int status) {
+        LockManagerGATTError(int status) {
 
             this.status = status;
         }
     }
 }
 
-/**
- * Private
- */
-
@@ -0,0 +1,51 @@
+package com.colemancda.cerradura;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Hosts the shared {@link LockManager} for bound components,
+ * and keeps {@link LockDiscovery} running while any component is bound.
+ */
+public final class LockManagerService extends Service {
+
+    private final static String TAG = "LockManagerService";
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        LockManager.initialize(new AndroidBluetoothTransport(this));
+    }
+
+    public class LocalBinder extends Binder {
+        LockManager shared() {
+            return LockManager.shared();
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+
+        try { LockManager.shared().getDiscovery().start(); }
+
+        catch (Exception e) { Log.e(TAG, "Could not start lock discovery", e); }
+
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // After using a given device, you should make sure that BluetoothGatt.close() is called
+        // such that resources are cleaned up properly.  In this particular example, close() is
+        // invoked when the UI is disconnected from the Service.
+        LockManager.shared().getDiscovery().stop();
+        LockManager.shared().closeConnections();
+        return super.onUnbind(intent);
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+}
@@ -0,0 +1,364 @@
+package com.colemancda.cerradura;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and outcome counters for each phase of a scan, and for lock commands.
+ *
+ * Recording is lock-free and does not allocate, except for the first callback with a GATT status
+ * beyond {@link #STATUS_CODES}. Histograms have 8 linear buckets per power of two,
+ * so percentiles are accurate to 12.5%.
+ */
+public final class LockMetrics {
+
+    /**
+     * Phases
+     */
+
+    /** The scan window, with the radio scanning. */
+    public static final int SCAN = 0;
+
+    public static final int CONNECT = 1;
+
+    public static final int DISCOVER_SERVICES = 2;
+
+    /** A single characteristic read. */
+    public static final int READ = 3;
+
+    public static final int DISCONNECT = 4;
+
+    /** A complete probe of a peripheral, from connecting until identified or rejected. */
+    public static final int PROBE = 5;
+
+    /** A single characteristic write, until acknowledged by the lock. */
+    public static final int WRITE = 6;
+
+    /** A complete authenticated command, e.g. unlock, from getting a connection until acknowledged. */
+    public static final int COMMAND = 7;
+
+    /** An ATT MTU exchange on a new lock connection. */
+    public static final int MTU = 8;
+
+    /** A value longer than one write, from the first chunk until the lock acknowledged it. */
+    public static final int TRANSFER = 9;
+
+    static final int PHASES = 10;
+
+    private static final String[] PHASE_NAMES = { "scan", "connect", "discoverServices", "read", "disconnect", "probe", "write", "command", "mtu", "transfer" };
+
+    public static String phaseName(int phase) { return PHASE_NAMES[phase]; }
+
+    /**
+     * GATT status codes below this are counted in an array. The stack reports some beyond a single byte,
+     * e.g. GATT_FAILURE (0x101), which are counted in a map under their full value.
+     */
+    static final int STATUS_CODES = 256;
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Properties
+     */
+
+    private final Histogram[] histograms = new Histogram[PHASES];
+
+    private final AtomicLongArray successes = new AtomicLongArray(PHASES);
+
+    private final AtomicLongArray timeouts = new AtomicLongArray(PHASES);
+
+    private final AtomicLongArray failures = new AtomicLongArray(PHASES);
+
+    private final AtomicLongArray statusCodes = new AtomicLongArray(STATUS_CODES);
+
+    private final ConcurrentHashMap<Integer, AtomicLong> otherStatusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private volatile long since = System.currentTimeMillis();
+
+    LockMetrics() {
+
+        for (int phase = 0; phase < PHASES; phase++) histograms[phase] = new Histogram();
+    }
+
+    /**
+     * Recording
+     */
+
+    /** Records a successful phase that took the specified amount of nanoseconds. */
+    void success(int phase, long nanoseconds) {
+
+        successes.incrementAndGet(phase);
+
+        histograms[phase].record(nanoseconds);
+    }
+
+    void timeout(int phase) { timeouts.incrementAndGet(phase); }
+
+    void failure(int phase) { failures.incrementAndGet(phase); }
+
+    /** Counts a GATT status reported by a callback. */
+    void status(int status) {
+
+        if (status >= 0 && status < STATUS_CODES) { statusCodes.incrementAndGet(status); return; }
+
+        AtomicLong count = otherStatusCodes.get(status);
+
+        if (count == null) {
+
+            AtomicLong previous = otherStatusCodes.putIfAbsent(status, count = new AtomicLong());
+
+            if (previous != null) count = previous;
+        }
+
+        count.incrementAndGet();
+    }
+
+    /**
+     * Methods
+     */
+
+    public Snapshot snapshot() {
+
+        Snapshot snapshot = new Snapshot(since, System.currentTimeMillis());
+
+        for (int phase = 0; phase < PHASES; phase++) {
+
+            snapshot.successes[phase] = successes.get(phase);
+            snapshot.timeouts[phase] = timeouts.get(phase);
+            snapshot.failures[phase] = failures.get(phase);
+            snapshot.histograms[phase] = histograms[phase].snapshot();
+        }
+
+        for (int status = 0; status < STATUS_CODES; status++) snapshot.statusCodes[status] = statusCodes.get(status);
+
+        for (Map.Entry<Integer, AtomicLong> entry : otherStatusCodes.entrySet()) snapshot.otherStatusCodes.put(entry.getKey(), entry.getValue().get());
+
+        return snapshot;
+    }
+
+    /** Returns the metrics recorded so far and starts over. Recordings made during the reset may land in either period. */
+    public Snapshot reset() {
+
+        Snapshot snapshot = snapshot();
+
+        since = snapshot.until;
+
+        for (int phase = 0; phase < PHASES; phase++) {
+
+            successes.addAndGet(phase, -snapshot.successes[phase]);
+            timeouts.addAndGet(phase, -snapshot.timeouts[phase]);
+            failures.addAndGet(phase, -snapshot.failures[phase]);
+            histograms[phase].subtract(snapshot.histograms[phase]);
+        }
+
+        for (int status = 0; status < STATUS_CODES; status++) statusCodes.addAndGet(status, -snapshot.statusCodes[status]);
+
+        for (Map.Entry<Integer, Long> entry : snapshot.otherStatusCodes.entrySet()) otherStatusCodes.get(entry.getKey()).addAndGet(-entry.getValue());
+
+        return snapshot;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    static int bucket(long value) {
+
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** The smallest value recorded in the bucket. */
+    static long lowerBound(int bucket) {
+
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+
+        return (long) (SUB_BUCKETS | bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    private static final class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong sum = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+
+            long current;
+
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) { }
+        }
+
+        HistogramSnapshot snapshot() {
+
+            long[] values = new long[BUCKETS];
+
+            for (int i = 0; i < BUCKETS; i++) values[i] = buckets.get(i);
+
+            return new HistogramSnapshot(values, count.get(), sum.get(), max.get());
+        }
+
+        void subtract(HistogramSnapshot snapshot) {
+
+            for (int i = 0; i < BUCKETS; i++) {
+
+                if (snapshot.buckets[i] != 0) buckets.addAndGet(i, -snapshot.buckets[i]);
+            }
+
+            count.addAndGet(-snapshot.count);
+            sum.addAndGet(-snapshot.sum);
+            max.set(0);
+        }
+    }
+
+    /** The latencies of a phase, in nanoseconds. */
+    public static final class HistogramSnapshot {
+
+        private final long[] buckets;
+
+        public final long count;
+
+        public final long sum;
+
+        public final long max;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long mean() { return count == 0 ? 0 : sum / count; }
+
+        /** The latency below which the specified fraction (0 - 1) of recordings fall. */
+        public long percentile(double fraction) {
+
+            long total = 0;
+
+            for (long bucket : buckets) total += bucket;
+
+            if (total == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+
+                seen += buckets[i];
+
+                if (seen >= rank) return i + 1 < buckets.length ? Math.min(lowerBound(i + 1) - 1, max) : max;
+            }
+
+            return max;
+        }
+    }
+
+    public static final class Snapshot {
+
+        /** Wall clock time of the start and end of the period, in milliseconds. */
+        public final long since, until;
+
+        private final long[] successes = new long[PHASES];
+
+        private final long[] timeouts = new long[PHASES];
+
+        private final long[] failures = new long[PHASES];
+
+        private final long[] statusCodes = new long[STATUS_CODES];
+
+        /** The statuses beyond {@link #STATUS_CODES}, in order. */
+        private final TreeMap<Integer, Long> otherStatusCodes = new TreeMap<Integer, Long>();
+
+        private final HistogramSnapshot[] histograms = new HistogramSnapshot[PHASES];
+
+        Snapshot(long since, long until) {
+
+            this.since = since;
+            this.until = until;
+        }
+
+        public long getSuccesses(int phase) { return successes[phase]; }
+
+        public long getTimeouts(int phase) { return timeouts[phase]; }
+
+        public long getFailures(int phase) { return failures[phase]; }
+
+        public HistogramSnapshot getHistogram(int phase) { return histograms[phase]; }
+
+        /** The number of callbacks that reported the GATT status. */
+        public long getStatusCount(int status) {
+
+            if (status >= 0 && status < STATUS_CODES) return statusCodes[status];
+
+            Long count = otherStatusCodes.get(status);
+
+            return count != null ? count : 0;
+        }
+
+        /** Plain text report, one line per phase and one per GATT status seen, for attaching to bug reports. */
+        public String dump() {
+
+            StringBuilder dump = new StringBuilder();
+
+            dump.append(String.format(Locale.US, "LockMetrics %d-%d (%d ms)%n", since, until, until - since));
+
+            dump.append(String.format(Locale.US, "%-17s %8s %8s %8s %10s %10s %10s %10s %10s%n",
+                    "phase", "ok", "timeout", "failed", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+
+            for (int phase = 0; phase < PHASES; phase++) {
+
+                HistogramSnapshot histogram = histograms[phase];
+
+                dump.append(String.format(Locale.US, "%-17s %8d %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                        PHASE_NAMES[phase], successes[phase], timeouts[phase], failures[phase],
+                        histogram.mean() / 1e6, histogram.percentile(0.5) / 1e6, histogram.percentile(0.9) / 1e6,
+                        histogram.percentile(0.99) / 1e6, histogram.max / 1e6));
+            }
+
+            for (int status = 0; status < STATUS_CODES; status++) {
+
+                if (statusCodes[status] != 0) dump.append(String.format(Locale.US, "status %d: %d%n", status, statusCodes[status]));
+            }
+
+            for (Map.Entry<Integer, Long> entry : otherStatusCodes.entrySet()) {
+
+                if (entry.getValue() != 0) dump.append(String.format(Locale.US, "status %d: %d%n", entry.getKey(), entry.getValue()));
+            }
+
+            return dump.toString();
+        }
+
+        @Override
+        public String toString() { return dump(); }
+    }
+}
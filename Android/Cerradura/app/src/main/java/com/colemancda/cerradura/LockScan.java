@@ -0,0 +1,277 @@
+package com.colemancda.cerradura;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A scan started with {@link LockManager#startScan(long, long, TimeUnit, Executor, Callback)}.
+ *
+ * The scan runs in the background. Progress and the result are delivered to the callback on the
+ * executor chosen when starting the scan, e.g. one posting to the main thread. The scan can be
+ * cancelled at any time, and ends early with the locks identified so far once its deadline passes.
+ *
+ * Scans requested while another is running join it and share its result, the radio only runs one scan at a time.
+ */
+public final class LockScan {
+
+    /**
+     * Constants
+     */
+
+    /** No overall time limit, the scan ends after its window and probing all peripherals. */
+    public static final long NO_DEADLINE = 0;
+
+    /**
+     * Properties
+     */
+
+    /** When the scan must end, as {@link LockManager#now()}. */
+    private final long deadline;
+
+    private final Executor executor;
+
+    private final Callback callback;
+
+    /** The filtered RSSI at which a known lock ends the scan, or {@code NaN} to identify all locks. */
+    private final float proximity;
+
+    /** The scan the radio is running for this request, possibly shared with other requests. */
+    private volatile ScanFlight flight;
+
+    private volatile boolean cancelled = false;
+
+    private volatile boolean deadlineExceeded = false;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /** Coalesces progress updates the executor has not delivered yet. */
+    private final AtomicBoolean progressPending = new AtomicBoolean(false);
+
+    private volatile List<LockManager.Lock> locks;
+
+    private volatile Exception error;
+
+    LockScan(long deadline, Executor executor, Callback callback) {
+
+        this(deadline, Float.NaN, executor, callback);
+    }
+
+    LockScan(long deadline, float proximity, Executor executor, Callback callback) {
+
+        this.deadline = deadline > 0 ? LockManager.now() + deadline : Long.MAX_VALUE;
+        this.proximity = proximity;
+        this.executor = executor;
+        this.callback = callback;
+    }
+
+    /**
+     * Methods
+     */
+
+    /**
+     * Stops waiting for the scan. The radio stops as soon as no other request shares the scan.
+     * No more callbacks are made once cancelled.
+     */
+    public void cancel() {
+
+        cancelled = true;
+
+        if (finished.compareAndSet(false, true)) done.countDown();
+
+        ScanFlight flight = this.flight;
+
+        if (flight != null) flight.didCancel();
+    }
+
+    public boolean isCancelled() { return cancelled; }
+
+    /** Whether the scan ended, successfully or not. */
+    public boolean isDone() { return done.getCount() == 0; }
+
+    /** Whether the scan was cut short by its deadline. The result only has the locks identified in time. */
+    public boolean isDeadlineExceeded() { return deadlineExceeded; }
+
+    /** The number of peripherals seen so far. */
+    public int getSeen() { return flight != null ? flight.getSeen() : 0; }
+
+    /** The number of peripherals to probe after the scan window, 0 until the window ends. */
+    public int getProbes() { return flight != null ? flight.getProbes() : 0; }
+
+    /** The number of peripherals probed so far. */
+    public int getProbed() { return flight != null ? flight.getProbed() : 0; }
+
+    /** The number of locks found so far. */
+    public int getFound() { return flight != null ? flight.getFound() : 0; }
+
+    /**
+     * Blocks until the scan ends. Never call from the main thread.
+     *
+     * @return The locks found.
+     * @throws CancellationException If the scan was cancelled.
+     */
+    public List<LockManager.Lock> await() throws Exception {
+
+        done.await();
+
+        return result();
+    }
+
+    /**
+     * Blocks until the scan ends, for at most the specified time. Never call from the main thread.
+     *
+     * @return The locks found, or {@code null} if the scan did not end in time.
+     * @throws CancellationException If the scan was cancelled.
+     */
+    public List<LockManager.Lock> await(long timeout, TimeUnit unit) throws Exception {
+
+        if (!done.await(timeout, unit)) return null;
+
+        return result();
+    }
+
+    /**
+     * Scanning
+     */
+
+    void didJoin(ScanFlight flight) {
+
+        this.flight = flight;
+
+        progress();
+    }
+
+    boolean isExpired(long now) { return now >= deadline; }
+
+    /** Whether the scan looks for the nearest known lock, instead of identifying all locks. */
+    boolean isProximity() { return !Float.isNaN(proximity); }
+
+    boolean isNear(float rssi) { return rssi >= proximity && !isDone(); }
+
+    /** Ends the scan with the locks found before the deadline. */
+    void expire(List<LockManager.Lock> locks) {
+
+        deadlineExceeded = true;
+
+        complete(locks);
+    }
+
+    void didFind(final LockManager.Lock lock) {
+
+        if (isDone()) return;
+
+        if (callback != null) post(new Runnable() {
+            @Override
+            public void run() {
+
+                callback.onLockFound(LockScan.this, lock);
+            }
+        });
+
+        progress();
+    }
+
+    void complete(final List<LockManager.Lock> locks) {
+
+        if (!finished.compareAndSet(false, true)) return;
+
+        this.locks = locks;
+
+        done.countDown();
+
+        if (callback != null) post(new Runnable() {
+            @Override
+            public void run() {
+
+                callback.onCompleted(LockScan.this, locks);
+            }
+        });
+    }
+
+    void fail(final Exception error) {
+
+        if (!finished.compareAndSet(false, true)) return;
+
+        this.error = error;
+
+        done.countDown();
+
+        if (callback != null) post(new Runnable() {
+            @Override
+            public void run() {
+
+                callback.onFailed(LockScan.this, error);
+            }
+        });
+    }
+
+    void progress() {
+
+        if (callback == null || isDone() || !progressPending.compareAndSet(false, true)) return;
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+
+                progressPending.set(false);
+
+                callback.onProgress(LockScan.this);
+            }
+        });
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private List<LockManager.Lock> result() throws Exception {
+
+        if (cancelled) throw new CancellationException("Scan was cancelled");
+
+        if (error != null) throw error;
+
+        return locks;
+    }
+
+    /** Delivers the callback on the executor, unless cancelled in the meantime. */
+    private void post(final Runnable runnable) {
+
+        if (cancelled) return;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if (!cancelled) runnable.run();
+            }
+        });
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /**
+     * Receives the progress and result of a scan, on the executor the scan was started with.
+     *
+     * Callbacks are delivered in order if the executor runs tasks in order.
+     */
+    public interface Callback {
+
+        /** Something was seen, probed or found. Read the counts from the scan. Updates may be coalesced. */
+        void onProgress(LockScan scan);
+
+        void onLockFound(LockScan scan, LockManager.Lock lock);
+
+        /** The scan ended, possibly early because of the deadline, see {@link LockScan#isDeadlineExceeded()}. */
+        void onCompleted(LockScan scan, List<LockManager.Lock> locks);
+
+        void onFailed(LockScan scan, Exception error);
+    }
+}
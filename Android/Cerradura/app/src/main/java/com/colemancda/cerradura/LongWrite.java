@@ -0,0 +1,174 @@
+package com.colemancda.cerradura;
+
+import java.util.UUID;
+
+/**
+ * A value longer than one write, sent to a characteristic of the lock service in {@link LockTransfer} chunks.
+ *
+ * Chunks are written without response, up to {@link #WINDOW} at a time. Each write callback is a credit
+ * that sends the next chunk from the callback itself, so the transfer runs as fast as the link drains the
+ * writes instead of waiting a round trip per chunk. Once every chunk was sent the value is committed with
+ * a write with response, which the lock acknowledges after checking the reassembled value.
+ *
+ * When a chunk fails the transfer stalls until the chunks already sent are accounted for, and can then be
+ * resumed from the first chunk that was not accepted instead of starting over.
+ */
+final class LongWrite {
+
+    /**
+     * Constants
+     */
+
+    /** The number of chunks handed to the stack before waiting for a callback. */
+    static final int WINDOW = 4;
+
+    /** Results of {@link #didWrite(BluetoothTransport.Connection, int)}. */
+    static final int PENDING = 0;
+
+    static final int COMPLETED = 1;
+
+    static final int FAILED = 2;
+
+    /** The error of a transfer the stack did not accept a write for, instead of a GATT status. */
+    static final int NOT_ACCEPTED = -1;
+
+    /**
+     * Properties
+     */
+
+    final UUID characteristic;
+
+    private final byte[] value;
+
+    /** The length of the data in each chunk. */
+    private final int chunkLength;
+
+    private final byte[] commit = new byte[LockTransfer.COMMIT_LENGTH];
+
+    /** The end of the chunks the stack accepted, in order. */
+    private int acknowledged = 0;
+
+    /** The offset of the next chunk to send. */
+    private int next = 0;
+
+    private int inFlight = 0;
+
+    private boolean committing = false;
+
+    /** The status of the first failed write of this attempt, or {@link BluetoothTransport#GATT_SUCCESS}. */
+    private int error = BluetoothTransport.GATT_SUCCESS;
+
+    private int resumes = 0;
+
+    private int chunksSent = 0;
+
+    /**
+     * @param maxWriteLength The longest value that fits in one write, see {@link GATTSession#maxWriteLength()}.
+     */
+    LongWrite(UUID characteristic, byte[] value, int maxWriteLength) {
+
+        if (value.length > LockTransfer.MAX_LENGTH) throw new IllegalArgumentException("Value is longer than " + LockTransfer.MAX_LENGTH + " bytes");
+
+        this.characteristic = characteristic;
+        this.value = value;
+        this.chunkLength = maxWriteLength - LockTransfer.OFFSET_LENGTH;
+
+        LockTransfer.encodeCommit(value.length, LockTransfer.checksum(value, 0, value.length), commit);
+    }
+
+    /**
+     * Methods
+     */
+
+    /** The number of chunks needed to send the whole value once. */
+    int getChunks() { return (value.length + chunkLength - 1) / chunkLength; }
+
+    synchronized int getChunksSent() { return chunksSent; }
+
+    synchronized int getAcknowledged() { return acknowledged; }
+
+    synchronized int getResumes() { return resumes; }
+
+    synchronized int getError() { return error; }
+
+    /**
+     * Sends chunks until the window is full, or commits once every chunk was accepted.
+     *
+     * @return {@code false} if the stack did not accept a write and no callback is pending to try again.
+     */
+    synchronized boolean send(BluetoothTransport.Connection connection) {
+
+        byte[] chunk = null;
+
+        while (inFlight < WINDOW && next < value.length) {
+
+            int length = Math.min(chunkLength, value.length - next);
+
+            if (chunk == null || chunk.length != LockTransfer.OFFSET_LENGTH + length) chunk = new byte[LockTransfer.OFFSET_LENGTH + length];
+
+            LockTransfer.encodeChunk(value, next, length, chunk);
+
+            // the stack is full, the next callback sends the chunk
+            if (!connection.writeCharacteristicWithoutResponse(LockService.UUID, characteristic, chunk)) break;
+
+            inFlight++;
+            chunksSent++;
+            next += length;
+        }
+
+        if (inFlight > 0) return true;
+
+        if (next < value.length) { error = NOT_ACCEPTED; return false; }
+
+        committing = true;
+
+        if (connection.writeCharacteristic(LockService.UUID, characteristic, commit)) return true;
+
+        error = NOT_ACCEPTED;
+
+        return false;
+    }
+
+    /**
+     * Handles the callback of a write, and sends the next chunks.
+     *
+     * @return {@link #PENDING}, {@link #COMPLETED} once the lock acknowledged the value, or {@link #FAILED}.
+     */
+    synchronized int didWrite(BluetoothTransport.Connection connection, int status) {
+
+        if (committing) {
+
+            if (status == BluetoothTransport.GATT_SUCCESS) return COMPLETED;
+
+            error = status;
+
+            return FAILED;
+        }
+
+        inFlight--;
+
+        // once a chunk failed, the ones after it no longer count
+        if (status != BluetoothTransport.GATT_SUCCESS && error == BluetoothTransport.GATT_SUCCESS) error = status;
+
+        if (error != BluetoothTransport.GATT_SUCCESS) return inFlight == 0 ? FAILED : PENDING;
+
+        acknowledged += Math.min(chunkLength, value.length - acknowledged);
+
+        return send(connection) ? PENDING : FAILED;
+    }
+
+    /**
+     * Prepares sending again from the first chunk that was not accepted.
+     * A rejected commit means the lock could not reassemble the value, so it is sent again from the start.
+     */
+    synchronized void resume() {
+
+        if (committing) acknowledged = 0;
+
+        next = acknowledged;
+        inFlight = 0;
+        committing = false;
+        error = BluetoothTransport.GATT_SUCCESS;
+        resumes++;
+    }
+}
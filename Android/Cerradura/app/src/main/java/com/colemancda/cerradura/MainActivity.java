@@ -1,7 +1,8 @@
 package com.colemancda.cerradura;
 
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.TabLayout;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
@@ -16,6 +17,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -28,6 +30,11 @@ import android.content.*;
 
 import android.bluetooth.*;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 import com.google.android.gms.appindexing.Action;
 import com.google.android.gms.appindexing.AppIndex;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -58,11 +65,86 @@ public class MainActivity extends AppCompatActivity implements NearLockFragment.
 
     private final static String TAG = "MainActivity";
 
+    /** Seconds. */
+    private final static long SCAN_WINDOW = 3;
+
+    /** Seconds. */
+    private final static long SCAN_DEADLINE = 15;
+
+    /** The scan started from the floating action button. */
+    private LockScan scan;
+
+    private final Executor mainThread = new Executor() {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable runnable) { handler.post(runnable); }
+    };
+
+    private final LockScan.Callback scanCallback = new LockScan.Callback() {
+        @Override
+        public void onProgress(LockScan scan) {
+
+            Log.v(TAG, "Scan saw " + scan.getSeen() + " peripherals, probed " + scan.getProbed() + " of " + scan.getProbes());
+        }
+
+        @Override
+        public void onLockFound(LockScan scan, LockManager.Lock lock) { }
+
+        @Override
+        public void onCompleted(LockScan scan, List<LockManager.Lock> locks) {
+
+            Snackbar.make(findViewById(R.id.fab), "Found " + locks.size() + " locks", Snackbar.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onFailed(LockScan scan, Exception error) {
+
+            Log.e(TAG, "Error: ", error);
+
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle("Error")
+                    .setMessage(error.getMessage())
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+        }
+    };
+
+    /** Keeps lock discovery running while the activity is visible. */
+    private final ServiceConnection lockManagerConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+
+            Log.v(TAG, "Bound to LockManagerService");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) { }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+
+        LockManager.initialize(new AndroidBluetoothTransport(this));
+
+        LockManager.shared().setLogger(new LockManager.Logger() {
+            @Override
+            public void log(String message) {
+
+                Log.v("LockManager", message);
+            }
+        });
+
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // persist discovered lock identities between launches, recreations keep the loaded caches
+        LockManager.shared().setCacheDirectory(getFilesDir());
+
+        // the key store is opened in the background, it is only read when unlocking, and kept open across recreations
+        LockManager.shared().setKeyStore(new LockKeyStore(new File(getFilesDir(), "Keys.store")));
+
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
         // Create the adapter that will return a fragment for each of the three
@@ -80,43 +162,15 @@ public class MainActivity extends AppCompatActivity implements NearLockFragment.
         fab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                Snackbar.make(view, "Scanning...", Snackbar.LENGTH_LONG)
-                        .setAction("Action", null).show();
 
                 // dont scan if already scanning
-                if (LockManager.shared().getIsScanning()) { return; }
-
-                try { LockManager.shared().scan(3); }
-
-                catch (Exception e) {
-                    Log.e(TAG, "Error: ", e);
-
-                    AlertDialog.Builder alert = new AlertDialog.Builder(view.getContext());
+                if (scan != null && !scan.isDone()) { return; }
 
-                    alert.setCancelable(true);
-
-                    alert.setTitle("Error");
-
-                    alert.setMessage(e.toString());
-
-                    alert.show();
-                }
-
-                /* Needs to run on UI thread on Samsung devices for prompt
-                Runnable task = new Runnable() {
-                    @Override
-                    public void run() {
-
-                        // dont scan if already scanning
-                        if (LockManager.shared().getIsScanning()) { return; }
-
-                        try { LockManager.shared().scan(3); }
-
-                        catch (Exception e) { Log.e(TAG, "Error: ", e);  }
-                    }
-                };
+                Snackbar.make(view, "Scanning...", Snackbar.LENGTH_LONG)
+                        .setAction("Action", null).show();
 
-                AsyncTask.execute(task);*/
+                // scans in the background, results are delivered on the main thread
+                scan = LockManager.shared().startScan(SCAN_WINDOW, SCAN_DEADLINE, TimeUnit.SECONDS, mainThread, scanCallback);
             }
         });
 
@@ -169,11 +223,13 @@ public class MainActivity extends AppCompatActivity implements NearLockFragment.
 
 
         // Check Bluetooth enabled
-        if (!LockManager.shared().adapter.isEnabled()) {
+        if (!LockManager.shared().isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
 
+        bindService(new Intent(this, LockManagerService.class), lockManagerConnection, Context.BIND_AUTO_CREATE);
+
 
     }
 
@@ -181,6 +237,11 @@ public class MainActivity extends AppCompatActivity implements NearLockFragment.
     public void onStop() {
         super.onStop();
 
+        // no results once the activity is no longer visible
+        if (scan != null) { scan.cancel(); scan = null; }
+
+        unbindService(lockManagerConnection);
+
         // ATTENTION: This was auto-generated to implement the App Indexing API.
         // See https://g.co/AppIndexing/AndroidStudio for more information.
         Action viewAction = Action.newAction(
@@ -251,12 +312,7 @@ public class MainActivity extends AppCompatActivity implements NearLockFragment.
 
         public void scan() {
 
-            // dont scan if already scanning
-            if (LockManager.shared().getIsScanning()) { return; }
-
-            try { LockManager.shared().scan(3); }
-
-            catch (Exception e) { Log.e(TAG, "Error: ", e);  }
+            LockManager.shared().getScanScheduler().scanNow();
         }
     }
 
@@ -0,0 +1,176 @@
+package com.colemancda.cerradura;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Shows the nearby locks, updating only the rows that changed.
+ *
+ * Item IDs are stable and derived from the lock UUID, so rows keep their views while they move.
+ * A change of only the RSSI or the status rebinds that text from the payload.
+ */
+final class NearLockAdapter extends RecyclerView.Adapter<NearLockAdapter.ViewHolder> implements LockListDiff.Updates {
+
+    /**
+     * Properties
+     */
+
+    private List<LockListDiff.Row> rows = Collections.emptyList();
+
+    NearLockAdapter() {
+
+        setHasStableIds(true);
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Replaces the rows, notifying the changes from the current rows. Must be called on the main thread. */
+    void setRows(List<LockListDiff.Row> newRows) {
+
+        List<LockListDiff.Row> oldRows = rows;
+
+        rows = newRows;
+
+        LockListDiff.dispatch(oldRows, newRows, this);
+    }
+
+    boolean isEmpty() { return rows.isEmpty(); }
+
+    /**
+     * RecyclerView.Adapter
+     */
+
+    @Override
+    public int getItemCount() { return rows.size(); }
+
+    @Override
+    public long getItemId(int position) {
+
+        UUID identifier = rows.get(position).lock.UUID;
+
+        return identifier.getMostSignificantBits() ^ identifier.getLeastSignificantBits();
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_near_lock, parent, false);
+
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+
+        LockListDiff.Row row = rows.get(position);
+
+        holder.name.setText(row.lock.UUID.toString());
+        holder.address.setText(row.lock.address);
+
+        bindRssi(holder, row);
+        bindStatus(holder, row);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+
+        // new and recycled rows, and full changes, come without payloads
+        if (payloads.isEmpty()) { onBindViewHolder(holder, position); return; }
+
+        int changes = 0;
+
+        for (Object payload : payloads) {
+
+            int change = (Integer) payload;
+
+            if (change == LockListDiff.FULL_CHANGE) { onBindViewHolder(holder, position); return; }
+
+            changes |= change;
+        }
+
+        LockListDiff.Row row = rows.get(position);
+
+        if ((changes & LockListDiff.RSSI_CHANGED) != 0) bindRssi(holder, row);
+
+        if ((changes & LockListDiff.STATUS_CHANGED) != 0) bindStatus(holder, row);
+    }
+
+    /**
+     * LockListDiff.Updates
+     */
+
+    public void inserted(int position) { notifyItemInserted(position); }
+
+    public void removed(int position) { notifyItemRemoved(position); }
+
+    public void moved(int from, int to) { notifyItemMoved(from, to); }
+
+    public void changed(int position, int payload) {
+
+        if (payload == LockListDiff.FULL_CHANGE) notifyItemChanged(position);
+
+        else notifyItemChanged(position, payload);
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private static void bindRssi(ViewHolder holder, LockListDiff.Row row) {
+
+        // locks from the last scan that discovery has not heard have no RSSI
+        if (row.rssi == 0) holder.rssi.setText(null);
+
+        else holder.rssi.setText(holder.itemView.getContext().getString(R.string.rssi_format, row.rssi));
+    }
+
+    private static void bindStatus(ViewHolder holder, LockListDiff.Row row) {
+
+        int text;
+
+        switch (row.status) {
+
+            case LockStatus.SETUP: text = R.string.lock_status_setup; break;
+
+            case LockStatus.UNLOCK: text = R.string.lock_status_unlock; break;
+
+            default: text = R.string.lock_status_unknown; break;
+        }
+
+        holder.status.setText(text);
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView name;
+
+        final TextView address;
+
+        final TextView rssi;
+
+        final TextView status;
+
+        ViewHolder(View view) {
+
+            super(view);
+
+            name = (TextView) view.findViewById(R.id.lockName);
+            address = (TextView) view.findViewById(R.id.lockAddress);
+            rssi = (TextView) view.findViewById(R.id.lockRssi);
+            status = (TextView) view.findViewById(R.id.lockStatus);
+        }
+    }
+}
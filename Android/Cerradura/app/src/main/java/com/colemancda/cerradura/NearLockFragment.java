@@ -2,14 +2,24 @@ package com.colemancda.cerradura;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 /**
  * A simple {@link Fragment} subclass.
@@ -19,7 +29,7 @@ import android.view.ViewGroup;
  * Use the {@link NearLockFragment#newInstance} factory method to
  * create an instance of this fragment.
  */
-public final class NearLockFragment extends Fragment {
+public final class NearLockFragment extends Fragment implements LockManager.Listener, LockDiscovery.Listener {
 
     private static String TAG = "NearLockFragment";
 
@@ -27,6 +37,22 @@ public final class NearLockFragment extends Fragment {
 
     private static boolean didLoad = false;
 
+    /** How often the RSSI of the shown locks is refreshed, since advertisements do not call back. */
+    private static final long RSSI_REFRESH_INTERVAL = 250;
+
+    private RecyclerView nearLocks;
+
+    private final NearLockAdapter adapter = new NearLockAdapter();
+
+    /** The main thread's choreographer while the view exists. */
+    private volatile Choreographer choreographer;
+
+    /** Whether a render is scheduled for the next frame, so changes until then are coalesced. */
+    private final AtomicBoolean frameScheduled = new AtomicBoolean(false);
+
+    /** Status notifications newer than the lock reported by discovery. */
+    private final ConcurrentHashMap<UUID, Integer> statuses = new ConcurrentHashMap<UUID, Integer>();
+
     public NearLockFragment() {
         // Required empty public constructor
     }
@@ -60,6 +86,19 @@ public final class NearLockFragment extends Fragment {
         // Inflate the layout for this fragment
         View view = inflater.inflate(R.layout.fragment_near_lock, container, false);
 
+        nearLocks = (RecyclerView) view.findViewById(R.id.nearLocks);
+        nearLocks.setLayoutManager(new LinearLayoutManager(getContext()));
+        nearLocks.setHasFixedSize(true);
+        nearLocks.setAdapter(adapter);
+
+        choreographer = Choreographer.getInstance();
+        frameScheduled.set(false);
+
+        LockManager.shared().addListener(this);
+
+        // current nearby locks are reported right away
+        LockManager.shared().getDiscovery().addListener(this);
+
         if (!didLoad) {
             viewDidLoad();
         }
@@ -67,6 +106,22 @@ public final class NearLockFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        LockManager.shared().removeListener(this);
+
+        LockManager.shared().getDiscovery().removeListener(this);
+
+        choreographer.removeFrameCallback(frame);
+        choreographer.removeFrameCallback(refresh);
+        choreographer = null;
+
+        nearLocks.setAdapter(null);
+        nearLocks = null;
+    }
+
     // TODO: Rename method, update argument and hook method into UI event
     public void onButtonPressed(Uri uri) {
         if (mListener != null) {
@@ -101,7 +156,7 @@ public final class NearLockFragment extends Fragment {
 
         Log.v(TAG, "Near Lock Fragment did Load");
 
-        scan();
+        // nearby locks come from lock discovery while the activity is bound to LockManagerService
     }
 
     /**
@@ -110,26 +165,151 @@ public final class NearLockFragment extends Fragment {
 
     public void scan() {
 
-        Runnable task = new Runnable() {
-            @Override
-            public void run() {
+        LockManager.shared().getScanScheduler().scanNow();
+    }
+
+    /**
+     * LockManager.Listener
+     */
+
+    public void onLockFound(LockManager.Lock lock) {
+
+        Log.v(TAG, "Found lock " + lock.UUID);
 
-                // dont scan if already scanning
-                if (LockManager.shared().getIsScanning()) { return; }
+        setNeedsDisplay();
+    }
 
-                try { LockManager.shared().scan(3); }
+    public void onScanCompleted(List<LockManager.Lock> locks) {
 
-                catch (Exception e) { Log.e(TAG, "Error: ", e);  }
-            }
-        };
+        Log.v(TAG, "Scan completed with " + locks.size() + " locks");
 
-        AsyncTask.execute(task);
+        setNeedsDisplay();
+    }
+
+    public void onLockStatusChanged(LockManager.Lock lock) {
+
+        Log.v(TAG, "Lock " + lock.UUID + " status " + lock.status);
+
+        statuses.put(lock.UUID, lock.status);
+
+        setNeedsDisplay();
+    }
+
+    /**
+     * LockDiscovery.Listener
+     */
+
+    public void onLockAdded(LockManager.Lock lock) {
+
+        Log.v(TAG, "Lock " + lock.UUID + " nearby");
+
+        logNearestLock();
+
+        setNeedsDisplay();
+    }
+
+    public void onLockUpdated(LockManager.Lock previous, LockManager.Lock lock) {
+
+        Log.v(TAG, "Lock " + lock.UUID + " updated");
+
+        // the status was read again
+        statuses.remove(lock.UUID);
+
+        setNeedsDisplay();
+    }
+
+    public void onLockRemoved(LockManager.Lock lock) {
+
+        Log.v(TAG, "Lock " + lock.UUID + " no longer nearby");
+
+        statuses.remove(lock.UUID);
+
+        setNeedsDisplay();
+    }
+
+    /**
+     * Rendering
+     */
+
+    /** Renders the nearby locks on the next frame. Can be called from any thread. */
+    private void setNeedsDisplay() {
+
+        Choreographer choreographer = this.choreographer;
+
+        if (choreographer != null && frameScheduled.compareAndSet(false, true)) choreographer.postFrameCallback(frame);
+    }
+
+    private final Choreographer.FrameCallback frame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+
+            // changes from here on schedule the next frame
+            frameScheduled.set(false);
+
+            if (nearLocks == null) return;
+
+            adapter.setRows(rows());
+
+            // keep the RSSI of the shown locks current
+            choreographer.removeFrameCallback(refresh);
+
+            if (!adapter.isEmpty()) choreographer.postFrameCallbackDelayed(refresh, RSSI_REFRESH_INTERVAL);
+        }
+    };
+
+    private final Choreographer.FrameCallback refresh = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) { setNeedsDisplay(); }
+    };
+
+    /** The nearby locks nearest first, followed by the locks of the last scan that discovery has not heard. */
+    private List<LockListDiff.Row> rows() {
+
+        LockDiscovery discovery = LockManager.shared().getDiscovery();
+
+        List<LockManager.Lock> nearest = discovery.getNearestLocks();
+
+        List<LockListDiff.Row> rows = new ArrayList<LockListDiff.Row>(nearest.size());
+
+        Set<UUID> shown = new HashSet<UUID>();
+
+        for (LockManager.Lock lock : nearest) {
+
+            if (!shown.add(lock.UUID)) continue;
+
+            rows.add(new LockListDiff.Row(lock, Math.round(discovery.getRssi(lock)), status(lock)));
+        }
+
+        for (LockManager.Lock lock : LockManager.shared().foundLocks) {
+
+            if (shown.add(lock.UUID)) rows.add(new LockListDiff.Row(lock, 0, status(lock)));
+        }
+
+        return rows;
+    }
+
+    private int status(LockManager.Lock lock) {
+
+        Integer status = statuses.get(lock.UUID);
+
+        return status != null ? status : lock.status;
     }
 
     /**
      * Private Methods
      */
 
+    private void logNearestLock() {
+
+        LockDiscovery discovery = LockManager.shared().getDiscovery();
+
+        List<LockManager.Lock> nearest = discovery.getNearestLocks();
+
+        if (nearest.isEmpty()) return;
+
+        Log.v(TAG, "Nearest lock " + nearest.get(0).UUID + " (" + discovery.getRssi(nearest.get(0)) + " dBm)");
+    }
+
     /**
      * This interface must be implemented by activities that contain this
      * fragment to allow an interaction in this fragment to be communicated
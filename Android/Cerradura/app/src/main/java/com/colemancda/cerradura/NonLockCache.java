@@ -0,0 +1,206 @@
+package com.colemancda.cerradura;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persistent set of the peripherals known not to expose the lock service, so repeated scans
+ * only spend connections on new peripherals, or on those not verified within {@link #TTL}.
+ *
+ * An {@link AddressTable} with the verification times in a parallel array, 16 bytes per peripheral.
+ *
+ * File format (big endian): magic, format version, entry count, then fixed size entries of
+ * address (8), verification time (8).
+ */
+final class NonLockCache extends AddressTable {
+
+    private static final int MAGIC = 0x4C4B4E4C; // "LKNL"
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** How long a peripheral is trusted not to be a lock, wall clock milliseconds. */
+    static final long TTL = 24 * 60 * 60 * 1000L;
+
+    private final File file;
+
+    /** When each peripheral was last found not to be a lock. */
+    private long[] verified;
+
+    private boolean loaded = false;
+
+    private boolean dirty = false;
+
+    NonLockCache(File file) {
+
+        super(0);
+
+        this.file = file;
+        this.verified = new long[capacity()];
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Whether the peripheral was verified not to be a lock within the TTL. Loads the cache file on first access. */
+    synchronized boolean contains(long address, long now) {
+
+        load();
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) && now - verified[slot] < TTL;
+    }
+
+    /** Records that the peripheral does not expose the lock service. */
+    synchronized void put(long address, long now) {
+
+        load();
+
+        record(address, now);
+
+        dirty = true;
+    }
+
+    /**
+     * Forgets the peripheral, e.g. because it started advertising the lock service.
+     *
+     * @return {@code false} if the peripheral was not cached.
+     */
+    synchronized boolean remove(long address) {
+
+        load();
+
+        int slot = slotFor(address);
+
+        if (!isOccupied(slot)) return false;
+
+        removeAt(slot);
+
+        dirty = true;
+
+        return true;
+    }
+
+    /** The number of cached peripherals, including expired ones not yet dropped. */
+    synchronized int size() {
+
+        load();
+
+        return count();
+    }
+
+    /** Writes the cache to disk if it changed, dropping the expired entries. */
+    synchronized void save(long now) throws IOException {
+
+        if (!dirty || file == null) return;
+
+        int count = 0;
+
+        for (int slot = 0; slot < capacity(); slot++) if (isOccupied(slot) && now - verified[slot] < TTL) count++;
+
+        File temporary = new File(file.getPath() + ".tmp");
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+
+        try {
+
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(count);
+
+            for (int slot = 0; slot < capacity(); slot++) {
+
+                if (!isOccupied(slot) || now - verified[slot] >= TTL) continue;
+
+                output.writeLong(addressAt(slot));
+                output.writeLong(verified[slot]);
+            }
+        }
+
+        finally { output.close(); }
+
+        if (!temporary.renameTo(file)) throw new IOException("Could not replace " + file);
+
+        dirty = false;
+    }
+
+    /**
+     * AddressTable
+     */
+
+    @Override
+    void move(int from, int to) { verified[to] = verified[from]; }
+
+    @Override
+    void rehash(int capacity, int[] slots) {
+
+        long[] oldVerified = verified;
+
+        verified = new long[capacity];
+
+        for (int i = 0; i < slots.length; i++) if (slots[i] != -1) verified[slots[i]] = oldVerified[i];
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private void record(long address, long now) {
+
+        int slot = slotFor(address);
+
+        if (!isOccupied(slot)) slot = insert(address);
+
+        verified[slot] = now;
+    }
+
+    private void load() {
+
+        if (loaded) return;
+
+        loaded = true;
+
+        if (file == null) return;
+
+        DataInputStream input;
+
+        try { input = new DataInputStream(new BufferedInputStream(new FileInputStream(file))); }
+
+        catch (FileNotFoundException e) { return; }
+
+        long now = System.currentTimeMillis();
+
+        try {
+
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return;
+
+            int count = input.readInt();
+
+            for (int i = 0; i < count; i++) {
+
+                long address = input.readLong();
+                long verified = input.readLong();
+
+                if (now - verified < TTL) record(address, verified);
+            }
+        }
+
+        // a truncated or corrupt cache is simply rebuilt
+        catch (IOException e) { removeAll(); }
+
+        finally {
+
+            try { input.close(); }
+
+            catch (IOException e) { }
+        }
+    }
+}
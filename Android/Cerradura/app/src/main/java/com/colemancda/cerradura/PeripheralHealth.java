@@ -0,0 +1,193 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the peripherals that failed to be probed, so scans stop spending connection timeouts on them.
+ *
+ * Each failure backs the peripheral off exponentially, it is not probed again until the backoff passed.
+ * After {@link #BREAKER_THRESHOLD} failures in a row the circuit opens and the peripheral is left alone
+ * for the cool-down, after which a single probe decides whether it closes again or stays open.
+ * A successful probe, whether the peripheral is a lock or not, forgets the failures.
+ *
+ * Failures are read without locking, so discovery can check every advertisement.
+ *
+ * Times are monotonic, in milliseconds.
+ */
+public final class PeripheralHealth {
+
+    /**
+     * Constants
+     */
+
+    /** The backoff after the first failure, doubled by each failure in a row. */
+    public static final long BACKOFF = 2 * 1000;
+
+    /** The number of failures in a row that open the circuit. */
+    public static final int BREAKER_THRESHOLD = 3;
+
+    /** How long an open circuit keeps the peripheral from being probed. */
+    public static final long COOL_DOWN = 5 * 60 * 1000;
+
+    /**
+     * How long after its backoff or cool-down ended a failure is kept without the peripheral being probed again,
+     * e.g. because it went out of range, before it is forgotten.
+     */
+    public static final long RETENTION = COOL_DOWN;
+
+    /** The status of a failure that was not reported by the stack, e.g. a timeout. */
+    public static final int UNKNOWN_STATUS = -1;
+
+    /**
+     * Properties
+     */
+
+    private final ConcurrentHashMap<Long, Failure> failures = new ConcurrentHashMap<Long, Failure>();
+
+    private long skipped = 0;
+
+    private long trips = 0;
+
+    /**
+     * Methods
+     */
+
+    /** Whether the peripheral may be probed now. Counts the peripherals that may not. */
+    synchronized boolean shouldProbe(long address, long now) {
+
+        Failure failure = failures.get(address);
+
+        if (failure == null || now >= failure.retryAt) return true;
+
+        skipped++;
+
+        return false;
+    }
+
+    /** Whether the peripheral may not be probed yet. Unlike {@link #shouldProbe(long, long)} it is not counted as skipped. */
+    boolean isBackingOff(long address, long now) {
+
+        Failure failure = failures.get(address);
+
+        return failure != null && now < failure.retryAt;
+    }
+
+    synchronized void didSucceed(long address) { failures.remove(address); }
+
+    /** Records a failed probe, and backs off or opens the circuit. */
+    synchronized void didFail(long address, String device, int status, long now) {
+
+        Failure previous = failures.get(address);
+
+        int count = previous != null ? previous.count + 1 : 1;
+
+        boolean open = count >= BREAKER_THRESHOLD;
+
+        // a failing probe after the cool-down opens the circuit again
+        if (open) trips++;
+
+        long delay = open ? COOL_DOWN : BACKOFF << (count - 1);
+
+        failures.put(address, new Failure(device, count, status, now, now + delay, open));
+    }
+
+    /** The failure state of the peripheral, or {@code null} if it is healthy. */
+    public synchronized Failure get(String device) { return failures.get(ScanTable.address(device)); }
+
+    /** The failing peripherals, in no particular order. */
+    public synchronized List<Failure> getFailures() { return new ArrayList<Failure>(failures.values()); }
+
+    /** The number of peripherals with an open circuit. */
+    public synchronized int getOpenCircuits() {
+
+        int open = 0;
+
+        for (Failure failure : failures.values()) if (failure.isOpen()) open++;
+
+        return open;
+    }
+
+    /** The number of times a peripheral was skipped by a scan because it was failing. */
+    public synchronized long getSkipped() { return skipped; }
+
+    /** The number of times a circuit opened. */
+    public synchronized long getTrips() { return trips; }
+
+    /**
+     * Forgets the failures of peripherals not probed again within {@link #RETENTION} after they were allowed to,
+     * so the failures of peripherals passing by do not pile up.
+     *
+     * @return The number of failures forgotten.
+     */
+    synchronized int prune(long now) {
+
+        int pruned = 0;
+
+        Iterator<Failure> iterator = failures.values().iterator();
+
+        while (iterator.hasNext()) {
+
+            if (now - iterator.next().retryAt < RETENTION) continue;
+
+            iterator.remove();
+
+            pruned++;
+        }
+
+        return pruned;
+    }
+
+    /** Forgets all failures, e.g. after Bluetooth was restarted. */
+    public synchronized void reset() { failures.clear(); }
+
+    @Override
+    public synchronized String toString() {
+
+        return "PeripheralHealth(failing: " + failures.size() + ", open: " + getOpenCircuits() + ", skipped: " + skipped + ", trips: " + trips + ")";
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /** The failures in a row of one peripheral. */
+    public static final class Failure {
+
+        public final String address;
+
+        /** The number of failed probes in a row. */
+        public final int count;
+
+        /** The GATT status of the last failure, e.g. 133, or {@link #UNKNOWN_STATUS}. */
+        public final int status;
+
+        public final long lastFailure;
+
+        /** When the peripheral may be probed again. */
+        public final long retryAt;
+
+        private final boolean open;
+
+        Failure(String address, int count, int status, long lastFailure, long retryAt, boolean open) {
+
+            this.address = address;
+            this.count = count;
+            this.status = status;
+            this.lastFailure = lastFailure;
+            this.retryAt = retryAt;
+            this.open = open;
+        }
+
+        /** Whether the circuit opened, and the peripheral is left alone for the cool-down. */
+        public boolean isOpen() { return open; }
+
+        @Override
+        public String toString() {
+
+            return address + " failed " + count + " times (status " + status + ")" + (open ? ", circuit open" : "");
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one scan the radio is running, shared by every {@link LockScan} requested while it is in flight.
+ *
+ * Each scan that joins receives the progress and the result of the flight. The flight stops early
+ * once every scan has been cancelled, reached its deadline or, for the nearest lock, found it.
+ */
+final class ScanFlight {
+
+    /** How often a waiting flight checks its scans for cancellation and deadlines, in milliseconds. */
+    private static final long POLL_INTERVAL = 50;
+
+    /**
+     * Properties
+     */
+
+    /** The scan window, in milliseconds. */
+    final long window;
+
+    /** The locks found so far, reported to scans that reach their deadline. */
+    private final List<LockManager.Lock> found;
+
+    private final CopyOnWriteArrayList<LockScan> scans = new CopyOnWriteArrayList<LockScan>();
+
+    /** Wakes up the window once no scan is waiting anymore. */
+    private final CountDownLatch unwanted = new CountDownLatch(1);
+
+    /** Whether a scan is waiting for a lock to come near. */
+    private volatile boolean seekingProximity = false;
+
+    private boolean closed = false;
+
+    private final AtomicInteger seen = new AtomicInteger();
+
+    private volatile int probes = 0;
+
+    private final AtomicInteger probed = new AtomicInteger();
+
+    private final AtomicInteger locks = new AtomicInteger();
+
+    ScanFlight(long window, List<LockManager.Lock> found) {
+
+        this.window = window;
+        this.found = found;
+    }
+
+    /**
+     * Methods
+     */
+
+    /**
+     * Adds the scan to the flight.
+     *
+     * @return {@code false} if the flight already finished, and a new one must be started.
+     */
+    synchronized boolean join(LockScan scan) {
+
+        if (closed) return false;
+
+        scans.add(scan);
+
+        if (scan.isProximity()) seekingProximity = true;
+
+        scan.didJoin(this);
+
+        return true;
+    }
+
+    /** Prevents more scans from joining, because the result is being delivered. */
+    synchronized void close() { closed = true; }
+
+    /** Whether a scan is still waiting for the result. */
+    boolean isWanted() {
+
+        long now = LockManager.now();
+
+        boolean wanted = false;
+
+        for (LockScan scan : scans) {
+
+            if (scan.isDone()) continue;
+
+            if (scan.isExpired(now)) { scan.expire(scan.isProximity() ? Collections.<LockManager.Lock>emptyList() : partialResult()); continue; }
+
+            wanted = true;
+        }
+
+        return wanted;
+    }
+
+    /** Waits for the scan window to pass, or until no scan wants the result. */
+    void awaitWindow() throws InterruptedException {
+
+        long end = LockManager.now() + window;
+
+        long remaining;
+
+        while ((remaining = end - LockManager.now()) > 0 && isWanted()) {
+
+            unwanted.await(Math.min(remaining, POLL_INTERVAL), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** How long to wait for the next probe before checking the scans again, in milliseconds. */
+    long pollInterval() { return POLL_INTERVAL; }
+
+    int getSeen() { return seen.get(); }
+
+    int getProbes() { return probes; }
+
+    int getProbed() { return probed.get(); }
+
+    int getFound() { return locks.get(); }
+
+    /**
+     * Scanning
+     */
+
+    boolean isSeekingProximity() { return seekingProximity; }
+
+    void didCancel() { checkWanted(); }
+
+    /** A known lock was heard with the specified filtered RSSI. */
+    void didHear(LockManager.Lock lock, float rssi) {
+
+        List<LockManager.Lock> nearest = null;
+
+        for (LockScan scan : scans) {
+
+            if (!scan.isNear(rssi)) continue;
+
+            if (nearest == null) nearest = Collections.singletonList(lock);
+
+            scan.complete(nearest);
+        }
+
+        if (nearest != null) checkWanted();
+    }
+
+    void didSee() {
+
+        seen.incrementAndGet();
+
+        for (LockScan scan : scans) scan.progress();
+    }
+
+    void willProbe(int count) {
+
+        probes = count;
+
+        for (LockScan scan : scans) scan.progress();
+    }
+
+    void didProbe() {
+
+        probed.incrementAndGet();
+
+        for (LockScan scan : scans) scan.progress();
+    }
+
+    void didFind(LockManager.Lock lock) {
+
+        locks.incrementAndGet();
+
+        for (LockScan scan : scans) scan.didFind(lock);
+    }
+
+    void complete(List<LockManager.Lock> result) {
+
+        // no lock came near enough
+        for (LockScan scan : scans) scan.complete(scan.isProximity() ? Collections.<LockManager.Lock>emptyList() : result);
+    }
+
+    void fail(Exception error) {
+
+        for (LockScan scan : scans) scan.fail(error);
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private void checkWanted() {
+
+        for (LockScan scan : scans) {
+
+            if (!scan.isDone()) return;
+        }
+
+        unwanted.countDown();
+    }
+
+    private List<LockManager.Lock> partialResult() {
+
+        return Collections.unmodifiableList(new ArrayList<LockManager.Lock>(found));
+    }
+}
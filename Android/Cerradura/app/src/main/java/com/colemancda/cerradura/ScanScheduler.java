@@ -0,0 +1,307 @@
+package com.colemancda.cerradura;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs duty-cycled scans on a background thread, adapting the scan window and the pause between
+ * scans to what the previous scan discovered.
+ *
+ * While the visible peripherals and locks stay the same the pause doubles up to {@link #MAX_INTERVAL}
+ * and the window shrinks to {@link #MIN_WINDOW}. As soon as something changes the pause drops back to
+ * {@link #MIN_INTERVAL}. If peripherals are still being discovered near the end of a window the
+ * next window is doubled, up to {@link #MAX_WINDOW}, for crowded or slow advertising environments.
+ *
+ * Periodic scans are skipped while {@link LockDiscovery} is running. The app runs discovery from
+ * {@link LockManagerService}, which keeps the nearby locks current without periodic scans, and only
+ * uses {@link #scanNow()}. Periodic scanning is for clients that cannot keep the radio scanning.
+ */
+public final class ScanScheduler {
+
+    /**
+     * Constants
+     */
+
+    /** Milliseconds. Matches the fixed window used before scans were scheduled. */
+    public static final long DEFAULT_WINDOW = 3000;
+
+    public static final long MIN_WINDOW = 1000;
+
+    public static final long MAX_WINDOW = 10000;
+
+    /** With {@link #MIN_WINDOW}, at most 5 scans start in 30 seconds even while every scan sees a change. */
+    public static final long MIN_INTERVAL = 6000;
+
+    public static final long MAX_INTERVAL = 60000;
+
+    /** Discoveries after this fraction of the window mean the window was too short. */
+    static final float LATE_DISCOVERY = 0.75f;
+
+    /**
+     * At most this many scans are started within {@link #SCAN_START_PERIOD}, including requested ones.
+     * Android 7 and later silently throttle apps that start more scans than that.
+     */
+    static final int MAX_SCAN_STARTS = 5;
+
+    static final long SCAN_START_PERIOD = 30 * 1000;
+
+    /**
+     * Properties
+     */
+
+    private final LockManager manager;
+
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> next;
+
+    private boolean running = false;
+
+    private boolean scanning = false;
+
+    /** A scan was requested while scanning. */
+    private boolean requested = false;
+
+    private long window;
+
+    private long interval = MIN_INTERVAL;
+
+    /** The peripherals and locks seen by the previous scan. */
+    private final Set<Long> peripherals = new HashSet<Long>();
+
+    private final Set<UUID> locks = new HashSet<UUID>();
+
+    private long scans = 0;
+
+    private long radioTime = 0;
+
+    /** When the last scans started, oldest first once the ring is full. */
+    private final long[] scanStarts = new long[MAX_SCAN_STARTS];
+
+    private int scanStartCount = 0;
+
+    private final Runnable scan = new Runnable() {
+        @Override
+        public void run() {
+
+            long window;
+
+            synchronized (ScanScheduler.this) {
+
+                boolean explicit = requested;
+
+                requested = false;
+
+                if (!running && !explicit) return;
+
+                // a scan requested directly from the manager is already in progress, requested scans join it
+                if (!explicit && manager.getIsScanning()) { schedule(interval); return; }
+
+                // the live view of a running discovery is already current
+                if (!explicit && manager.getDiscovery().isRunning()) { schedule(interval); return; }
+
+                // keep the radio from being throttled, a requested scan stays requested until then
+                long delay = startDelay(LockManager.now());
+
+                if (delay > 0) { requested = explicit; schedule(delay); return; }
+
+                didStart(LockManager.now());
+
+                window = ScanScheduler.this.window;
+
+                scanning = true;
+            }
+
+            try {
+
+                manager.scan(window, TimeUnit.MILLISECONDS);
+
+                LockManager.ScanSummary summary = manager.getLastScan();
+
+                synchronized (ScanScheduler.this) {
+
+                    scans++;
+                    radioTime += summary.window;
+
+                    didScan(summary);
+                }
+            }
+
+            catch (Exception e) {
+
+                manager.log("Scheduled scan failed: " + e);
+
+                synchronized (ScanScheduler.this) { interval = Math.min(interval * 2, MAX_INTERVAL); }
+            }
+
+            synchronized (ScanScheduler.this) {
+
+                scanning = false;
+
+                if (requested) schedule(0);
+
+                else if (running) schedule(interval);
+            }
+        }
+    };
+
+    ScanScheduler(LockManager manager) {
+
+        this(manager, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "ScanScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), DEFAULT_WINDOW);
+    }
+
+    ScanScheduler(LockManager manager, ScheduledExecutorService executor, long window) {
+
+        this.manager = manager;
+        this.executor = executor;
+        this.window = window;
+    }
+
+    /**
+     * Methods
+     */
+
+    /** Starts scanning periodically, beginning right away. Does nothing if already started. */
+    public synchronized void start() {
+
+        if (running) return;
+
+        running = true;
+
+        if (!scanning) schedule(0);
+    }
+
+    /** Stops scheduling scans. A scan in progress runs to completion. */
+    public synchronized void stop() {
+
+        running = false;
+
+        requested = false;
+
+        if (next != null) next.cancel(false);
+
+        next = null;
+    }
+
+    /**
+     * Scans once as soon as possible, e.g. when the user asks for it, even while stopped or while discovery is running.
+     * If the scheduler is running it returns to frequent scanning.
+     */
+    public synchronized void scanNow() {
+
+        interval = MIN_INTERVAL;
+
+        window = Math.max(window, DEFAULT_WINDOW);
+
+        requested = true;
+
+        if (!scanning) schedule(0);
+    }
+
+    public synchronized boolean isRunning() { return running; }
+
+    /** The length of the next scan window, in milliseconds. */
+    public synchronized long getWindow() { return window; }
+
+    /** The pause after the next scan, in milliseconds. */
+    public synchronized long getInterval() { return interval; }
+
+    /** The number of scheduled scans completed. */
+    public synchronized long getScanCount() { return scans; }
+
+    /** Total time the radio spent scanning for scheduled scans, in milliseconds. */
+    public synchronized long getRadioTime() { return radioTime; }
+
+    /**
+     * Adapts the next window and interval to the result of a scan.
+     *
+     * @return Whether the scan saw something the previous one did not.
+     */
+    synchronized boolean didScan(LockManager.ScanSummary summary) {
+
+        boolean changed = false;
+
+        Set<Long> peripherals = new HashSet<Long>(summary.peripherals.length * 2);
+
+        for (long peripheral : summary.peripherals) {
+
+            peripherals.add(peripheral);
+
+            if (!this.peripherals.contains(peripheral)) changed = true;
+        }
+
+        Set<UUID> locks = new HashSet<UUID>();
+
+        for (LockManager.Lock lock : summary.locks) locks.add(lock.UUID);
+
+        if (!locks.equals(this.locks)) changed = true;
+
+        boolean late = summary.lastDiscovery > summary.window * LATE_DISCOVERY;
+
+        if (changed) {
+
+            interval = MIN_INTERVAL;
+
+            if (late) window = Math.min(window * 2, MAX_WINDOW);
+
+        } else {
+
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+
+            window = late ? window : Math.max(window * 3 / 4, MIN_WINDOW);
+        }
+
+        this.peripherals.clear();
+        this.peripherals.addAll(peripherals);
+
+        this.locks.clear();
+        this.locks.addAll(locks);
+
+        return changed;
+    }
+
+    /** How long to wait before starting another scan, so no more than {@link #MAX_SCAN_STARTS} start within the period. */
+    synchronized long startDelay(long now) {
+
+        if (scanStartCount < MAX_SCAN_STARTS) return 0;
+
+        long oldest = scanStarts[scanStartCount % MAX_SCAN_STARTS];
+
+        return Math.max(0, oldest + SCAN_START_PERIOD - now);
+    }
+
+    synchronized void didStart(long now) { scanStarts[scanStartCount++ % MAX_SCAN_STARTS] = now; }
+
+    @Override
+    public synchronized String toString() {
+
+        return "ScanScheduler(window: " + window + " ms, interval: " + interval + " ms, scans: " + scans
+                + ", radio time: " + radioTime + " ms, peripherals: " + peripherals.size() + ")";
+    }
+
+    /**
+     * Private Methods
+     */
+
+    /** Must be called while synchronized. */
+    private void schedule(long delay) {
+
+        if (next != null) next.cancel(false);
+
+        next = executor.schedule(scan, delay, TimeUnit.MILLISECONDS);
+    }
+}
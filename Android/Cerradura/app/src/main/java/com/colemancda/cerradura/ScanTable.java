@@ -0,0 +1,349 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The peripherals seen during a scan, indexed by MAC address packed into a {@code long}.
+ *
+ * An {@link AddressTable} with the values in parallel primitive arrays, so recording a repeated
+ * advertisement is a hash lookup and a few array stores, without allocating.
+ */
+final class ScanTable<T> extends AddressTable {
+
+    /** Weight of a new sample in the running RSSI. */
+    private static final float RSSI_WEIGHT = 0.25f;
+
+    /** Variance of a single RSSI sample, in dB squared, for the filtered RSSI. */
+    static final float RSSI_MEASUREMENT_NOISE = 16;
+
+    /** How much the true RSSI can drift, in dB squared per millisecond, e.g. while walking. */
+    static final float RSSI_PROCESS_NOISE = 0.004f;
+
+    private Object[] devices;
+
+    private long[] firstSeen;
+
+    private long[] lastSeen;
+
+    private int[] advertisementCount;
+
+    private int[] lastRssi;
+
+    private float[] averageRssi;
+
+    /** Kalman estimate of the RSSI, and its variance. */
+    private float[] filteredRssi;
+
+    private float[] rssiVariance;
+
+    /** Slots in insertion order. */
+    private int[] order;
+
+    ScanTable(int expectedSize) {
+
+        super(expectedSize);
+
+        allocate(capacity());
+    }
+
+    /**
+     * Methods
+     */
+
+    /**
+     * Records an advertisement from the peripheral.
+     *
+     * @return {@code true} if this is the first advertisement seen from the peripheral.
+     */
+    synchronized boolean record(long address, T device, int rssi, long now) {
+
+        int slot = slotFor(address);
+
+        if (isOccupied(slot)) {
+
+            // the estimate is less certain the longer the peripheral was not heard
+            float variance = rssiVariance[slot] + RSSI_PROCESS_NOISE * Math.max(now - lastSeen[slot], 0);
+            float gain = variance / (variance + RSSI_MEASUREMENT_NOISE);
+
+            filteredRssi[slot] += (rssi - filteredRssi[slot]) * gain;
+            rssiVariance[slot] = variance * (1 - gain);
+
+            advertisementCount[slot]++;
+            lastSeen[slot] = now;
+            lastRssi[slot] = rssi;
+            averageRssi[slot] += (rssi - averageRssi[slot]) * RSSI_WEIGHT;
+
+            return false;
+        }
+
+        slot = insert(address);
+
+        devices[slot] = device;
+        firstSeen[slot] = now;
+        lastSeen[slot] = now;
+        advertisementCount[slot] = 1;
+        lastRssi[slot] = rssi;
+        averageRssi[slot] = rssi;
+        filteredRssi[slot] = rssi;
+        rssiVariance[slot] = RSSI_MEASUREMENT_NOISE;
+        order[count() - 1] = slot;
+
+        return true;
+    }
+
+    synchronized boolean contains(long address) {
+
+        return isOccupied(slotFor(address));
+    }
+
+    synchronized int size() { return count(); }
+
+    /**
+     * Forgets the peripheral.
+     *
+     * @return {@code false} if the peripheral has not been seen.
+     */
+    synchronized boolean remove(long address) {
+
+        int slot = slotFor(address);
+
+        if (!isOccupied(slot)) return false;
+
+        // keep the remaining slots in insertion order
+        int index = indexOf(slot);
+
+        System.arraycopy(order, index + 1, order, index, count() - index - 1);
+
+        devices[removeAt(slot)] = null;
+
+        return true;
+    }
+
+    /**
+     * Removes the peripherals not seen since the specified time.
+     *
+     * @return The removed peripherals, in the order they were first seen.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> expire(long seenBefore) {
+
+        ArrayList<T> expired = new ArrayList<T>();
+
+        long[] addresses = new long[count()];
+
+        int count = 0;
+
+        for (int i = 0; i < addresses.length; i++) {
+
+            int slot = order[i];
+
+            if (lastSeen[slot] >= seenBefore) continue;
+
+            expired.add((T) devices[slot]);
+
+            addresses[count++] = addressAt(slot);
+        }
+
+        for (int i = 0; i < count; i++) remove(addresses[i]);
+
+        return expired;
+    }
+
+    synchronized void clear() {
+
+        removeAll();
+
+        Arrays.fill(devices, null);
+    }
+
+    /** The peripherals in the order they were first seen. */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> devices() {
+
+        ArrayList<T> list = new ArrayList<T>(count());
+
+        for (int i = 0; i < count(); i++) list.add((T) devices[order[i]]);
+
+        return list;
+    }
+
+    /** The number of advertisements received, or 0 if the peripheral has not been seen. */
+    synchronized int advertisementCount(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? advertisementCount[slot] : 0;
+    }
+
+    /** The time of the last advertisement, or 0 if the peripheral has not been seen. */
+    synchronized long lastSeen(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? lastSeen[slot] : 0;
+    }
+
+    synchronized long firstSeen(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? firstSeen[slot] : 0;
+    }
+
+    synchronized int lastRssi(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? lastRssi[slot] : 0;
+    }
+
+    /** The running (exponentially weighted) RSSI, or 0 if the peripheral has not been seen. */
+    synchronized float averageRssi(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? averageRssi[slot] : 0;
+    }
+
+    /**
+     * The RSSI filtered with a Kalman filter, or 0 if the peripheral has not been seen.
+     *
+     * Unlike the running average, a new sample weighs more after a pause, so the estimate catches up
+     * quickly when a peripheral is heard again, and settles while it advertises steadily.
+     */
+    synchronized float filteredRssi(long address) {
+
+        int slot = slotFor(address);
+
+        return isOccupied(slot) ? filteredRssi[slot] : 0;
+    }
+
+    /**
+     * Addresses
+     */
+
+    /** Packs a MAC address string ("AA:BB:CC:DD:EE:FF") into the lower 48 bits of a {@code long}. */
+    static long address(String string) {
+
+        if (string.length() != 17) throw new IllegalArgumentException("Invalid address " + string);
+
+        long value = 0;
+
+        for (int i = 0; i < 17; i++) {
+
+            if (i % 3 == 2) {
+
+                if (string.charAt(i) != ':') throw new IllegalArgumentException("Invalid address " + string);
+
+                continue;
+            }
+
+            int digit = Character.digit(string.charAt(i), 16);
+
+            if (digit < 0) throw new IllegalArgumentException("Invalid address " + string);
+
+            value = (value << 4) | digit;
+        }
+
+        return value;
+    }
+
+    /** Formats a packed address as a MAC address string. */
+    static String address(long value) {
+
+        char[] chars = new char[17];
+
+        for (int i = 0; i < 6; i++) {
+
+            int octet = (int) (value >>> (40 - i * 8)) & 0xFF;
+
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * AddressTable
+     */
+
+    @Override
+    void move(int from, int to) {
+
+        devices[to] = devices[from];
+        firstSeen[to] = firstSeen[from];
+        lastSeen[to] = lastSeen[from];
+        advertisementCount[to] = advertisementCount[from];
+        lastRssi[to] = lastRssi[from];
+        averageRssi[to] = averageRssi[from];
+        filteredRssi[to] = filteredRssi[from];
+        rssiVariance[to] = rssiVariance[from];
+
+        order[indexOf(from)] = to;
+    }
+
+    @Override
+    void rehash(int capacity, int[] slots) {
+
+        Object[] oldDevices = devices;
+        long[] oldFirstSeen = firstSeen;
+        long[] oldLastSeen = lastSeen;
+        int[] oldAdvertisementCount = advertisementCount;
+        int[] oldLastRssi = lastRssi;
+        float[] oldAverageRssi = averageRssi;
+        float[] oldFilteredRssi = filteredRssi;
+        float[] oldRssiVariance = rssiVariance;
+        int[] oldOrder = order;
+
+        allocate(capacity);
+
+        for (int i = 0; i < count(); i++) {
+
+            int oldSlot = oldOrder[i];
+
+            int slot = slots[oldSlot];
+
+            devices[slot] = oldDevices[oldSlot];
+            firstSeen[slot] = oldFirstSeen[oldSlot];
+            lastSeen[slot] = oldLastSeen[oldSlot];
+            advertisementCount[slot] = oldAdvertisementCount[oldSlot];
+            lastRssi[slot] = oldLastRssi[oldSlot];
+            averageRssi[slot] = oldAverageRssi[oldSlot];
+            filteredRssi[slot] = oldFilteredRssi[oldSlot];
+            rssiVariance[slot] = oldRssiVariance[oldSlot];
+            order[i] = slot;
+        }
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private int indexOf(int slot) {
+
+        for (int i = 0; i < count(); i++) {
+
+            if (order[i] == slot) return i;
+        }
+
+        throw new IllegalStateException("Slot " + slot + " is not in use");
+    }
+
+    private void allocate(int capacity) {
+
+        devices = new Object[capacity];
+        firstSeen = new long[capacity];
+        lastSeen = new long[capacity];
+        advertisementCount = new int[capacity];
+        lastRssi = new int[capacity];
+        averageRssi = new float[capacity];
+        filteredRssi = new float[capacity];
+        rssiVariance = new float[capacity];
+        order = new int[capacity];
+    }
+}
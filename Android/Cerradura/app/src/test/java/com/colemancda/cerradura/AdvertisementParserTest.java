@@ -0,0 +1,67 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdvertisementParserTest {
+
+    /** Flags + complete list of 128-bit services with the lock service. */
+    private static final byte[] LOCK_SERVICE_RECORD = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07,
+            (byte) 0xC7, (byte) 0xA8, (byte) 0xD5, 0x70, (byte) 0xAB, 0x09, (byte) 0xC2, (byte) 0xB3,
+            (byte) 0xE6, 0x11, 0x4C, 0x04, 0x28, 0x3D, 0x37, (byte) 0xD5,
+            0x00, 0x00
+    };
+
+    /** Flags + iBeacon with the lock proximity UUID. */
+    private static final byte[] LOCK_BEACON_RECORD = {
+            0x02, 0x01, 0x06,
+            0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,
+            0x51, 0x09, (byte) 0xBE, 0x6D, 0x39, 0x18, 0x43, (byte) 0xFE,
+            (byte) 0xA6, 0x29, (byte) 0xCB, 0x2E, 0x07, 0x07, (byte) 0xEA, 0x5F,
+            0x00, 0x00, 0x00, 0x00, (byte) 0xC8
+    };
+
+    /** Flags + complete list of 128-bit services with some other service. */
+    private static final byte[] OTHER_SERVICE_RECORD = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07,
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+            0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10
+    };
+
+    /** Flags + shortened local name. */
+    private static final byte[] NAME_ONLY_RECORD = { 0x02, 0x01, 0x06, 0x04, 0x08, 'L', 'o', 'c' };
+
+    @Test
+    public void classify_lockService() throws Exception {
+        assertEquals(AdvertisementParser.LOCK_SERVICE, AdvertisementParser.classify(LOCK_SERVICE_RECORD));
+    }
+
+    @Test
+    public void classify_lockBeacon() throws Exception {
+        assertEquals(AdvertisementParser.LOCK_BEACON, AdvertisementParser.classify(LOCK_BEACON_RECORD));
+    }
+
+    @Test
+    public void classify_otherService() throws Exception {
+        assertEquals(AdvertisementParser.NOT_LOCK, AdvertisementParser.classify(OTHER_SERVICE_RECORD));
+        assertFalse(AdvertisementParser.isLockCandidate(OTHER_SERVICE_RECORD, false));
+    }
+
+    @Test
+    public void classify_unknown() throws Exception {
+        assertEquals(AdvertisementParser.UNKNOWN, AdvertisementParser.classify(NAME_ONLY_RECORD));
+        assertEquals(AdvertisementParser.UNKNOWN, AdvertisementParser.classify(null));
+        assertTrue(AdvertisementParser.isLockCandidate(NAME_ONLY_RECORD, false));
+        assertFalse(AdvertisementParser.isLockCandidate(NAME_ONLY_RECORD, true));
+    }
+
+    @Test
+    public void classify_truncatedRecord() throws Exception {
+        byte[] truncated = { 0x11, 0x07, (byte) 0xC7, (byte) 0xA8 };
+        assertEquals(AdvertisementParser.UNKNOWN, AdvertisementParser.classify(truncated));
+    }
+}
@@ -0,0 +1,97 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private final ArrayList<String> closed = new ArrayList<String>();
+
+    private final ConnectionPool<String> pool = new ConnectionPool<String>(2, 1000, new ConnectionPool.Evictor<String>() {
+        @Override
+        public void evict(String connection) {
+            closed.add(connection);
+        }
+    });
+
+    @Test
+    public void checkout_countsHitsAndMisses() throws Exception {
+        UUID lock = UUID.randomUUID();
+
+        assertNull(pool.checkout(lock));
+        pool.checkin(lock, "a", 0);
+        assertEquals("a", pool.checkout(lock));
+        assertNull(pool.checkout(lock));
+
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void checkin_evictsLeastRecentlyUsed() throws Exception {
+        UUID a = UUID.randomUUID(), b = UUID.randomUUID(), c = UUID.randomUUID();
+
+        pool.checkin(a, "a", 0);
+        pool.checkin(b, "b", 0);
+        pool.checkin(a, pool.checkout(a), 1);
+        pool.checkin(c, "c", 2);
+
+        assertEquals(2, pool.size());
+        assertEquals(1, closed.size());
+        assertEquals("b", closed.get(0));
+    }
+
+    @Test
+    public void pin_keepsConnectionBeyondCapacityAndTimeout() throws Exception {
+        UUID pinned = UUID.randomUUID();
+
+        pool.pin(pinned);
+        pool.checkin(pinned, "pinned", 0);
+        pool.checkin(UUID.randomUUID(), "a", 1);
+        pool.checkin(UUID.randomUUID(), "b", 2);
+        pool.evictIdle(5000);
+
+        assertEquals(1, pool.size());
+        assertEquals(2, closed.size());
+        assertEquals("pinned", pool.checkout(pinned));
+
+        pool.unpin(pinned);
+        pool.checkin(pinned, "pinned", 0);
+        pool.evictIdle(5000);
+        assertEquals("pinned", closed.get(2));
+    }
+
+    @Test
+    public void evictIdle_closesExpiredConnections() throws Exception {
+        pool.checkin(UUID.randomUUID(), "old", 0);
+        pool.checkin(UUID.randomUUID(), "new", 900);
+
+        pool.evictIdle(1500);
+
+        assertEquals(1, pool.size());
+        assertEquals("old", closed.get(0));
+
+        assertTrue(pool.remove("new"));
+        assertFalse(pool.remove("new"));
+        assertEquals(0, pool.size());
+        assertEquals(2, closed.size());
+    }
+
+    @Test
+    public void evictEldest_skipsPinnedConnections() throws Exception {
+        UUID pinned = UUID.randomUUID();
+
+        pool.pin(pinned);
+        pool.checkin(pinned, "pinned", 0);
+        pool.checkin(UUID.randomUUID(), "a", 1);
+
+        assertTrue(pool.evictEldest());
+        assertEquals("a", closed.get(0));
+        assertFalse(pool.evictEldest());
+        assertEquals(1, pool.size());
+    }
+}
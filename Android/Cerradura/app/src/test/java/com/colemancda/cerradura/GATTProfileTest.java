@@ -0,0 +1,66 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GATTProfileTest {
+
+    @Test
+    public void identifier_roundTrip() throws Exception {
+        UUID identifier = UUID.fromString("0A1B2C3D-4E5F-6071-8293-A4B5C6D7E8F9");
+        byte[] buffer = new byte[LockIdentifier.LENGTH];
+
+        assertEquals(16, LockIdentifier.encode(identifier, buffer, 0));
+        assertEquals(0x0A, buffer[0]);
+        assertEquals((byte) 0xF9, buffer[15]);
+        assertEquals(identifier, LockIdentifier.decode(buffer));
+        assertNull(LockIdentifier.decode(new byte[15]));
+    }
+
+    @Test
+    public void version_bigEndian() throws Exception {
+        byte[] buffer = new byte[LockVersion.LENGTH];
+
+        LockVersion.encode(0x0102030405060708L, buffer, 0);
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, buffer);
+        assertEquals(0x0102030405060708L, LockVersion.decode(buffer, 0));
+    }
+
+    @Test
+    public void packageVersion_roundTrip() throws Exception {
+        long version = LockPackageVersion.value(1, 65535, 3);
+        byte[] buffer = new byte[8];
+
+        LockPackageVersion.encode(version, buffer, 0);
+
+        assertTrue(LockPackageVersion.isValid(buffer));
+        assertEquals(version, LockPackageVersion.decode(buffer, 0));
+        assertEquals(1, LockPackageVersion.major(version));
+        assertEquals(65535, LockPackageVersion.minor(version));
+        assertEquals(3, LockPackageVersion.patch(version));
+    }
+
+    @Test
+    public void status_and_model() throws Exception {
+        assertEquals(LockStatus.UNLOCK, LockStatus.decode(new byte[] { 1 }, 0));
+        assertEquals(LockStatus.INVALID, LockStatus.decode(new byte[] { 7 }, 0));
+        assertEquals(LockModel.ORANGE_PI_ONE, LockModel.decode(new byte[] { 1 }, 0));
+        assertEquals(LockModel.INVALID, LockModel.decode(new byte[] { 0 }, 0));
+    }
+
+    @Test
+    public void setup_layout() throws Exception {
+        UUID identifier = UUID.randomUUID();
+        byte[] buffer = new byte[LockSetup.LENGTH];
+        byte[] hmac = new byte[LockSetup.HMAC_LENGTH];
+        hmac[0] = 42;
+
+        assertEquals(160, LockSetup.encode(identifier, new byte[16], new byte[16], new byte[48], hmac, buffer, 0));
+        assertEquals(42, buffer[LockSetup.HMAC_OFFSET]);
+        assertEquals(identifier.getLeastSignificantBits(), LockSetup.identifierLeastSignificantBits(buffer, 0));
+    }
+}
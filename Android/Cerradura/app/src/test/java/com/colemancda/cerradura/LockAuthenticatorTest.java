@@ -0,0 +1,81 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class LockAuthenticatorTest {
+
+    private final LockAuthenticator authenticator = new LockAuthenticator(new SecureRandom());
+
+    @Test
+    public void authenticate_writesKeyNonceAndHMAC() throws Exception {
+        UUID key = UUID.randomUUID();
+        byte[] secret = secret(1);
+        byte[] buffer = new byte[LockUnlock.LENGTH + 4];
+
+        assertEquals(96, authenticator.authenticate(key, secret, buffer, 4));
+
+        assertEquals(key.getMostSignificantBits(), LockUnlock.keyMostSignificantBits(buffer, 4));
+        assertEquals(key.getLeastSignificantBits(), LockUnlock.keyLeastSignificantBits(buffer, 4));
+        assertTrue(Arrays.equals(hmac(secret, buffer, 4), Arrays.copyOfRange(buffer, 4 + LockUnlock.HMAC_OFFSET, 4 + LockUnlock.LENGTH)));
+    }
+
+    @Test
+    public void authenticate_neverReusesNonces() throws Exception {
+        UUID key = UUID.randomUUID();
+        byte[] secret = secret(2);
+        byte[] buffer = new byte[LockUnlock.LENGTH];
+        Set<String> nonces = new HashSet<String>();
+
+        authenticator.refill();
+        assertEquals(LockAuthenticator.NONCE_POOL_SIZE, authenticator.availableNonces());
+
+        for (int i = 0; i < LockAuthenticator.NONCE_POOL_SIZE * 3; i++) {
+            authenticator.authenticate(key, secret, buffer, 0);
+            assertTrue(nonces.add(Arrays.toString(Arrays.copyOfRange(buffer, LockUnlock.NONCE_OFFSET, LockUnlock.HMAC_OFFSET))));
+            assertTrue(Arrays.equals(hmac(secret, buffer, 0), Arrays.copyOfRange(buffer, LockUnlock.HMAC_OFFSET, LockUnlock.LENGTH)));
+        }
+    }
+
+    @Test
+    public void authenticate_followsChangedSecret() throws Exception {
+        UUID key = UUID.randomUUID();
+        byte[] buffer = new byte[LockUnlock.LENGTH];
+
+        authenticator.prepare(key, secret(3));
+
+        byte[] changed = secret(4);
+        authenticator.authenticate(key, changed, buffer, 0);
+
+        assertTrue(Arrays.equals(hmac(changed, buffer, 0), Arrays.copyOfRange(buffer, LockUnlock.HMAC_OFFSET, LockUnlock.LENGTH)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prepare_rejectsInvalidKeyLength() throws Exception {
+        authenticator.prepare(UUID.randomUUID(), new byte[16]);
+    }
+
+    static byte[] secret(int seed) {
+        byte[] secret = new byte[LockAuthenticator.KEY_LENGTH];
+        for (int i = 0; i < secret.length; i++) secret[i] = (byte) (seed * 31 + i);
+        return secret;
+    }
+
+    /** The HMAC of the nonce in the unlock value, computed from scratch. */
+    static byte[] hmac(byte[] secret, byte[] value, int offset) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(secret, "HmacSHA512"));
+        mac.update(value, offset + LockUnlock.NONCE_OFFSET, LockUnlock.NONCE_LENGTH);
+        return mac.doFinal();
+    }
+}
@@ -0,0 +1,243 @@
+package com.colemancda.cerradura;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockDiscoveryTest {
+
+    private final SimulatedBluetoothTransport transport = new SimulatedBluetoothTransport(4);
+
+    private final LockManager manager = new LockManager(transport);
+
+    private final LockDiscovery discovery = new LockDiscovery(manager, transport, 500);
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    private final LockDiscovery.Listener listener = new LockDiscovery.Listener() {
+        @Override
+        public void onLockAdded(LockManager.Lock lock) {
+            events.add("added " + lock.address);
+        }
+
+        @Override
+        public void onLockUpdated(LockManager.Lock previous, LockManager.Lock lock) {
+            events.add("updated " + lock.address);
+        }
+
+        @Override
+        public void onLockRemoved(LockManager.Lock lock) {
+            events.add("removed " + lock.address);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        discovery.stop();
+        manager.closeConnections();
+        transport.shutdown();
+    }
+
+    @Test
+    public void start_publishesNearbyLocks() throws Exception {
+        List<SimulatedBluetoothTransport.Peripheral> locks = transport.addLocks(5);
+        transport.addOthers(5, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        discovery.addListener(listener);
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertEquals(5, discovery.getLocks().size());
+        assertEquals(5, events.size());
+        for (SimulatedBluetoothTransport.Peripheral lock : locks) assertTrue(events.contains("added " + lock.address));
+
+        // non-locks are probed once
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertEquals(10, transport.getConnections());
+
+        // late listeners get the current state
+        final List<LockManager.Lock> replayed = new ArrayList<LockManager.Lock>();
+        discovery.addListener(new LockDiscovery.Listener() {
+            public void onLockAdded(LockManager.Lock lock) { replayed.add(lock); }
+            public void onLockUpdated(LockManager.Lock previous, LockManager.Lock lock) { }
+            public void onLockRemoved(LockManager.Lock lock) { }
+        });
+        assertEquals(5, replayed.size());
+    }
+
+    @Test
+    public void start_savesWhatProbesLearned() throws Exception {
+        File directory = File.createTempFile("Caches", "");
+        directory.delete();
+        directory.mkdir();
+        manager.setCacheDirectory(directory);
+
+        transport.addLocks(2);
+        transport.addOthers(1, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(300);
+        discovery.stop();
+
+        // without a scan in between
+        File identities = new File(directory, "LockIdentities.cache");
+        File nonLocks = new File(directory, "NonLocks.cache");
+        assertEquals(2, new LockIdentityCache(identities).size());
+        assertEquals(1, new NonLockCache(nonLocks).size());
+
+        identities.delete();
+        nonLocks.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void expire_removesSilentLocks() throws Exception {
+        SimulatedBluetoothTransport.Peripheral silent = transport.addLocks(1).get(0);
+        silent.advertisementDelay = 0;
+        silent.advertisementInterval = 60 * 1000;
+        transport.addLocks(1).get(0).advertisementInterval = 20;
+
+        discovery.addListener(listener);
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(2, discovery.getLocks().size());
+
+        // the scan restarted by expire must not report it again right away
+        silent.advertisementDelay = 60 * 1000;
+
+        discovery.expire(LockManager.now() + 400);
+
+        assertEquals(1, discovery.getLocks().size());
+        assertTrue(events.contains("removed " + silent.address));
+    }
+
+    @Test
+    public void expire_doesNotRestartScanWhenStackReportsDuplicates() throws Exception {
+        transport.addLocks(2);
+        LockDiscovery discovery = new LockDiscovery(manager, transport, 500, 100);
+
+        discovery.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(1500);
+
+            assertEquals(2, discovery.getLocks().size());
+            assertEquals(1, transport.getScansStarted());
+        }
+
+        finally { discovery.stop(); }
+    }
+
+    @Test
+    public void expire_keepsLocksWhileStackFiltersDuplicates() throws Exception {
+        transport.addLocks(2);
+        transport.setFilterDuplicates(true);
+        LockDiscovery discovery = new LockDiscovery(manager, transport, 500, 1000);
+
+        discovery.addListener(listener);
+        discovery.start();
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(2500);
+
+            // every restart reports the locks again, and they are not removed in between
+            assertEquals(2, discovery.getLocks().size());
+            assertEquals(2, events.size());
+            assertTrue(transport.getScansStarted() >= 2);
+        }
+
+        finally { discovery.stop(); }
+    }
+
+    @Test
+    public void start_reportsCachedLocksWithoutConnecting() throws Exception {
+        SimulatedBluetoothTransport.Peripheral lock = transport.addLocks(1).get(0);
+
+        // identify once so the identity cache knows the lock
+        assertNotNull(manager.identify(lock.address));
+        manager.closeConnections();
+
+        discovery.addListener(listener);
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertEquals(Collections.singletonList("added " + lock.address), events);
+        assertEquals(lock.identifier, discovery.getLocks().get(0).UUID);
+        assertEquals(LockStatus.INVALID, discovery.getLocks().get(0).status);
+        assertEquals(1, transport.getConnections());
+    }
+
+    @Test
+    public void onAdvertisement_probesAgainAfterFailedProbe() throws Exception {
+        SimulatedBluetoothTransport.Peripheral lock = transport.addLocks(1).get(0);
+        lock.connectStatus = SimulatedBluetoothTransport.GATT_ERROR;
+        lock.failedConnections = LockManager.PROBE_ATTEMPTS;
+
+        discovery.addListener(listener);
+        discovery.start();
+
+        // a later advertisement probes it again once the backoff passed
+        long deadline = System.currentTimeMillis() + PeripheralHealth.BACKOFF * 3;
+        while (discovery.getLocks().isEmpty() && System.currentTimeMillis() < deadline) TimeUnit.MILLISECONDS.sleep(50);
+
+        assertEquals(Collections.singletonList("added " + lock.address), events);
+        assertEquals(LockManager.PROBE_ATTEMPTS + 1, transport.getConnections());
+        assertNull(manager.getPeripheralHealth().get(lock.address));
+    }
+
+    @Test
+    public void onAdvertisement_doesNotCountBackoffAsSkipped() throws Exception {
+        SimulatedBluetoothTransport.Peripheral lock = transport.addLocks(1).get(0);
+        lock.connectStatus = SimulatedBluetoothTransport.GATT_ERROR;
+        lock.advertisementInterval = 20;
+
+        discovery.start();
+
+        // many advertisements arrive within the backoff, none of them probes or counts as a skipped probe
+        TimeUnit.MILLISECONDS.sleep(PeripheralHealth.BACKOFF / 4);
+
+        assertNotNull(manager.getPeripheralHealth().get(lock.address));
+        assertEquals(LockManager.PROBE_ATTEMPTS, transport.getConnections());
+        assertEquals(0, manager.getPeripheralHealth().getSkipped());
+    }
+
+    @Test
+    public void stop_removesAllLocks() throws Exception {
+        transport.addLocks(3);
+
+        discovery.addListener(listener);
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(200);
+        discovery.stop();
+
+        assertEquals(0, discovery.getLocks().size());
+        assertEquals(6, events.size());
+        assertFalse(discovery.isRunning());
+    }
+
+    @Test
+    public void getNearestLocks_ranksByFilteredRssi() throws Exception {
+        List<SimulatedBluetoothTransport.Peripheral> locks = transport.addLocks(3);
+        locks.get(0).rssi = -85;
+        locks.get(1).rssi = -50;
+        locks.get(2).rssi = -70;
+        for (SimulatedBluetoothTransport.Peripheral lock : locks) lock.advertisementInterval = 20;
+
+        discovery.start();
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        List<LockManager.Lock> nearest = discovery.getNearestLocks();
+        assertEquals(3, nearest.size());
+        assertEquals(locks.get(1).address, nearest.get(0).address);
+        assertEquals(locks.get(2).address, nearest.get(1).address);
+        assertEquals(locks.get(0).address, nearest.get(2).address);
+        assertEquals(-50, discovery.getRssi(nearest.get(0)), 1);
+    }
+}
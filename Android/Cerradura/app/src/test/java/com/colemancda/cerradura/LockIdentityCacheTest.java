@@ -0,0 +1,53 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class LockIdentityCacheTest {
+
+    @Test
+    public void save_roundTrip() throws Exception {
+        File file = File.createTempFile("LockIdentities", ".cache");
+        UUID identifier = UUID.randomUUID();
+
+        LockIdentityCache cache = new LockIdentityCache(file);
+        assertNull(cache.put(0x0A1B2C3D4E5FL, identifier, 1, 42, 1000));
+        cache.save();
+
+        LockIdentityCache.Entry entry = new LockIdentityCache(file).get(0x0A1B2C3D4E5FL);
+        assertNotNull(entry);
+        assertEquals(identifier, entry.identifier);
+        assertEquals(1, entry.model);
+        assertEquals(42, entry.version);
+        assertEquals(1000, entry.verified);
+
+        file.delete();
+    }
+
+    @Test
+    public void put_reportsDisagreement() throws Exception {
+        LockIdentityCache cache = new LockIdentityCache(null);
+        UUID first = UUID.randomUUID();
+
+        assertNull(cache.put(1, first, LockIdentityCache.UNKNOWN_MODEL, 0, 1));
+        assertNull(cache.put(1, first, LockIdentityCache.UNKNOWN_MODEL, 0, 2));
+        assertEquals(first, cache.put(1, UUID.randomUUID(), LockIdentityCache.UNKNOWN_MODEL, 0, 3).identifier);
+    }
+
+    @Test
+    public void load_ignoresCorruptFile() throws Exception {
+        File file = File.createTempFile("LockIdentities", ".cache");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[] { 0x4C, 0x4B, 0x49, 0x43, 0, 0, 0, 1, 0, 0, 0, 5, 1, 2 });
+        output.close();
+
+        assertEquals(0, new LockIdentityCache(file).size());
+
+        file.delete();
+    }
+}
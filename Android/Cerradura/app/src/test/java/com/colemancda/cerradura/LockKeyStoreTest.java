@@ -0,0 +1,154 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class LockKeyStoreTest {
+
+    static LockKeyStore.Key key(UUID lock, int seed) {
+        byte[] permission = new byte[LockKeyStore.PERMISSION_LENGTH];
+        permission[0] = LockKeyStore.Key.PERMISSION_ANYTIME;
+        return new LockKeyStore.Key(lock, UUID.randomUUID(), LockAuthenticatorTest.secret(seed), permission, "Key " + seed, 1000 + seed);
+    }
+
+    @Test
+    public void reopen_roundTrip() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.delete();
+        UUID lock = UUID.randomUUID();
+        LockKeyStore.Key key = key(lock, 1);
+
+        LockKeyStore store = new LockKeyStore(file);
+        store.put(key);
+        store.close();
+
+        LockKeyStore.Key stored = new LockKeyStore(file).get(lock);
+        assertNotNull(stored);
+        assertEquals(lock, stored.lock);
+        assertEquals(key.identifier, stored.identifier);
+        assertTrue(Arrays.equals(key.secret, stored.secret));
+        assertEquals(LockKeyStore.Key.PERMISSION_ANYTIME, stored.getPermissionType());
+        assertEquals("Key 1", stored.name);
+        assertEquals(1001, stored.created);
+
+        file.delete();
+    }
+
+    @Test
+    public void put_replacesKeyForLock() throws Exception {
+        LockKeyStore store = new LockKeyStore(null);
+        UUID lock = UUID.randomUUID();
+
+        store.put(key(lock, 1));
+        LockKeyStore.Key replacement = key(lock, 2);
+        store.put(replacement);
+
+        assertEquals(1, store.size());
+        assertEquals(replacement.identifier, store.get(lock).identifier);
+        assertNull(store.get(UUID.randomUUID()));
+    }
+
+    @Test
+    public void revoke_persistsInPlace() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.delete();
+        UUID revoked = UUID.randomUUID();
+        UUID kept = UUID.randomUUID();
+
+        LockKeyStore store = new LockKeyStore(file);
+        store.put(key(revoked, 1));
+        store.put(key(kept, 2));
+        long length = file.length();
+
+        assertTrue(store.revoke(revoked));
+        assertFalse(store.revoke(revoked));
+        assertEquals(length, file.length());
+        store.close();
+
+        LockKeyStore reopened = new LockKeyStore(file);
+        assertFalse(reopened.contains(revoked));
+        assertTrue(reopened.contains(kept));
+        assertEquals(1, reopened.size());
+
+        reopened.put(key(revoked, 3));
+        assertEquals(2, reopened.keys().size());
+
+        file.delete();
+    }
+
+    @Test
+    public void put_growsAndCompacts() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.delete();
+        LockKeyStore store = new LockKeyStore(file);
+        UUID[] locks = new UUID[40];
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = UUID.randomUUID();
+            store.put(key(locks[i], i));
+        }
+
+        // replacing keys again and again must not grow the file
+        for (int i = 0; i < 200; i++) store.put(key(locks[i % 4], i));
+        long length = file.length();
+        for (int i = 0; i < 200; i++) store.put(key(locks[i % 4], i));
+
+        assertEquals(length, file.length());
+        assertEquals(40, store.size());
+        store.close();
+
+        LockKeyStore reopened = new LockKeyStore(file);
+        List<LockKeyStore.Key> keys = reopened.keys();
+        assertEquals(40, keys.size());
+        assertEquals("Key 199", reopened.get(locks[3]).name);
+        assertEquals("Key 39", reopened.get(locks[39]).name);
+
+        file.delete();
+    }
+
+    @Test
+    public void open_ignoresInterruptedAppend() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.delete();
+        UUID lock = UUID.randomUUID();
+
+        LockKeyStore store = new LockKeyStore(file);
+        store.put(key(lock, 1));
+        store.close();
+
+        // a record past the count was written but never committed
+        java.io.RandomAccessFile raw = new java.io.RandomAccessFile(file, "rw");
+        raw.seek(16 + LockKeyStore.RECORD_LENGTH);
+        raw.writeLong(lock.getMostSignificantBits());
+        raw.writeLong(lock.getLeastSignificantBits());
+        raw.close();
+
+        assertEquals("Key 1", new LockKeyStore(file).get(lock).name);
+
+        file.delete();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void open_rejectsCorruptFile() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[] { 0x4C, 0x4B, 0x49, 0x43, 0, 0, 0, 1, 0, 0, 0, 5, 1, 2, 3, 4 });
+        output.close();
+
+        new LockKeyStore(file).open();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void key_rejectsLongName() {
+        new LockKeyStore.Key(UUID.randomUUID(), UUID.randomUUID(), LockAuthenticatorTest.secret(1),
+                new byte[LockKeyStore.PERMISSION_LENGTH], new String(new char[65]).replace('\0', 'k'), 0);
+    }
+}
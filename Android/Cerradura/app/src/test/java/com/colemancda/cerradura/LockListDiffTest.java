@@ -0,0 +1,142 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class LockListDiffTest {
+
+    /** Applies the updates to a copy of the old rows, like a RecyclerView adapter would. */
+    private static final class Replay implements LockListDiff.Updates {
+
+        final List<LockListDiff.Row> rows;
+
+        final List<LockListDiff.Row> target;
+
+        int inserted, removed, moved;
+
+        final List<Integer> payloads = new ArrayList<Integer>();
+
+        boolean changing = false;
+
+        Replay(List<LockListDiff.Row> rows, List<LockListDiff.Row> target) {
+            this.rows = new ArrayList<LockListDiff.Row>(rows);
+            this.target = target;
+        }
+
+        public void inserted(int position) {
+            assertFalse(changing);
+            inserted++;
+            rows.add(position, null);
+        }
+
+        public void removed(int position) {
+            assertFalse(changing);
+            removed++;
+            rows.remove(position);
+        }
+
+        public void moved(int from, int to) {
+            assertFalse(changing);
+            assertTrue(from != to);
+            moved++;
+            rows.add(to, rows.remove(from));
+        }
+
+        public void changed(int position, int payload) {
+            changing = true;
+            assertEquals(target.get(position).lock.UUID, rows.get(position).lock.UUID);
+            payloads.add(payload);
+        }
+
+        List<UUID> keys() {
+            List<UUID> keys = new ArrayList<UUID>();
+            for (int i = 0; i < rows.size(); i++) keys.add(rows.get(i) != null ? rows.get(i).lock.UUID : target.get(i).lock.UUID);
+            return keys;
+        }
+    }
+
+    private static LockListDiff.Row row(LockManager.Lock lock, int rssi) {
+        return new LockListDiff.Row(lock, rssi, lock.status);
+    }
+
+    private static LockManager.Lock lock(int index) {
+        return new LockManager.Lock(UUID.randomUUID(), ScanTable.address(0x020000000000L | index), LockStatus.UNLOCK, LockModel.ORANGE_PI_ONE, 1);
+    }
+
+    private static List<UUID> keys(List<LockListDiff.Row> rows) {
+        List<UUID> keys = new ArrayList<UUID>();
+        for (LockListDiff.Row row : rows) keys.add(row.lock.UUID);
+        return keys;
+    }
+
+    private static Replay dispatch(List<LockListDiff.Row> oldRows, List<LockListDiff.Row> newRows) {
+        Replay replay = new Replay(oldRows, newRows);
+        LockListDiff.dispatch(oldRows, newRows, replay);
+        assertEquals(keys(newRows), replay.keys());
+        return replay;
+    }
+
+    @Test
+    public void dispatch_unchangedListReportsNothing() {
+        LockManager.Lock a = lock(1), b = lock(2);
+        List<LockListDiff.Row> rows = Arrays.asList(row(a, -50), row(b, -60));
+
+        Replay replay = dispatch(rows, Arrays.asList(row(a, -50), row(b, -60)));
+
+        assertEquals(0, replay.inserted + replay.removed + replay.moved);
+        assertTrue(replay.payloads.isEmpty());
+    }
+
+    @Test
+    public void dispatch_passingLockMovesOneRow() {
+        LockManager.Lock a = lock(1), b = lock(2), c = lock(3), d = lock(4);
+
+        Replay replay = dispatch(Arrays.asList(row(a, -40), row(b, -50), row(c, -60), row(d, -70)),
+                Arrays.asList(row(b, -50), row(c, -60), row(d, -70), row(a, -80)));
+
+        assertEquals(1, replay.moved);
+        assertEquals(Collections.singletonList(LockListDiff.RSSI_CHANGED), replay.payloads);
+    }
+
+    @Test
+    public void dispatch_reportsPayloadsForRssiAndStatus() {
+        LockManager.Lock a = lock(1), b = lock(2), c = lock(3);
+        LockManager.Lock upgraded = new LockManager.Lock(c.UUID, c.address, c.status, c.model, c.version + 1);
+
+        Replay replay = dispatch(Arrays.asList(row(a, -50), row(b, -60), row(c, -70)),
+                Arrays.asList(new LockListDiff.Row(a, -50, LockStatus.SETUP), row(b, -61), row(upgraded, -70)));
+
+        assertEquals(Arrays.asList(LockListDiff.STATUS_CHANGED, LockListDiff.RSSI_CHANGED, LockListDiff.FULL_CHANGE), replay.payloads);
+    }
+
+    @Test
+    public void dispatch_handlesChurn() {
+        Random random = new Random(7);
+        List<LockManager.Lock> nearby = new ArrayList<LockManager.Lock>();
+        for (int i = 0; i < 150; i++) nearby.add(lock(i));
+
+        List<LockListDiff.Row> rows = new ArrayList<LockListDiff.Row>();
+
+        for (int frame = 0; frame < 200; frame++) {
+            // locks come and go, and the nearest ones swap places
+            for (int i = 0; i < 3; i++) nearby.remove(random.nextInt(nearby.size()));
+            for (int i = 0; i < 3; i++) nearby.add(random.nextInt(nearby.size() + 1), lock(1000 + frame * 3 + i));
+            for (int i = 0; i < 5; i++) { int j = random.nextInt(nearby.size() - 1); nearby.add(j, nearby.remove(j + 1)); }
+
+            List<LockListDiff.Row> next = new ArrayList<LockListDiff.Row>();
+            for (LockManager.Lock lock : nearby) next.add(row(lock, -40 - random.nextInt(4)));
+
+            Replay replay = dispatch(rows, next);
+            assertTrue(replay.moved <= 10);
+            rows = next;
+        }
+    }
+}
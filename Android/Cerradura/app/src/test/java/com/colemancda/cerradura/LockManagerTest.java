@@ -0,0 +1,909 @@
+package com.colemancda.cerradura;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private final SimulatedBluetoothTransport transport = new SimulatedBluetoothTransport(4);
+
+    private final LockManager manager = new LockManager(transport);
+
+    private static final byte[] OTHER_SERVICE = SimulatedBluetoothTransport.serviceAdvertisement(UUID.randomUUID());
+
+    /** Stands in for the main thread. */
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        manager.closeConnections();
+        transport.shutdown();
+        callbacks.shutdownNow();
+    }
+
+    @Test
+    public void scan_identifiesLockFleet() throws Exception {
+        List<SimulatedBluetoothTransport.Peripheral> locks = transport.addLocks(20);
+        transport.addOthers(20, SimulatedBluetoothTransport.anonymousAdvertisement());
+        transport.addOthers(20, OTHER_SERVICE);
+
+        manager.scan(300, TimeUnit.MILLISECONDS);
+
+        Set<UUID> expected = new HashSet<UUID>();
+        for (SimulatedBluetoothTransport.Peripheral lock : locks) expected.add(lock.identifier);
+
+        Set<UUID> found = new HashSet<UUID>();
+        for (LockManager.Lock lock : manager.foundLocks) found.add(lock.UUID);
+
+        assertEquals(expected, found);
+        assertEquals(40, transport.getConnections());
+        assertEquals(0, transport.getOverlappingRequests());
+        assertTrue(transport.getMaxOpenConnections() <= manager.getProbeParallelism() + LockManager.CONNECTION_POOL_CAPACITY);
+    }
+
+    @Test
+    public void scan_boundsProbeParallelism() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(30)) lock.latency = 10;
+
+        manager.setProbeParallelism(2);
+        manager.scan(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(30, manager.foundLocks.size());
+        assertTrue(transport.getMaxOpenConnections() <= 2 + LockManager.CONNECTION_POOL_CAPACITY);
+    }
+
+    @Test
+    public void scan_skipsFailedConnections() throws Exception {
+        List<SimulatedBluetoothTransport.Peripheral> locks = transport.addLocks(10);
+        for (int i = 0; i < 5; i++) locks.get(i).connectStatus = SimulatedBluetoothTransport.GATT_ERROR;
+
+        manager.scan(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(5, manager.foundLocks.size());
+
+        for (LockManager.Lock lock : manager.foundLocks) {
+            assertEquals(LockStatus.UNLOCK, lock.status);
+            assertEquals(LockModel.ORANGE_PI_ONE, lock.model);
+        }
+
+        LockMetrics.Snapshot metrics = manager.getMetrics().snapshot();
+        assertEquals(1, metrics.getSuccesses(LockMetrics.SCAN));
+        // GATT errors are tried again within the scan
+        assertEquals(5 * LockManager.PROBE_ATTEMPTS, metrics.getFailures(LockMetrics.CONNECT));
+        assertEquals(5, metrics.getSuccesses(LockMetrics.CONNECT));
+        assertEquals(20, metrics.getSuccesses(LockMetrics.READ));
+        assertEquals(5 * LockManager.PROBE_ATTEMPTS, metrics.getStatusCount(SimulatedBluetoothTransport.GATT_ERROR));
+        assertEquals(5, manager.getPeripheralHealth().getFailures().size());
+
+        // only the pooled lock connections stay open
+        assertEquals(LockManager.CONNECTION_POOL_CAPACITY, transport.getOpenConnections());
+        manager.closeConnections();
+        assertEquals(0, transport.getOpenConnections());
+    }
+
+    @Test
+    public void scan_retriesTransientGATTErrorWithinScan() throws Exception {
+        SimulatedBluetoothTransport.Peripheral flaky = transport.addLocks(1).get(0);
+        flaky.connectStatus = SimulatedBluetoothTransport.GATT_ERROR;
+        flaky.failedConnections = 1;
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, manager.foundLocks.size());
+        assertNull(manager.getPeripheralHealth().get(flaky.address));
+    }
+
+    @Test
+    public void scan_backsOffFailingPeripherals() throws Exception {
+        SimulatedBluetoothTransport.Peripheral failing = transport.addLocks(1).get(0);
+        failing.connectStatus = SimulatedBluetoothTransport.GATT_ERROR;
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(LockManager.PROBE_ATTEMPTS, transport.getConnections());
+
+        // the next scan does not spend another timeout on it
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(LockManager.PROBE_ATTEMPTS, transport.getConnections());
+
+        PeripheralHealth.Failure failure = manager.getPeripheralHealth().get(failing.address);
+        assertEquals(1, failure.count);
+        assertEquals(SimulatedBluetoothTransport.GATT_ERROR, failure.status);
+        assertFalse(failure.isOpen());
+        assertEquals(1, manager.getPeripheralHealth().getSkipped());
+    }
+
+    @Test
+    public void scan_skipsKnownNonLocks() throws Exception {
+        transport.addLocks(2);
+        transport.addOthers(6, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(8, transport.getConnections());
+
+        // only the locks are identified again, from the identity cache
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(8, transport.getConnections());
+        assertEquals(2, manager.foundLocks.size());
+    }
+
+    @Test
+    public void scan_probesNonLockThatAdvertisesLockService() throws Exception {
+        transport.addOthers(1, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        String device = SimulatedBluetoothTransport.address(0);
+        assertTrue(manager.isKnownNonLock(ScanTable.address(device)));
+
+        manager.didAdvertise(ScanTable.address(device), device, SimulatedBluetoothTransport.serviceAdvertisement(LockService.UUID));
+        assertFalse(manager.isKnownNonLock(ScanTable.address(device)));
+    }
+
+    @Test
+    public void scan_strictFilterSkipsAnonymousPeripherals() throws Exception {
+        transport.addLocks(5);
+        transport.add(new SimulatedBluetoothTransport.Peripheral("02:00:00:00:01:00",
+                SimulatedBluetoothTransport.beaconAdvertisement(AdvertisementParser.LOCK_BEACON_UUID), UUID.randomUUID()));
+        transport.addOthers(10, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        manager.setStrictAdvertisementFilter(true);
+        manager.scan(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(6, manager.foundLocks.size());
+        assertEquals(6, transport.getConnections());
+    }
+
+    @Test
+    public void scan_notifiesListeners() throws Exception {
+        transport.addLocks(8);
+
+        final AtomicInteger found = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        manager.addListener(new LockManager.Listener() {
+            @Override
+            public void onLockFound(LockManager.Lock lock) {
+                found.incrementAndGet();
+            }
+
+            @Override
+            public void onScanCompleted(List<LockManager.Lock> locks) {
+                completed.incrementAndGet();
+                assertEquals(8, locks.size());
+            }
+
+            @Override
+            public void onLockStatusChanged(LockManager.Lock lock) { }
+        });
+
+        manager.scan(200, TimeUnit.MILLISECONDS);
+
+        assertEquals(8, found.get());
+        assertEquals(1, completed.get());
+    }
+
+    @Test(expected = LockManager.LockManagerError.class)
+    public void scan_failsWhenDisabled() throws Exception {
+        transport.setEnabled(false);
+
+        manager.scan(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void startScan_deliversProgressAndResultOnExecutor() throws Exception {
+        transport.addLocks(6);
+        transport.addOthers(4, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        final Thread[] callbackThread = new Thread[1];
+        callbacks.submit(new Runnable() {
+            @Override
+            public void run() {
+                callbackThread[0] = Thread.currentThread();
+            }
+        }).get();
+
+        final AtomicInteger wrongThread = new AtomicInteger();
+        final AtomicInteger progress = new AtomicInteger();
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        long started = System.nanoTime();
+
+        LockScan scan = manager.startScan(200, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, new LockScan.Callback() {
+            @Override
+            public void onProgress(LockScan scan) {
+                if (Thread.currentThread() != callbackThread[0]) wrongThread.incrementAndGet();
+                progress.incrementAndGet();
+            }
+
+            @Override
+            public void onLockFound(LockScan scan, LockManager.Lock lock) {
+                if (Thread.currentThread() != callbackThread[0]) wrongThread.incrementAndGet();
+                found.incrementAndGet();
+            }
+
+            @Override
+            public void onCompleted(LockScan scan, List<LockManager.Lock> locks) {
+                if (Thread.currentThread() != callbackThread[0]) wrongThread.incrementAndGet();
+                assertEquals(6, locks.size());
+                completed.countDown();
+            }
+
+            @Override
+            public void onFailed(LockScan scan, Exception error) {
+                fail(error.toString());
+            }
+        });
+
+        // returns right away
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 100);
+        assertFalse(scan.isDone());
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(0, wrongThread.get());
+        assertEquals(6, found.get());
+        assertTrue(progress.get() > 0);
+        assertEquals(10, scan.getSeen());
+        assertEquals(10, scan.getProbes());
+        assertEquals(10, scan.getProbed());
+        assertEquals(6, scan.getFound());
+        assertFalse(scan.isDeadlineExceeded());
+        assertEquals(6, scan.await().size());
+    }
+
+    @Test
+    public void startScan_cancelStopsScanWithoutCallbacks() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(10)) lock.latency = 50;
+
+        final AtomicInteger results = new AtomicInteger();
+
+        LockScan scan = manager.startScan(10, LockScan.NO_DEADLINE, TimeUnit.SECONDS, callbacks, new LockScan.Callback() {
+            @Override
+            public void onProgress(LockScan scan) { }
+
+            @Override
+            public void onLockFound(LockScan scan, LockManager.Lock lock) { }
+
+            @Override
+            public void onCompleted(LockScan scan, List<LockManager.Lock> locks) {
+                results.incrementAndGet();
+            }
+
+            @Override
+            public void onFailed(LockScan scan, Exception error) {
+                results.incrementAndGet();
+            }
+        });
+
+        Thread.sleep(100);
+
+        long cancelled = System.nanoTime();
+        scan.cancel();
+
+        try { scan.await(2, TimeUnit.SECONDS); fail("Cancelled scan returned a result"); }
+
+        catch (CancellationException expected) { }
+
+        assertTrue(scan.isDone());
+
+        // the radio and the probes stop soon after
+        while (manager.getIsScanning() && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelled) < 1000) Thread.sleep(10);
+        assertFalse(manager.getIsScanning());
+
+        callbacks.submit(new Runnable() {
+            @Override
+            public void run() { }
+        }).get();
+
+        assertEquals(0, results.get());
+    }
+
+    @Test
+    public void startScan_deadlineEndsProbingWithPartialResult() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(20)) lock.latency = 40;
+
+        manager.setProbeParallelism(1);
+
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        };
+
+        long started = System.nanoTime();
+
+        LockScan scan = manager.startScan(100, 500, TimeUnit.MILLISECONDS, direct, null);
+
+        List<LockManager.Lock> locks = scan.await(5, TimeUnit.SECONDS);
+
+        assertNotNull(locks);
+        assertTrue(scan.isDeadlineExceeded());
+        assertTrue(locks.size() < 20);
+        assertTrue(scan.getProbed() < scan.getProbes());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1500);
+    }
+
+    @Test
+    public void startScan_reportsFailureOnExecutor() throws Exception {
+        transport.setEnabled(false);
+
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch failed = new CountDownLatch(1);
+
+        LockScan scan = manager.startScan(10, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, new LockScan.Callback() {
+            @Override
+            public void onProgress(LockScan scan) { }
+
+            @Override
+            public void onLockFound(LockScan scan, LockManager.Lock lock) { }
+
+            @Override
+            public void onCompleted(LockScan scan, List<LockManager.Lock> locks) { }
+
+            @Override
+            public void onFailed(LockScan scan, Exception error) {
+                failure[0] = error;
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(2, TimeUnit.SECONDS));
+        assertTrue(failure[0] instanceof LockManager.LockManagerError);
+        assertTrue(scan.isDone());
+    }
+
+    @Test
+    public void startScan_concurrentRequestsShareOneScan() throws Exception {
+        transport.addLocks(8);
+        transport.addOthers(4, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        LockScan first = manager.startScan(300, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, null);
+        LockScan second = manager.startScan(300, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, null);
+
+        final Exception[] blockingError = new Exception[1];
+        Thread blocking = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try { manager.scan(300, TimeUnit.MILLISECONDS); }
+                catch (Exception e) { blockingError[0] = e; }
+            }
+        });
+        blocking.start();
+
+        List<LockManager.Lock> locks = first.await(5, TimeUnit.SECONDS);
+        blocking.join(5000);
+
+        assertNull(blockingError[0]);
+        assertEquals(8, locks.size());
+        assertSame(locks, second.await());
+        assertEquals(1, transport.getScansStarted());
+        assertEquals(1, transport.getMaxActiveScans());
+        assertEquals(12, transport.getConnections());
+        assertFalse(manager.getIsScanning());
+
+        // the next request starts a new scan
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(2, transport.getScansStarted());
+    }
+
+    @Test
+    public void startScan_cancellingOneRequestKeepsSharedScanRunning() throws Exception {
+        transport.addLocks(4);
+
+        LockScan cancelled = manager.startScan(200, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, null);
+        LockScan kept = manager.startScan(200, LockScan.NO_DEADLINE, TimeUnit.MILLISECONDS, callbacks, null);
+
+        cancelled.cancel();
+
+        assertEquals(4, kept.await(5, TimeUnit.SECONDS).size());
+        assertTrue(cancelled.isCancelled());
+        assertFalse(kept.isCancelled());
+    }
+
+    @Test
+    public void scan_sharesRadioWithDiscovery() throws Exception {
+        transport.addLocks(5);
+
+        manager.getDiscovery().start();
+
+        try {
+            manager.scan(200, TimeUnit.MILLISECONDS);
+
+            assertEquals(5, manager.foundLocks.size());
+            assertEquals(1, transport.getScansStarted());
+            assertEquals(1, transport.getMaxActiveScans());
+        }
+
+        finally { manager.getDiscovery().stop(); }
+    }
+
+    @Test
+    public void findNearestLock_reportsKnownLockWithoutProbing() throws Exception {
+        List<SimulatedBluetoothTransport.Peripheral> locks = transport.addLocks(4);
+        for (SimulatedBluetoothTransport.Peripheral lock : locks) { lock.rssi = -80; lock.advertisementInterval = 20; }
+        locks.get(2).rssi = -45;
+
+        // learn the identities
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        int connections = transport.getConnections();
+
+        long started = System.nanoTime();
+        LockScan scan = manager.findNearestLock(LockManager.NEAR_RSSI, 5, TimeUnit.SECONDS, callbacks, null);
+        List<LockManager.Lock> nearest = scan.await(5, TimeUnit.SECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000);
+        assertEquals(1, nearest.size());
+        assertEquals(locks.get(2).identifier, nearest.get(0).UUID);
+        assertEquals(connections, transport.getConnections());
+        assertFalse(scan.isDeadlineExceeded());
+    }
+
+    @Test
+    public void findNearestLock_givesUpWhenNoLockIsNear() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(2)) lock.rssi = -90;
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+
+        LockScan scan = manager.findNearestLock(LockManager.NEAR_RSSI, 300, TimeUnit.MILLISECONDS, callbacks, null);
+
+        assertEquals(0, scan.await(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void unlock_reusesWarmConnection() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        UUID key = UUID.randomUUID();
+        byte[] secret = LockAuthenticatorTest.secret(5);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        int connections = transport.getConnections();
+
+        manager.unlock(lock, key, secret);
+        manager.unlock(lock, key, secret);
+
+        assertEquals(connections, transport.getConnections());
+        assertEquals(2, peripheral.unlocks.size());
+
+        byte[] value = peripheral.unlocks.get(0);
+        assertTrue(LockUnlock.isValid(value));
+        assertEquals(key.getLeastSignificantBits(), LockUnlock.keyLeastSignificantBits(value, 0));
+        assertTrue(java.util.Arrays.equals(LockAuthenticatorTest.hmac(secret, value, 0),
+                java.util.Arrays.copyOfRange(value, LockUnlock.HMAC_OFFSET, LockUnlock.LENGTH)));
+
+        LockMetrics.Snapshot metrics = manager.getMetrics().snapshot();
+        assertEquals(2, metrics.getSuccesses(LockMetrics.WRITE));
+        assertEquals(2, metrics.getSuccesses(LockMetrics.COMMAND));
+    }
+
+    @Test
+    public void unlock_looksUpKeyInStore() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+
+        try { manager.unlock(lock); fail("Unlocked without a key"); }
+        catch (LockManager.LockManagerError expected) { }
+
+        LockKeyStore.Key key = LockKeyStoreTest.key(lock.UUID, 7);
+        manager.getKeyStore().put(key);
+        manager.unlock(lock);
+
+        byte[] value = peripheral.unlocks.get(0);
+        assertEquals(key.identifier.getLeastSignificantBits(), LockUnlock.keyLeastSignificantBits(value, 0));
+        assertTrue(java.util.Arrays.equals(LockAuthenticatorTest.hmac(key.secret, value, 0),
+                java.util.Arrays.copyOfRange(value, LockUnlock.HMAC_OFFSET, LockUnlock.LENGTH)));
+    }
+
+    @Test
+    public void scan_awaitsPeripheralsDiscoveryIsProbing() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(3)) lock.latency = 100;
+
+        // discovery probes each lock from its first advertisement, and is still at it when the window ends
+        manager.getDiscovery().start();
+
+        try {
+            manager.scan(150, TimeUnit.MILLISECONDS);
+
+            assertEquals(3, manager.foundLocks.size());
+            assertEquals(3, transport.getConnections());
+        }
+
+        finally { manager.getDiscovery().stop(); }
+    }
+
+    @Test
+    public void scan_sharesConnectionLimitWithDiscovery() throws Exception {
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(10)) lock.latency = 20;
+        transport.addOthers(10, SimulatedBluetoothTransport.anonymousAdvertisement());
+        manager.setProbeParallelism(LockManager.MAX_CONCURRENT_CONNECTIONS);
+
+        manager.getDiscovery().start();
+
+        // the window spans an advertisement interval, so the scan hears the locks discovery saw before it joined
+        try {
+            manager.scan(150, TimeUnit.MILLISECONDS);
+
+            assertEquals(10, manager.foundLocks.size());
+            assertTrue(transport.getMaxOpenConnections() <= LockManager.MAX_CONCURRENT_CONNECTIONS);
+        }
+
+        finally { manager.getDiscovery().stop(); }
+    }
+
+    @Test
+    public void clearCaches_probesEveryPeripheralAgain() throws Exception {
+        File directory = File.createTempFile("Caches", "");
+        directory.delete();
+        directory.mkdir();
+        manager.setCacheDirectory(directory);
+        transport.addLocks(3);
+        transport.addOthers(2, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        manager.closeConnections();
+        int connections = transport.getConnections();
+
+        // the same directory keeps the caches, nothing is probed
+        manager.setCacheDirectory(directory);
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(connections, transport.getConnections());
+
+        manager.clearCaches();
+        assertFalse(new File(directory, "LockIdentities.cache").exists());
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        assertEquals(connections + 5, transport.getConnections());
+
+        new File(directory, "LockIdentities.cache").delete();
+        new File(directory, "NonLocks.cache").delete();
+        directory.delete();
+    }
+
+    @Test
+    public void setKeyStore_keepsStoreOfSameFile() throws Exception {
+        File file = File.createTempFile("Keys", ".store");
+        file.delete();
+
+        LockKeyStore store = new LockKeyStore(file);
+        manager.setKeyStore(store);
+        manager.setKeyStore(new LockKeyStore(file));
+        assertSame(store, manager.getKeyStore());
+
+        File other = File.createTempFile("Keys", ".store");
+        other.delete();
+
+        LockKeyStore replacement = new LockKeyStore(other);
+        manager.setKeyStore(replacement);
+        assertSame(replacement, manager.getKeyStore());
+
+        replacement.close();
+        file.delete();
+        other.delete();
+    }
+
+    @Test
+    public void connection_negotiatesMtuAtHighPriority() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.closeConnections();
+
+        BluetoothTransport.Connection connection = manager.connection(lock);
+        GATTSession session = manager.session(connection);
+        manager.release(lock, connection);
+
+        assertEquals(247, session.getMtu());
+        assertEquals(244, session.maxWriteLength());
+        assertEquals(BluetoothTransport.CONNECTION_PRIORITY_BALANCED, session.getConnectionPriority());
+        assertEquals(java.util.Arrays.asList(BluetoothTransport.CONNECTION_PRIORITY_HIGH, BluetoothTransport.CONNECTION_PRIORITY_BALANCED),
+                peripheral.connectionPriorities);
+        assertEquals(1, manager.getMetrics().snapshot().getSuccesses(LockMetrics.MTU));
+    }
+
+    @Test
+    public void connection_keepsDefaultMtuBeforeLollipop() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        transport.setConnectionParametersSupported(false);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.closeConnections();
+
+        BluetoothTransport.Connection connection = manager.connection(lock);
+        GATTSession session = manager.session(connection);
+        manager.release(lock, connection);
+
+        assertEquals(BluetoothTransport.DEFAULT_MTU, session.getMtu());
+        assertEquals(20, session.maxWriteLength());
+        assertTrue(peripheral.connectionPriorities.isEmpty());
+        assertEquals(0, manager.getMetrics().snapshot().getFailures(LockMetrics.MTU));
+
+        manager.unlock(lock, UUID.randomUUID(), LockAuthenticatorTest.secret(8));
+        assertEquals(1, peripheral.unlocks.size());
+    }
+
+    @Test
+    public void unlock_negotiatesMtuOnConnectionKeptFromProbing() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.unlock(lock, UUID.randomUUID(), LockAuthenticatorTest.secret(8));
+
+        assertEquals(1, transport.getConnections());
+        assertEquals(1, peripheral.unlocks.size());
+        assertEquals(0, peripheral.getLongWrites());
+        assertEquals(1, manager.getMetrics().snapshot().getSuccesses(LockMetrics.MTU));
+    }
+
+    @Test
+    public void write_takesSingleWriteWhenValueFitsMtu() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        byte[] value = payload(LockSetup.LENGTH);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        manager.write(manager.foundLocks.get(0), LockSetup.UUID, value);
+
+        assertEquals(1, peripheral.setups.size());
+        assertTrue(java.util.Arrays.equals(value, peripheral.setups.get(0)));
+        assertEquals(0, peripheral.getChunks());
+    }
+
+    @Test
+    public void write_takesLongWriteWithResponseBeyondMtu() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        peripheral.maxMtu = BluetoothTransport.DEFAULT_MTU;
+        byte[] value = payload(BluetoothTransport.MAX_ATTRIBUTE_LENGTH);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        manager.write(manager.foundLocks.get(0), LockSetup.UUID, value);
+
+        assertTrue(java.util.Arrays.equals(value, peripheral.setups.get(0)));
+        assertEquals(0, peripheral.getChunks());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_rejectsValueBeyondAttributeLengthUnlessChunked() throws Exception {
+        transport.addLocks(1);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        manager.write(manager.foundLocks.get(0), LockSetup.UUID, payload(BluetoothTransport.MAX_ATTRIBUTE_LENGTH + 1));
+    }
+
+    @Test
+    public void write_pipelinesChunksBeyondMtu() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        peripheral.maxMtu = BluetoothTransport.DEFAULT_MTU;
+        byte[] value = payload(1000);
+        manager.setChunkedWrites(true);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        manager.write(manager.foundLocks.get(0), LockSetup.UUID, value);
+
+        assertTrue(java.util.Arrays.equals(value, peripheral.setups.get(0)));
+        assertEquals(56, peripheral.getChunks());
+        assertEquals(LongWrite.WINDOW, peripheral.getMaxQueuedChunks());
+
+        int priorities = peripheral.connectionPriorities.size();
+        assertEquals(BluetoothTransport.CONNECTION_PRIORITY_HIGH, (int) peripheral.connectionPriorities.get(priorities - 2));
+        assertEquals(BluetoothTransport.CONNECTION_PRIORITY_BALANCED, (int) peripheral.connectionPriorities.get(priorities - 1));
+        assertEquals(1, manager.getMetrics().snapshot().getSuccesses(LockMetrics.TRANSFER));
+    }
+
+    @Test
+    public void write_resumesAfterChunkError() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        peripheral.maxMtu = BluetoothTransport.DEFAULT_MTU;
+        byte[] value = payload(1000);
+        manager.setChunkedWrites(true);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        int connections = transport.getConnections();
+        peripheral.failedChunks = 1;
+        manager.write(manager.foundLocks.get(0), LockSetup.UUID, value);
+
+        assertTrue(java.util.Arrays.equals(value, peripheral.setups.get(0)));
+        // only the failed chunk and the ones already in flight behind it are sent again
+        assertTrue(peripheral.getChunks() <= 56 + LongWrite.WINDOW);
+        assertEquals(connections, transport.getConnections());
+    }
+
+    private static byte[] payload(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) value[i] = (byte) (i * 31);
+        return value;
+    }
+
+    @Test
+    public void subscribe_coalescesStatusNotifications() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        final List<LockManager.Lock> changes = new java.util.concurrent.CopyOnWriteArrayList<LockManager.Lock>();
+
+        manager.addListener(new LockManager.Listener() {
+            @Override
+            public void onLockFound(LockManager.Lock lock) { }
+
+            @Override
+            public void onScanCompleted(List<LockManager.Lock> locks) { }
+
+            @Override
+            public void onLockStatusChanged(LockManager.Lock lock) { changes.add(lock); }
+        });
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.subscribe(lock);
+        assertTrue(manager.isSubscribed(lock));
+        long reads = manager.getMetrics().snapshot().getSuccesses(LockMetrics.READ);
+
+        for (int i = 0; i < 10; i++) transport.changeStatus(peripheral, i % 2 == 0 ? LockStatus.SETUP : LockStatus.UNLOCK);
+        transport.changeStatus(peripheral, LockStatus.SETUP);
+        Thread.sleep(LockManager.STATUS_UPDATE_INTERVAL * 5);
+
+        assertEquals(1, changes.size());
+        assertEquals(LockStatus.SETUP, changes.get(0).status);
+        assertEquals(LockStatus.SETUP, manager.foundLocks.get(0).status);
+        assertEquals(reads, manager.getMetrics().snapshot().getSuccesses(LockMetrics.READ));
+    }
+
+    @Test
+    public void subscribe_keepsConnectionUntilUnsubscribed() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.subscribe(lock);
+
+        // commands share the subscribed connection
+        int connections = transport.getConnections();
+        manager.unlock(lock, UUID.randomUUID(), LockAuthenticatorTest.secret(9));
+        assertEquals(connections, transport.getConnections());
+        assertEquals(1, peripheral.subscribers.size());
+
+        manager.unsubscribe(lock);
+        assertFalse(manager.isSubscribed(lock));
+        assertTrue(peripheral.subscribers.isEmpty());
+    }
+
+    @Test
+    public void subscribe_pollsStatusThatCannotNotify() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        peripheral.statusNotifies = false;
+        final List<LockManager.Lock> changes = new java.util.concurrent.CopyOnWriteArrayList<LockManager.Lock>();
+
+        manager.addListener(new LockManager.Listener() {
+            @Override
+            public void onLockFound(LockManager.Lock lock) { }
+
+            @Override
+            public void onScanCompleted(List<LockManager.Lock> locks) { }
+
+            @Override
+            public void onLockStatusChanged(LockManager.Lock lock) { changes.add(lock); }
+        });
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.subscribe(lock);
+        assertTrue(manager.isSubscribed(lock));
+        assertTrue(peripheral.subscribers.isEmpty());
+
+        // an unchanged status is not reported
+        Thread.sleep(LockManager.STATUS_POLL_INTERVAL + 200);
+        assertTrue(changes.isEmpty());
+
+        transport.changeStatus(peripheral, LockStatus.SETUP);
+        Thread.sleep(LockManager.STATUS_POLL_INTERVAL + 200);
+
+        assertEquals(1, changes.size());
+        assertEquals(LockStatus.SETUP, changes.get(0).status);
+
+        manager.unsubscribe(lock);
+        assertFalse(manager.isSubscribed(lock));
+        long reads = manager.getMetrics().snapshot().getSuccesses(LockMetrics.READ);
+        Thread.sleep(LockManager.STATUS_POLL_INTERVAL + 200);
+        assertEquals(reads, manager.getMetrics().snapshot().getSuccesses(LockMetrics.READ));
+    }
+
+    @Test
+    public void unlock_whilePollingStatusKeepsSubscription() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+        peripheral.statusNotifies = false;
+        final List<LockManager.Lock> changes = new java.util.concurrent.CopyOnWriteArrayList<LockManager.Lock>();
+
+        manager.addListener(new LockManager.Listener() {
+            @Override
+            public void onLockFound(LockManager.Lock lock) { }
+
+            @Override
+            public void onScanCompleted(List<LockManager.Lock> locks) { }
+
+            @Override
+            public void onLockStatusChanged(LockManager.Lock lock) { changes.add(lock); }
+        });
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        LockManager.Lock lock = manager.foundLocks.get(0);
+        manager.subscribe(lock);
+
+        // the poll holds the pinned connection while its read is in flight, the unlock connects again
+        peripheral.latency = 200;
+        Thread.sleep(LockManager.STATUS_POLL_INTERVAL + 50);
+        int connections = transport.getConnections();
+        manager.unlock(lock, UUID.randomUUID(), LockAuthenticatorTest.secret(10));
+
+        assertEquals(connections + 1, transport.getConnections());
+        assertEquals(1, peripheral.unlocks.size());
+
+        // the poll read completed on its own connection instead of waiting for a timeout, and polling goes on
+        peripheral.latency = 5;
+        transport.changeStatus(peripheral, LockStatus.SETUP);
+        Thread.sleep(LockManager.STATUS_POLL_INTERVAL * 2);
+
+        assertTrue(manager.isSubscribed(lock));
+        assertEquals(1, changes.size());
+        assertEquals(LockStatus.SETUP, changes.get(0).status);
+        assertEquals(0, manager.getMetrics().snapshot().getTimeouts(LockMetrics.READ));
+    }
+
+    @Test
+    public void unlock_retriesStaleConnectionWithNewNonce() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        int connections = transport.getConnections();
+
+        peripheral.failedWrites = 1;
+        manager.unlock(manager.foundLocks.get(0), UUID.randomUUID(), LockAuthenticatorTest.secret(6));
+
+        assertEquals(connections + 1, transport.getConnections());
+        assertEquals(1, peripheral.unlocks.size());
+        assertEquals(1, manager.getMetrics().snapshot().getFailures(LockMetrics.WRITE));
+    }
+
+    @Test
+    public void unlock_reportsResultOnExecutor() throws Exception {
+        SimulatedBluetoothTransport.Peripheral peripheral = transport.addLocks(1).get(0);
+
+        manager.scan(100, TimeUnit.MILLISECONDS);
+        peripheral.failedWrites = 2;
+
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch done = new CountDownLatch(1);
+
+        manager.unlock(manager.foundLocks.get(0), UUID.randomUUID(), LockAuthenticatorTest.secret(7), callbacks, new LockManager.CommandCallback() {
+            @Override
+            public void onCommandCompleted(LockManager.Lock lock) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCommandFailed(LockManager.Lock lock, Exception error) {
+                failure[0] = error;
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(failure[0]), failure[0] instanceof LockManager.LockManagerGATTError);
+        assertEquals(0, peripheral.unlocks.size());
+    }
+}
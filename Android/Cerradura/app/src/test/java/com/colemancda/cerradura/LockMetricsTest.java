@@ -0,0 +1,85 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LockMetricsTest {
+
+    @Test
+    public void bucket_lowerBoundRoundTrip() throws Exception {
+        long[] values = { 0, 1, 7, 8, 15, 16, 1000, 123456789L, Long.MAX_VALUE };
+
+        for (long value : values) {
+            int bucket = LockMetrics.bucket(value);
+            long lowerBound = LockMetrics.lowerBound(bucket);
+
+            assertTrue(lowerBound <= value);
+            assertTrue(value - lowerBound <= Math.max(value / 8, 0));
+        }
+
+        assertEquals(LockMetrics.bucket(8) + 1, LockMetrics.bucket(9));
+    }
+
+    @Test
+    public void snapshot_percentiles() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+
+        for (int i = 1; i <= 100; i++) metrics.success(LockMetrics.CONNECT, i * 1000000L);
+
+        LockMetrics.HistogramSnapshot histogram = metrics.snapshot().getHistogram(LockMetrics.CONNECT);
+
+        assertEquals(100, histogram.count);
+        assertEquals(100000000L, histogram.max);
+        assertEquals(50500000L, histogram.mean());
+        assertEquals(50000000L, histogram.percentile(0.5), 50000000L / 8);
+        assertEquals(99000000L, histogram.percentile(0.99), 99000000L / 8);
+        assertEquals(0, metrics.snapshot().getHistogram(LockMetrics.READ).percentile(0.5));
+    }
+
+    @Test
+    public void status_countsStatusesBeyondAByte() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+
+        // GATT_FAILURE, which a single byte would count as status 1
+        metrics.status(0x101);
+        metrics.status(0x101);
+
+        LockMetrics.Snapshot snapshot = metrics.reset();
+
+        assertEquals(2, snapshot.getStatusCount(257));
+        assertEquals(0, snapshot.getStatusCount(1));
+        assertTrue(snapshot.dump().contains("status 257: 2"));
+
+        LockMetrics.Snapshot empty = metrics.snapshot();
+
+        assertEquals(0, empty.getStatusCount(257));
+        assertFalse(empty.dump().contains("status"));
+    }
+
+    @Test
+    public void reset_startsOver() throws Exception {
+        LockMetrics metrics = new LockMetrics();
+
+        metrics.success(LockMetrics.READ, 10);
+        metrics.timeout(LockMetrics.CONNECT);
+        metrics.failure(LockMetrics.PROBE);
+        metrics.status(133);
+        metrics.status(0);
+
+        LockMetrics.Snapshot snapshot = metrics.reset();
+
+        assertEquals(1, snapshot.getSuccesses(LockMetrics.READ));
+        assertEquals(1, snapshot.getTimeouts(LockMetrics.CONNECT));
+        assertEquals(1, snapshot.getFailures(LockMetrics.PROBE));
+        assertEquals(1, snapshot.getStatusCount(133));
+        assertTrue(snapshot.dump().contains("status 133: 1"));
+
+        LockMetrics.Snapshot empty = metrics.snapshot();
+
+        assertEquals(0, empty.getSuccesses(LockMetrics.READ));
+        assertEquals(0, empty.getHistogram(LockMetrics.READ).count);
+        assertEquals(0, empty.getStatusCount(133));
+        assertFalse(empty.dump().contains("status"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class NonLockCacheTest {
+
+    @Test
+    public void save_roundTripDropsExpired() throws Exception {
+        File file = File.createTempFile("NonLocks", ".cache");
+        long now = System.currentTimeMillis();
+
+        NonLockCache cache = new NonLockCache(file);
+        cache.put(0x0A1B2C3D4E5FL, now);
+        cache.put(0x0A1B2C3D4E60L, now - NonLockCache.TTL);
+        cache.save(now);
+
+        NonLockCache loaded = new NonLockCache(file);
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.contains(0x0A1B2C3D4E5FL, now));
+        assertFalse(loaded.contains(0x0A1B2C3D4E60L, now));
+
+        file.delete();
+    }
+
+    @Test
+    public void contains_expiresAfterTTL() throws Exception {
+        NonLockCache cache = new NonLockCache(null);
+        cache.put(1, 1000);
+
+        assertTrue(cache.contains(1, 1000 + NonLockCache.TTL - 1));
+        assertFalse(cache.contains(1, 1000 + NonLockCache.TTL));
+
+        // probing again renews it
+        cache.put(1, 1000 + NonLockCache.TTL);
+        assertTrue(cache.contains(1, 1000 + NonLockCache.TTL));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void remove_keepsCollidingEntries() throws Exception {
+        NonLockCache cache = new NonLockCache(null);
+        for (long address = 0; address < 1000; address++) cache.put(address, 0);
+
+        for (long address = 0; address < 1000; address += 2) assertTrue(cache.remove(address));
+        assertFalse(cache.remove(0));
+
+        assertEquals(500, cache.size());
+        for (long address = 0; address < 1000; address++) assertEquals(address % 2 == 1, cache.contains(address, 0));
+    }
+
+    @Test
+    public void load_ignoresCorruptFile() throws Exception {
+        File file = File.createTempFile("NonLocks", ".cache");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[] { 0x4C, 0x4B, 0x4E, 0x4C, 0, 0, 0, 1, 0, 0, 0, 5, 1, 2 });
+        output.close();
+
+        assertEquals(0, new NonLockCache(file).size());
+
+        file.delete();
+    }
+}
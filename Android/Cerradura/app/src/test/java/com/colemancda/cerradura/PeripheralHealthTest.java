@@ -0,0 +1,81 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeripheralHealthTest {
+
+    private static final String DEVICE = "0A:1B:2C:3D:4E:5F";
+
+    private static final long ADDRESS = ScanTable.address(DEVICE);
+
+    private final PeripheralHealth health = new PeripheralHealth();
+
+    @Test
+    public void didFail_backsOffExponentially() throws Exception {
+        health.didFail(ADDRESS, DEVICE, 133, 0);
+        assertFalse(health.shouldProbe(ADDRESS, PeripheralHealth.BACKOFF - 1));
+        assertTrue(health.shouldProbe(ADDRESS, PeripheralHealth.BACKOFF));
+
+        health.didFail(ADDRESS, DEVICE, 133, 10000);
+        assertFalse(health.shouldProbe(ADDRESS, 10000 + 2 * PeripheralHealth.BACKOFF - 1));
+        assertTrue(health.shouldProbe(ADDRESS, 10000 + 2 * PeripheralHealth.BACKOFF));
+
+        assertEquals(2, health.get(DEVICE).count);
+        assertEquals(2, health.getSkipped());
+    }
+
+    @Test
+    public void isBackingOff_doesNotCountSkipped() throws Exception {
+        assertFalse(health.isBackingOff(ADDRESS, 0));
+
+        health.didFail(ADDRESS, DEVICE, 133, 0);
+        assertTrue(health.isBackingOff(ADDRESS, PeripheralHealth.BACKOFF - 1));
+        assertFalse(health.isBackingOff(ADDRESS, PeripheralHealth.BACKOFF));
+
+        assertEquals(0, health.getSkipped());
+    }
+
+    @Test
+    public void didFail_opensCircuitForCoolDown() throws Exception {
+        for (int i = 0; i < PeripheralHealth.BREAKER_THRESHOLD; i++) health.didFail(ADDRESS, DEVICE, PeripheralHealth.UNKNOWN_STATUS, 100000 * i);
+
+        long opened = 100000 * (PeripheralHealth.BREAKER_THRESHOLD - 1);
+
+        assertTrue(health.get(DEVICE).isOpen());
+        assertEquals(1, health.getOpenCircuits());
+        assertFalse(health.shouldProbe(ADDRESS, opened + PeripheralHealth.COOL_DOWN - 1));
+
+        // a failing probe after the cool-down keeps the circuit open
+        assertTrue(health.shouldProbe(ADDRESS, opened + PeripheralHealth.COOL_DOWN));
+        health.didFail(ADDRESS, DEVICE, 133, opened + PeripheralHealth.COOL_DOWN);
+        assertTrue(health.get(DEVICE).isOpen());
+        assertEquals(2, health.getTrips());
+    }
+
+    @Test
+    public void didSucceed_forgetsFailures() throws Exception {
+        for (int i = 0; i < PeripheralHealth.BREAKER_THRESHOLD; i++) health.didFail(ADDRESS, DEVICE, 133, 0);
+
+        health.didSucceed(ADDRESS);
+
+        assertNull(health.get(DEVICE));
+        assertTrue(health.shouldProbe(ADDRESS, 0));
+        assertEquals(0, health.getOpenCircuits());
+    }
+
+    @Test
+    public void prune_forgetsPeripheralsNotProbedAgain() throws Exception {
+        String other = "0A:1B:2C:3D:4E:60";
+
+        health.didFail(ADDRESS, DEVICE, 133, 0);
+        health.didFail(ScanTable.address(other), other, 133, PeripheralHealth.RETENTION);
+
+        assertEquals(0, health.prune(PeripheralHealth.BACKOFF + PeripheralHealth.RETENTION - 1));
+        assertEquals(1, health.prune(PeripheralHealth.BACKOFF + PeripheralHealth.RETENTION));
+
+        assertNull(health.get(DEVICE));
+        assertNotNull(health.get(other));
+    }
+}
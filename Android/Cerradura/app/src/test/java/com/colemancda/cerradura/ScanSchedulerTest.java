@@ -0,0 +1,143 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+
+    private final ScanScheduler scheduler = new ScanScheduler(null);
+
+    private static final List<LockManager.Lock> NO_LOCKS = Collections.emptyList();
+
+    private static LockManager.ScanSummary summary(long lastDiscovery, List<LockManager.Lock> locks, long... peripherals) {
+        return new LockManager.ScanSummary(1000, peripherals, lastDiscovery, locks);
+    }
+
+    @Test
+    public void didScan_backsOffWhileStable() throws Exception {
+        assertTrue(scheduler.didScan(summary(100, NO_LOCKS, 1, 2)));
+        assertEquals(ScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+
+        for (int i = 0; i < 10; i++) assertFalse(scheduler.didScan(summary(100, NO_LOCKS, 2, 1)));
+
+        assertEquals(ScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+        assertEquals(ScanScheduler.MIN_WINDOW, scheduler.getWindow());
+    }
+
+    @Test
+    public void didScan_rampsUpOnChange() throws Exception {
+        for (int i = 0; i < 10; i++) scheduler.didScan(summary(100, NO_LOCKS, 1));
+
+        // a new peripheral
+        assertTrue(scheduler.didScan(summary(100, NO_LOCKS, 1, 2)));
+        assertEquals(ScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+
+        scheduler.didScan(summary(100, NO_LOCKS, 1, 2));
+
+        // a lock appeared on a known peripheral
+        LockManager.Lock lock = new LockManager.Lock(UUID.randomUUID(), "00:00:00:00:00:02", LockStatus.UNLOCK, LockModel.ORANGE_PI_ONE, 1);
+        assertTrue(scheduler.didScan(summary(100, Collections.singletonList(lock), 1, 2)));
+        assertEquals(ScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+    }
+
+    @Test
+    public void didScan_lengthensWindowForLateDiscoveries() throws Exception {
+        long window = scheduler.getWindow();
+
+        scheduler.didScan(summary(900, NO_LOCKS, 1));
+        assertEquals(window * 2, scheduler.getWindow());
+
+        for (int i = 1; i < 10; i++) scheduler.didScan(summary(900, NO_LOCKS, 1, i + 1));
+        assertEquals(ScanScheduler.MAX_WINDOW, scheduler.getWindow());
+
+        // stable but still late, keep the window
+        scheduler.didScan(summary(900, NO_LOCKS, 1, 10));
+        assertEquals(ScanScheduler.MAX_WINDOW, scheduler.getWindow());
+    }
+
+    @Test
+    public void start_scansPeriodically() throws Exception {
+        SimulatedBluetoothTransport transport = new SimulatedBluetoothTransport(2);
+        transport.addLocks(3);
+
+        LockManager manager = new LockManager(transport);
+        ManualExecutor executor = new ManualExecutor();
+        ScanScheduler scheduler = new ScanScheduler(manager, executor, 500);
+
+        scheduler.start();
+        assertEquals(0L, (long) executor.delays.get(0));
+
+        assertTrue(executor.runNext());
+        assertEquals(1, scheduler.getScanCount());
+        assertEquals(3, manager.foundLocks.size());
+        assertTrue(scheduler.getRadioTime() >= 500);
+
+        // the locks are new, so the next scan follows soon
+        assertEquals(ScanScheduler.MIN_INTERVAL, (long) executor.delays.get(1));
+
+        scheduler.stop();
+        assertFalse(executor.runNext());
+
+        executor.shutdownNow();
+        manager.closeConnections();
+        transport.shutdown();
+    }
+
+    @Test
+    public void startDelay_limitsScanStartsPerPeriod() throws Exception {
+        for (int i = 0; i < ScanScheduler.MAX_SCAN_STARTS; i++) {
+            assertEquals(0, scheduler.startDelay(1000 + i * 1000));
+            scheduler.didStart(1000 + i * 1000);
+        }
+
+        // the sixth start waits until the first one leaves the period
+        assertEquals(ScanScheduler.SCAN_START_PERIOD - 5000, scheduler.startDelay(6000));
+        assertEquals(0, scheduler.startDelay(1000 + ScanScheduler.SCAN_START_PERIOD));
+
+        scheduler.didStart(1000 + ScanScheduler.SCAN_START_PERIOD);
+        assertEquals(1000, scheduler.startDelay(1000 + ScanScheduler.SCAN_START_PERIOD));
+    }
+
+    /** Runs the latest scheduled task only when asked, and records the requested delays. */
+    private static final class ManualExecutor extends ScheduledThreadPoolExecutor {
+
+        final List<Long> delays = new ArrayList<Long>();
+
+        private Runnable task;
+
+        private ScheduledFuture<?> future;
+
+        ManualExecutor() { super(1); }
+
+        @Override
+        public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            delays.add(unit.toMillis(delay));
+            task = command;
+            future = super.schedule(new Runnable() { @Override public void run() { } }, 1, TimeUnit.DAYS);
+            return future;
+        }
+
+        /** @return {@code false} if nothing is scheduled, or the task was cancelled. */
+        boolean runNext() {
+            Runnable task;
+
+            synchronized (this) {
+                if (this.task == null || future.isCancelled()) return false;
+                task = this.task;
+                this.task = null;
+            }
+
+            task.run();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.colemancda.cerradura;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScanTableTest {
+
+    @Test
+    public void address_roundTrip() throws Exception {
+        long address = ScanTable.address("0A:1b:2C:3d:4E:FF");
+        assertEquals(0x0A1B2C3D4EFFL, address);
+        assertEquals("0A:1B:2C:3D:4E:FF", ScanTable.address(address));
+    }
+
+    @Test
+    public void record_tracksRepeatedAdvertisements() throws Exception {
+        ScanTable<String> table = new ScanTable<String>(4);
+
+        assertTrue(table.record(1, "first", -60, 100));
+        assertFalse(table.record(1, "first", -80, 200));
+        assertTrue(table.record(2, "second", -50, 300));
+
+        assertEquals(2, table.size());
+        assertEquals(2, table.advertisementCount(1));
+        assertEquals(100, table.firstSeen(1));
+        assertEquals(200, table.lastSeen(1));
+        assertEquals(-80, table.lastRssi(1));
+        assertEquals(-65.0, table.averageRssi(1), 0.001);
+        assertEquals(0, table.advertisementCount(3));
+    }
+
+    @Test
+    public void filteredRssi_settlesAndCatchesUpAfterPause() throws Exception {
+        ScanTable<String> table = new ScanTable<String>(4);
+
+        table.record(1, "lock", -80, 0);
+        assertEquals(-80, table.filteredRssi(1), 0.001);
+
+        // a single outlier in a steady stream barely moves the estimate
+        for (long now = 100; now <= 2000; now += 100) table.record(1, "lock", -60, now);
+        float steady = table.filteredRssi(1);
+        assertEquals(-60, steady, 1);
+        table.record(1, "lock", -90, 2100);
+        float outlier = table.filteredRssi(1);
+        assertTrue(outlier > -70);
+
+        // after a pause a new sample counts for more
+        table.record(2, "other", -60, 0);
+        for (long now = 100; now <= 2000; now += 100) table.record(2, "other", -60, now);
+        table.record(2, "other", -90, 12000);
+        assertTrue(table.filteredRssi(2) < outlier);
+
+        assertEquals(0, table.filteredRssi(3), 0);
+    }
+
+    @Test
+    public void record_growsAndKeepsInsertionOrder() throws Exception {
+        ScanTable<Long> table = new ScanTable<Long>(1);
+
+        for (long address = 0; address < 1000; address++) table.record(address, address, -70, address);
+
+        List<Long> devices = table.devices();
+        assertEquals(1000, devices.size());
+        for (int i = 0; i < 1000; i++) assertEquals((long) i, (long) devices.get(i));
+        assertTrue(table.contains(999));
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertFalse(table.contains(999));
+    }
+
+    @Test
+    public void remove_keepsOtherPeripheralsReachable() throws Exception {
+        ScanTable<Long> table = new ScanTable<Long>(16);
+        List<Long> expected = new ArrayList<Long>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            long address = random.nextInt(200);
+
+            if (random.nextBoolean()) {
+                assertEquals(!expected.contains(address), table.record(address, address, -70, i));
+                if (!expected.contains(address)) expected.add(address);
+            } else {
+                assertEquals(expected.remove(address), table.remove(address));
+            }
+        }
+
+        assertEquals(expected, table.devices());
+        for (long address = 0; address < 200; address++) assertEquals(expected.contains(address), table.contains(address));
+    }
+
+    @Test
+    public void expire_removesSilentPeripherals() throws Exception {
+        ScanTable<String> table = new ScanTable<String>(4);
+
+        table.record(1, "a", -60, 100);
+        table.record(2, "b", -60, 100);
+        table.record(3, "c", -60, 100);
+        table.record(2, "b", -60, 500);
+
+        List<String> expired = table.expire(300);
+
+        assertEquals(2, expired.size());
+        assertEquals("a", expired.get(0));
+        assertEquals("c", expired.get(1));
+        assertEquals(1, table.size());
+        assertTrue(table.contains(2));
+        assertEquals(500, table.lastSeen(2));
+    }
+}
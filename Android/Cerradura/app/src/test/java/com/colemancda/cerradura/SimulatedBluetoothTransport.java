@@ -0,0 +1,727 @@
+package com.colemancda.cerradura;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory {@link BluetoothTransport} with a fleet of simulated peripherals, for load testing {@link LockManager}
+ * without a radio.
+ *
+ * Peripherals advertise at their own interval and answer GATT requests after their configured latency,
+ * on a shared scheduler, like the platform stack. Lock peripherals serve the lock service with values
+ * encoded by the lock profile codecs.
+ */
+final class SimulatedBluetoothTransport implements BluetoothTransport {
+
+    /** The status Android reports for most connection failures. */
+    static final int GATT_ERROR = 133;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final List<Peripheral> peripherals = new ArrayList<Peripheral>();
+
+    private final ConcurrentHashMap<ScanCallback, List<ScheduledFuture<?>>> scans = new ConcurrentHashMap<ScanCallback, List<ScheduledFuture<?>>>();
+
+    private volatile boolean enabled = true;
+
+    /** Whether connections support MTU and connection priority requests, as from API 21. */
+    private volatile boolean connectionParametersSupported = true;
+
+    /** Whether scans only report the first advertisement of each peripheral, like some stacks do. */
+    private volatile boolean filterDuplicates = false;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    private final AtomicInteger maxOpenConnections = new AtomicInteger();
+
+    private final AtomicInteger advertisements = new AtomicInteger();
+
+    private final AtomicInteger scansStarted = new AtomicInteger();
+
+    private final AtomicInteger activeScans = new AtomicInteger();
+
+    private final AtomicInteger maxActiveScans = new AtomicInteger();
+
+    /** Requests issued while another request was outstanding on the same connection. */
+    private final AtomicInteger overlappingRequests = new AtomicInteger();
+
+    SimulatedBluetoothTransport(int threads) {
+
+        scheduler = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "SimulatedBluetoothTransport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Fleet
+     */
+
+    synchronized SimulatedBluetoothTransport add(Peripheral peripheral) {
+
+        peripherals.add(peripheral);
+
+        return this;
+    }
+
+    /** Adds {@code count} locks advertising the lock service, and returns them. */
+    List<Peripheral> addLocks(int count) {
+
+        List<Peripheral> locks = new ArrayList<Peripheral>(count);
+
+        for (int i = 0; i < count; i++) {
+
+            Peripheral lock = Peripheral.lock(address(peripheralCount()), UUID.randomUUID());
+
+            add(lock);
+
+            locks.add(lock);
+        }
+
+        return locks;
+    }
+
+    /** Adds {@code count} peripherals that are not locks, with the specified advertisement. */
+    void addOthers(int count, byte[] scanRecord) {
+
+        for (int i = 0; i < count; i++) add(new Peripheral(address(peripheralCount()), scanRecord, null));
+    }
+
+    synchronized int peripheralCount() { return peripherals.size(); }
+
+    void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+    void setConnectionParametersSupported(boolean supported) { connectionParametersSupported = supported; }
+
+    void setFilterDuplicates(boolean filter) { filterDuplicates = filter; }
+
+    /** Changes the status of the lock, and notifies it on the calling thread to subscribed connections. */
+    void changeStatus(Peripheral peripheral, int status) {
+
+        peripheral.status = status;
+
+        byte[] value = peripheral.value(LockStatus.UUID);
+
+        for (SimulatedConnection connection : peripheral.subscribers) connection.notify(LockStatus.UUID, value);
+    }
+
+    void shutdown() { scheduler.shutdownNow(); }
+
+    /**
+     * Statistics
+     */
+
+    int getConnections() { return connections.get(); }
+
+    int getOpenConnections() { return openConnections.get(); }
+
+    int getMaxOpenConnections() { return maxOpenConnections.get(); }
+
+    int getAdvertisements() { return advertisements.get(); }
+
+    int getOverlappingRequests() { return overlappingRequests.get(); }
+
+    int getScansStarted() { return scansStarted.get(); }
+
+    /** The most scans the radio ran at the same time. */
+    int getMaxActiveScans() { return maxActiveScans.get(); }
+
+    /**
+     * BluetoothTransport
+     */
+
+    public boolean isEnabled() { return enabled; }
+
+    public boolean startScan(final ScanCallback callback) {
+
+        if (!enabled) return false;
+
+        scansStarted.incrementAndGet();
+
+        int active = activeScans.incrementAndGet();
+
+        while (true) {
+
+            int max = maxActiveScans.get();
+
+            if (active <= max || maxActiveScans.compareAndSet(max, active)) break;
+        }
+
+        List<ScheduledFuture<?>> advertisers = new ArrayList<ScheduledFuture<?>>();
+
+        synchronized (this) {
+
+            for (final Peripheral peripheral : peripherals) {
+
+                Runnable advertise = new Runnable() {
+                    @Override
+                    public void run() {
+
+                        advertisements.incrementAndGet();
+
+                        callback.onAdvertisement(peripheral.address, peripheral.rssi, peripheral.scanRecord);
+                    }
+                };
+
+                if (filterDuplicates) advertisers.add(scheduler.schedule(advertise, peripheral.advertisementDelay, TimeUnit.MILLISECONDS));
+
+                else advertisers.add(scheduler.scheduleAtFixedRate(advertise, peripheral.advertisementDelay, peripheral.advertisementInterval, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        scans.put(callback, advertisers);
+
+        return true;
+    }
+
+    public void stopScan(ScanCallback callback) {
+
+        List<ScheduledFuture<?>> advertisers = scans.remove(callback);
+
+        if (advertisers == null) return;
+
+        activeScans.decrementAndGet();
+
+        for (ScheduledFuture<?> advertiser : advertisers) advertiser.cancel(false);
+    }
+
+    public Connection connect(String address, ConnectionCallback callback) {
+
+        if (!enabled) return null;
+
+        Peripheral peripheral = peripheral(address);
+
+        if (peripheral == null) return null;
+
+        connections.incrementAndGet();
+
+        int open = openConnections.incrementAndGet();
+
+        while (true) {
+
+            int max = maxOpenConnections.get();
+
+            if (open <= max || maxOpenConnections.compareAndSet(max, open)) break;
+        }
+
+        final SimulatedConnection connection = new SimulatedConnection(peripheral, callback);
+
+        connection.connect();
+
+        return connection;
+    }
+
+    /**
+     * Private Methods
+     */
+
+    private synchronized Peripheral peripheral(String address) {
+
+        for (Peripheral peripheral : peripherals) {
+
+            if (peripheral.address.equals(address)) return peripheral;
+        }
+
+        return null;
+    }
+
+    static String address(int index) {
+
+        return ScanTable.address(0x020000000000L | index);
+    }
+
+    /**
+     * Advertisements
+     */
+
+    /** An advertisement with the lock service in the complete list of 128-bit services. */
+    static byte[] serviceAdvertisement(UUID service) {
+
+        byte[] record = new byte[31];
+
+        record[0] = 2; record[1] = 0x01; record[2] = 0x06; // flags
+
+        record[3] = 17; record[4] = 0x07;
+
+        LockIdentifier.encode(service, record, 5);
+
+        // 128-bit UUIDs are little endian in AD structures
+        for (int i = 0; i < 8; i++) {
+
+            byte swap = record[5 + i];
+            record[5 + i] = record[20 - i];
+            record[20 - i] = swap;
+        }
+
+        return record;
+    }
+
+    /** An iBeacon advertisement with the specified proximity UUID. */
+    static byte[] beaconAdvertisement(UUID proximity) {
+
+        byte[] record = new byte[30];
+
+        record[0] = 2; record[1] = 0x01; record[2] = 0x06; // flags
+
+        record[3] = 26; record[4] = (byte) 0xFF;
+
+        record[5] = 0x4C; record[6] = 0x00; record[7] = 0x02; record[8] = 0x15;
+
+        LockIdentifier.encode(proximity, record, 9);
+
+        record[29] = (byte) -59; // measured power
+
+        return record;
+    }
+
+    /** An advertisement with only the flags, which does not say whether the peripheral is a lock. */
+    static byte[] anonymousAdvertisement() {
+
+        return new byte[] { 2, 0x01, 0x06 };
+    }
+
+    /**
+     * Supporting Types
+     */
+
+    /** A simulated peripheral. Configure before the scan starts. */
+    static final class Peripheral {
+
+        final String address;
+
+        final byte[] scanRecord;
+
+        /** The lock identifier, or {@code null} if the peripheral is not a lock. */
+        final UUID identifier;
+
+        int rssi = -60;
+
+        /** Milliseconds between advertisements. */
+        long advertisementInterval = 100;
+
+        /** Milliseconds before the first advertisement. */
+        long advertisementDelay = 0;
+
+        /** Milliseconds for each GATT request to complete. */
+        long latency = 5;
+
+        /** The status of connection attempts, e.g. {@link #GATT_ERROR}. */
+        int connectStatus = GATT_SUCCESS;
+
+        /** Number of connection attempts that fail with {@link #connectStatus} before connections succeed. Negative fails forever. */
+        int failedConnections = -1;
+
+        int status = LockStatus.UNLOCK;
+
+        /** Whether the status characteristic notifies, lockd only serves it for reading. */
+        boolean statusNotifies = true;
+
+        int model = LockModel.ORANGE_PI_ONE;
+
+        long version = 1;
+
+        /** Number of writes that fail with {@link #GATT_ERROR}, e.g. after the peripheral silently dropped the link. */
+        int failedWrites = 0;
+
+        /** The values written to the unlock characteristic. */
+        final List<byte[]> unlocks = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        /** The largest ATT MTU the peripheral accepts. */
+        int maxMtu = 247;
+
+        /** The values written to the setup characteristic, in one write or reassembled from chunks. */
+        final List<byte[]> setups = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        /** Number of chunk writes that fail with {@link #GATT_ERROR}, the chunk is lost. */
+        int failedChunks = 0;
+
+        /** Number of writes without response the stack queues before refusing more. */
+        int writeBuffer = 4;
+
+        /** Milliseconds for the link to send one write without response. */
+        long chunkLatency = 1;
+
+        private int chunks = 0;
+
+        private int maxQueuedChunks = 0;
+
+        private int longWrites = 0;
+
+        private final byte[] received = new byte[LockTransfer.MAX_LENGTH];
+
+        synchronized int getChunks() { return chunks; }
+
+        synchronized int getMaxQueuedChunks() { return maxQueuedChunks; }
+
+        /** Number of writes with response longer than the MTU of their connection, sent by the stack as prepared writes. */
+        synchronized int getLongWrites() { return longWrites; }
+
+        synchronized void didLongWrite() { longWrites++; }
+
+        /** The connections status notifications are sent to. */
+        final List<SimulatedConnection> subscribers = new java.util.concurrent.CopyOnWriteArrayList<SimulatedConnection>();
+
+        /** The connection priorities requested, in order. */
+        final List<Integer> connectionPriorities = Collections.synchronizedList(new ArrayList<Integer>());
+
+        Peripheral(String address, byte[] scanRecord, UUID identifier) {
+
+            this.address = address;
+            this.scanRecord = scanRecord;
+            this.identifier = identifier;
+        }
+
+        static Peripheral lock(String address, UUID identifier) {
+
+            return new Peripheral(address, serviceAdvertisement(LockService.UUID), identifier);
+        }
+
+        boolean isLock() { return identifier != null; }
+
+        /** Returns the encoded value of the lock service characteristic, or {@code null}. */
+        byte[] value(UUID characteristic) {
+
+            if (!isLock()) return null;
+
+            if (characteristic.equals(LockIdentifier.UUID)) {
+
+                byte[] value = new byte[LockIdentifier.LENGTH];
+                LockIdentifier.encode(identifier, value, 0);
+                return value;
+            }
+
+            if (characteristic.equals(LockStatus.UUID)) {
+
+                byte[] value = new byte[LockStatus.LENGTH];
+                LockStatus.encode(status, value, 0);
+                return value;
+            }
+
+            if (characteristic.equals(LockModel.UUID)) {
+
+                byte[] value = new byte[LockModel.LENGTH];
+                LockModel.encode(model, value, 0);
+                return value;
+            }
+
+            if (characteristic.equals(LockVersion.UUID)) {
+
+                byte[] value = new byte[LockVersion.LENGTH];
+                LockVersion.encode(version, value, 0);
+                return value;
+            }
+
+            return null;
+        }
+
+        boolean isWritable(UUID characteristic) { return isLock() && (characteristic.equals(LockUnlock.UUID) || characteristic.equals(LockSetup.UUID)); }
+
+        private synchronized int nextWriteStatus(UUID characteristic, byte[] value) {
+
+            if (failedWrites > 0) { failedWrites--; return GATT_ERROR; }
+
+            if (characteristic.equals(LockUnlock.UUID)) unlocks.add(value);
+
+            else if (LockTransfer.isCommit(value)) {
+
+                int length = LockTransfer.commitLength(value);
+
+                if (LockTransfer.checksum(received, 0, length) != LockTransfer.commitChecksum(value)) return GATT_ERROR;
+
+                setups.add(java.util.Arrays.copyOf(received, length));
+            }
+
+            else setups.add(value);
+
+            return GATT_SUCCESS;
+        }
+
+        private synchronized int nextChunkStatus(byte[] chunk) {
+
+            chunks++;
+
+            if (failedChunks > 0) { failedChunks--; return GATT_ERROR; }
+
+            System.arraycopy(chunk, LockTransfer.OFFSET_LENGTH, received, LockTransfer.chunkOffset(chunk), chunk.length - LockTransfer.OFFSET_LENGTH);
+
+            return GATT_SUCCESS;
+        }
+
+        private synchronized void didQueueChunks(int queued) { maxQueuedChunks = Math.max(maxQueuedChunks, queued); }
+
+        private synchronized int nextConnectStatus() {
+
+            if (connectStatus == GATT_SUCCESS || failedConnections == 0) return GATT_SUCCESS;
+
+            if (failedConnections > 0) failedConnections--;
+
+            return connectStatus;
+        }
+    }
+
+    private final class SimulatedConnection implements Connection {
+
+        private final Peripheral peripheral;
+
+        private final ConnectionCallback callback;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        private volatile boolean connected = false;
+
+        private volatile boolean discovered = false;
+
+        private volatile int mtu = DEFAULT_MTU;
+
+        /** Writes without response the link has not sent yet, sent in order. */
+        private final java.util.ArrayDeque<byte[]> outgoing = new java.util.ArrayDeque<byte[]>();
+
+        private boolean sending = false;
+
+        SimulatedConnection(Peripheral peripheral, ConnectionCallback callback) {
+
+            this.peripheral = peripheral;
+            this.callback = callback;
+        }
+
+        void connect() {
+
+            final int status = peripheral.nextConnectStatus();
+
+            request(new Runnable() {
+                @Override
+                public void run() {
+
+                    connected = status == GATT_SUCCESS;
+
+                    callback.onConnectionStateChange(SimulatedConnection.this, status, connected);
+                }
+            });
+        }
+
+        public String getAddress() { return peripheral.address; }
+
+        public boolean discoverServices() {
+
+            if (!connected) return false;
+
+            return request(new Runnable() {
+                @Override
+                public void run() {
+
+                    discovered = true;
+
+                    callback.onServicesDiscovered(SimulatedConnection.this, GATT_SUCCESS);
+                }
+            });
+        }
+
+        public boolean hasService(UUID service) {
+
+            return discovered && peripheral.isLock() && service.equals(LockService.UUID);
+        }
+
+        public boolean hasCharacteristic(UUID service, UUID characteristic) {
+
+            return hasService(service) && (peripheral.value(characteristic) != null || peripheral.isWritable(characteristic));
+        }
+
+        public boolean canNotify(UUID service, UUID characteristic) {
+
+            return hasService(service) && characteristic.equals(LockStatus.UUID) && peripheral.statusNotifies;
+        }
+
+        public boolean readCharacteristic(UUID service, final UUID characteristic) {
+
+            if (!connected || !hasCharacteristic(service, characteristic)) return false;
+
+            return request(new Runnable() {
+                @Override
+                public void run() {
+
+                    callback.onCharacteristicRead(SimulatedConnection.this, characteristic, GATT_SUCCESS, peripheral.value(characteristic));
+                }
+            });
+        }
+
+        public boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value) {
+
+            if (!connected || !hasService(service) || !peripheral.isWritable(characteristic)) return false;
+
+            // longer values than the stack can send in a long write
+            if (value.length > MAX_ATTRIBUTE_LENGTH) return false;
+
+            if (value.length > mtu - GATTSession.WRITE_HEADER_LENGTH) peripheral.didLongWrite();
+
+            final byte[] written = value.clone();
+
+            return request(new Runnable() {
+                @Override
+                public void run() {
+
+                    callback.onCharacteristicWrite(SimulatedConnection.this, characteristic, peripheral.nextWriteStatus(characteristic, written));
+                }
+            });
+        }
+
+        public boolean writeCharacteristicWithoutResponse(UUID service, final UUID characteristic, byte[] value) {
+
+            if (!connected || closed.get() || !hasService(service) || !peripheral.isWritable(characteristic)) return false;
+
+            synchronized (outgoing) {
+
+                if (outgoing.size() >= peripheral.writeBuffer) return false;
+
+                outgoing.add(value.clone());
+
+                peripheral.didQueueChunks(outgoing.size());
+
+                if (sending) return true;
+
+                sending = true;
+            }
+
+            sendNext(characteristic);
+
+            return true;
+        }
+
+        /** Sends the oldest queued write after the link latency, then the next one. */
+        private void sendNext(final UUID characteristic) {
+
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+
+                    byte[] chunk;
+
+                    synchronized (outgoing) { chunk = outgoing.poll(); }
+
+                    if (!closed.get()) callback.onCharacteristicWrite(SimulatedConnection.this, characteristic, peripheral.nextChunkStatus(chunk));
+
+                    synchronized (outgoing) {
+
+                        if (outgoing.isEmpty()) { sending = false; return; }
+                    }
+
+                    sendNext(characteristic);
+                }
+            }, peripheral.chunkLatency, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean setCharacteristicNotification(UUID service, final UUID characteristic, final boolean enable) {
+
+            if (!connected || !canNotify(service, characteristic)) return false;
+
+            return request(new Runnable() {
+                @Override
+                public void run() {
+
+                    if (enable) peripheral.subscribers.add(SimulatedConnection.this);
+
+                    else peripheral.subscribers.remove(SimulatedConnection.this);
+
+                    callback.onDescriptorWrite(SimulatedConnection.this, characteristic, GATT_SUCCESS);
+                }
+            });
+        }
+
+        void notify(UUID characteristic, byte[] value) {
+
+            if (connected && !closed.get()) callback.onCharacteristicChanged(this, characteristic, value);
+        }
+
+        public boolean requestMtu(final int mtu) {
+
+            if (!connected || !connectionParametersSupported) return false;
+
+            return request(new Runnable() {
+                @Override
+                public void run() {
+
+                    SimulatedConnection.this.mtu = Math.min(mtu, peripheral.maxMtu);
+
+                    callback.onMtuChanged(SimulatedConnection.this, SimulatedConnection.this.mtu, GATT_SUCCESS);
+                }
+            });
+        }
+
+        public boolean requestConnectionPriority(int priority) {
+
+            if (!connected || !connectionParametersSupported) return false;
+
+            peripheral.connectionPriorities.add(priority);
+
+            return true;
+        }
+
+        public void disconnect() {
+
+            if (!connected) return;
+
+            connected = false;
+
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    // like Android, closing unregisters the callback
+                    if (!closed.get()) callback.onConnectionStateChange(SimulatedConnection.this, GATT_SUCCESS, false);
+                }
+            });
+        }
+
+        public void close() {
+
+            connected = false;
+
+            peripheral.subscribers.remove(this);
+
+            if (closed.compareAndSet(false, true)) openConnections.decrementAndGet();
+        }
+
+        /** Completes the request after the peripheral latency. Only one request may be outstanding. */
+        private boolean request(final Runnable response) {
+
+            if (closed.get()) return false;
+
+            if (!busy.compareAndSet(false, true)) {
+
+                overlappingRequests.incrementAndGet();
+
+                return false;
+            }
+
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+
+                    busy.set(false);
+
+                    if (!closed.get()) response.run();
+                }
+            }, peripheral.latency, TimeUnit.MILLISECONDS);
+
+            return true;
+        }
+    }
+}
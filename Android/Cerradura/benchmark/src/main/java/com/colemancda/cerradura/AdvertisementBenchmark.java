@@ -0,0 +1,108 @@
+package com.colemancda.cerradura;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done for each advertisement packet received while scanning.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdvertisementBenchmark {
+
+    /** The number of distinct peripherals advertising. */
+    @Param({ "16", "256" })
+    public int peripherals;
+
+    private final byte[] lockService = SimulatedBluetoothTransport.serviceAdvertisement(LockService.UUID);
+
+    private final byte[] lockBeacon = SimulatedBluetoothTransport.beaconAdvertisement(AdvertisementParser.LOCK_BEACON_UUID);
+
+    private final byte[] otherService = SimulatedBluetoothTransport.serviceAdvertisement(UUID.randomUUID());
+
+    private final byte[] anonymous = SimulatedBluetoothTransport.anonymousAdvertisement();
+
+    private SimulatedBluetoothTransport transport;
+
+    private LockManager manager;
+
+    private String[] addresses;
+
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+
+        transport = new SimulatedBluetoothTransport(1);
+
+        manager = new LockManager(transport);
+
+        addresses = new String[peripherals];
+
+        for (int i = 0; i < peripherals; i++) addresses[i] = ScanTable.address(0x020000000000L | i);
+
+        // every peripheral has been seen once, as in a running scan
+        for (String address : addresses) manager.onAdvertisement(address, -60, lockService);
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        transport.shutdown();
+    }
+
+    @Benchmark
+    public int classifyLockService() {
+
+        return AdvertisementParser.classify(lockService);
+    }
+
+    @Benchmark
+    public int classifyLockBeacon() {
+
+        return AdvertisementParser.classify(lockBeacon);
+    }
+
+    @Benchmark
+    public int classifyOtherService() {
+
+        return AdvertisementParser.classify(otherService);
+    }
+
+    /** A repeated advertisement from a known lock candidate. */
+    @Benchmark
+    public void onAdvertisement() {
+
+        manager.onAdvertisement(addresses[index++ & (peripherals - 1)], -60, lockService);
+    }
+
+    /** An advertisement that is filtered out before it reaches the scan table. */
+    @Benchmark
+    public void onAdvertisementFiltered() {
+
+        manager.onAdvertisement(addresses[index++ & (peripherals - 1)], -60, otherService);
+    }
+
+    @Benchmark
+    public void onAdvertisementAnonymous() {
+
+        manager.onAdvertisement(addresses[index++ & (peripherals - 1)], -60, anonymous);
+    }
+}
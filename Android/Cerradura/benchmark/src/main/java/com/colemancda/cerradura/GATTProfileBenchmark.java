@@ -0,0 +1,107 @@
+package com.colemancda.cerradura;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding of the lock characteristic values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GATTProfileBenchmark {
+
+    private final UUID identifier = UUID.randomUUID();
+
+    private final byte[] identifierValue = new byte[LockIdentifier.LENGTH];
+
+    private final byte[] versionValue = new byte[LockVersion.LENGTH];
+
+    private final byte[] packageVersionValue = new byte[8];
+
+    private final byte[] statusValue = { LockStatus.UNLOCK };
+
+    private final byte[] modelValue = { LockModel.ORANGE_PI_ONE };
+
+    private final byte[] nonce = new byte[LockSetup.NONCE_LENGTH];
+
+    private final byte[] iv = new byte[LockSetup.IV_LENGTH];
+
+    private final byte[] encryptedKey = new byte[LockSetup.ENCRYPTED_KEY_LENGTH];
+
+    private final byte[] hmac = new byte[LockSetup.HMAC_LENGTH];
+
+    private final byte[] buffer = new byte[LockSetup.LENGTH];
+
+    @Setup
+    public void setup() {
+
+        LockIdentifier.encode(identifier, identifierValue, 0);
+        LockVersion.encode(0x0102030405060708L, versionValue, 0);
+        LockPackageVersion.encode(LockPackageVersion.value(1, 2, 3), packageVersionValue, 0);
+    }
+
+    @Benchmark
+    public UUID decodeIdentifier() {
+
+        return LockIdentifier.decode(identifierValue);
+    }
+
+    /** Decoding the identifier into its two halves, without creating a {@link UUID}. */
+    @Benchmark
+    public void decodeIdentifierBits(Blackhole blackhole) {
+
+        blackhole.consume(LockIdentifier.mostSignificantBits(identifierValue, 0));
+        blackhole.consume(LockIdentifier.leastSignificantBits(identifierValue, 0));
+    }
+
+    @Benchmark
+    public long decodeVersion() {
+
+        return LockVersion.decode(versionValue, 0);
+    }
+
+    @Benchmark
+    public long decodePackageVersion() {
+
+        return LockPackageVersion.decode(packageVersionValue, 0);
+    }
+
+    @Benchmark
+    public void decodeStatusAndModel(Blackhole blackhole) {
+
+        blackhole.consume(LockStatus.decode(statusValue, 0));
+        blackhole.consume(LockModel.decode(modelValue, 0));
+    }
+
+    @Benchmark
+    public byte[] encodeIdentifier() {
+
+        LockIdentifier.encode(identifier, buffer, 0);
+
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] encodeSetup() {
+
+        LockSetup.encode(identifier, nonce, iv, encryptedKey, hmac, buffer, 0);
+
+        return buffer;
+    }
+}
@@ -0,0 +1,114 @@
+package com.colemancda.cerradura;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end scan latency, from the start of the scan until every lock in a simulated fleet is identified.
+ *
+ * Each invocation starts without cached identities or pooled connections, so every lock is probed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    /** The scan window, in milliseconds. */
+    static final long SCAN_DURATION = 50;
+
+    @Param({ "5", "25" })
+    public int locks;
+
+    /** Peripherals that are not locks, half advertising another service and half anonymous. */
+    @Param({ "0", "50" })
+    public int others;
+
+    /** The latency of each GATT request, in milliseconds. */
+    @Param({ "1", "10" })
+    public int latency;
+
+    @Param({ "1", "4", "7" })
+    public int probeParallelism;
+
+    private SimulatedBluetoothTransport transport;
+
+    private LockManager manager;
+
+    private File cacheDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        transport = new SimulatedBluetoothTransport(4);
+
+        for (SimulatedBluetoothTransport.Peripheral lock : transport.addLocks(locks)) {
+
+            lock.latency = latency;
+            lock.advertisementInterval = 20;
+        }
+
+        transport.addOthers(others / 2, SimulatedBluetoothTransport.serviceAdvertisement(UUID.randomUUID()));
+        transport.addOthers(others - others / 2, SimulatedBluetoothTransport.anonymousAdvertisement());
+
+        manager = new LockManager(transport);
+
+        manager.setProbeParallelism(probeParallelism);
+
+        cacheDirectory = File.createTempFile("ScanBenchmark", "");
+        cacheDirectory.delete();
+        cacheDirectory.mkdirs();
+
+        manager.setCacheDirectory(cacheDirectory);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+
+        manager.closeConnections();
+
+        // empty identity and non-lock caches, setting the same directory again would keep them in memory
+        manager.clearCaches();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        manager.closeConnections();
+
+        transport.shutdown();
+
+        new File(cacheDirectory, "LockIdentities.cache").delete();
+        new File(cacheDirectory, "NonLocks.cache").delete();
+        cacheDirectory.delete();
+    }
+
+    @Benchmark
+    public List<LockManager.Lock> scan() throws Exception {
+
+        manager.scan(SCAN_DURATION, TimeUnit.MILLISECONDS);
+
+        if (manager.foundLocks.size() != locks) throw new IllegalStateException("Found " + manager.foundLocks.size() + " of " + locks + " locks");
+
+        return manager.foundLocks;
+    }
+}